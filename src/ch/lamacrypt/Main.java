@@ -10,7 +10,7 @@
 
 import ch.lamacrypt.internal.Settings;
 import ch.lamacrypt.internal.crypto.DefaultCipher;
-import ch.lamacrypt.visual.ErrorHandler;
+import ch.lamacrypt.internal.network.NTP;
 import ch.lamacrypt.visual.LoginForm;
 import ch.lamacrypt.visual.TOSDisclaimer;
 import java.io.File;
@@ -36,46 +36,64 @@
 public class Main {
 
     public static void main(String args[]) throws Exception {
-        if (Settings.getMaxRAM() + 256 * (int) Math.pow(2, 20) < 6 * (int) Math.pow(2, 30)) {
-            ErrorHandler.showError("your system doesn't have enough memory (min. 6GiB).");
-        } else {
-            // adding Bouncy Castle as provider
-            Security.addProvider(new BouncyCastleProvider());
-
-            // overriding the default TrustStore
-            System.setProperty("javax.net.ssl.trustStore", "LamaCryptTrustStore");
-            System.setProperty("javax.net.ssl.trustStorePassword", "LCTSPW");
-
-            // try to remove restrictions on cryptographic key lengths
-            removeCryptographyRestrictions();
-
-            // getting the config file and checking if the TOS have been agreed to
-            File config = new File("desktop-client.conf");
-            if (config.exists()) {
-                Scanner in = new Scanner(new FileReader(config));
-                while (in.hasNext()) {
-                    String tmpStr = in.next();
-                    if (tmpStr.startsWith("scryptfactor")) {
-                        int N = Integer.parseInt(tmpStr.substring(13, 15));
-                        DefaultCipher.setScryptFactor(N);
-                        Settings.setStartupScryptN(N);
-                    } else if (tmpStr.startsWith("agreedTOS")) {
-                        Settings.setTOSAgreed(tmpStr.contains("yes"));
-                    }
+        // adding Bouncy Castle as provider
+        Security.addProvider(new BouncyCastleProvider());
+
+        // overriding the default TrustStore
+        System.setProperty("javax.net.ssl.trustStore", "LamaCryptTrustStore");
+        System.setProperty("javax.net.ssl.trustStorePassword", "LCTSPW");
+
+        // try to remove restrictions on cryptographic key lengths
+        removeCryptographyRestrictions();
+
+        // getting the config file and checking if the TOS have been agreed to
+        File config = new File("desktop-client.conf");
+        if (config.exists()) {
+            Scanner in = new Scanner(new FileReader(config));
+            while (in.hasNext()) {
+                String tmpStr = in.next();
+                if (tmpStr.startsWith("scryptfactor")) {
+                    int N = Integer.parseInt(tmpStr.substring(13, 15));
+                    DefaultCipher.setScryptFactor(N);
+                    Settings.setStartupScryptN(N);
+                } else if (tmpStr.startsWith("agreedTOS")) {
+                    Settings.setTOSAgreed(tmpStr.contains("yes"));
+                } else if (tmpStr.startsWith("engine=")) {
+                    Settings.setEngine(tmpStr.substring(7));
+                } else if (tmpStr.startsWith("buffersize=")) {
+                    Settings.setBufferSize(tmpStr.substring(11));
+                } else if (tmpStr.startsWith("ntphosts=")) {
+                    Settings.setNTPHosts(tmpStr.substring(9));
+                } else if (tmpStr.startsWith("connections=")) {
+                    Settings.setConnections(tmpStr.substring(12));
+                } else if (tmpStr.startsWith("list=")) {
+                    Settings.setListOpcode(tmpStr.substring(5));
+                } else if (tmpStr.startsWith("resume=")) {
+                    Settings.setResume(tmpStr.substring(7));
+                } else if (tmpStr.startsWith("timeout=")) {
+                    Settings.setTimeout(tmpStr.substring(8));
+                } else if (tmpStr.startsWith("batch=")) {
+                    Settings.setBatch(tmpStr.substring(6));
                 }
-                in.close();
-                Settings.setIsNew(false);
-            } else {
-                config.createNewFile();
-                Settings.setIsNew(true);
             }
+            in.close();
+            Settings.setIsNew(false);
+        } else {
+            config.createNewFile();
+            Settings.setIsNew(true);
+        }
 
-            if (Settings.isTOSAgreed()) {
-                // starting GUI
-                LoginForm.main(null);
-            } else {
-                TOSDisclaimer.main(null);
-            }
+        // sampling the clock offset used for nonce generation
+        NTP.start();
+
+        // selecting the payload cipher
+        DefaultCipher.selectEngine();
+
+        if (Settings.isTOSAgreed()) {
+            // starting GUI
+            LoginForm.main(null);
+        } else {
+            TOSDisclaimer.main(null);
         }
     }
 
@@ -24,9 +24,24 @@ public abstract class Settings {
 
     private static final OperatingSystemMXBean os = (OperatingSystemMXBean) java.lang.management.ManagementFactory.getOperatingSystemMXBean();
     private static final File config = new File("desktop-client.conf");
-    private static byte version = 0x00;
+    private static volatile byte version = 0x01;
     private static long quotaSize;
+    private static final String[] DEFAULT_NTP_HOSTS = {"0.ch.pool.ntp.org", "0.is.pool.ntp.org"};
     private static String DLDir = null;
+    private static String[] NTPHosts = DEFAULT_NTP_HOSTS;
+    private static final int MIN_BUFFER_SIZE = 65536,
+            MAX_BUFFER_SIZE = 8388608;
+    private static int bufferSize = 0;
+    private static String engine = "default";
+    private static boolean listOpcode = false,
+            resume = false,
+            batch = false;
+    private static final int DEFAULT_CONNECTIONS = 4,
+            MAX_CONNECTIONS = 16;
+    private static int connections = DEFAULT_CONNECTIONS;
+    private static final int DEFAULT_TIMEOUT = 60,
+            MIN_TIMEOUT = 5;
+    private static int timeout = DEFAULT_TIMEOUT;
     private static int startScryptN;
     private static boolean isDLDIR = false,
             isWorking = false,
@@ -108,6 +123,216 @@ public static void setStartupScryptN(int N) {
         startScryptN = N;
     }
 
+    /**
+     * Returns the NTP servers used for nonce generation, in order of
+     * preference
+     *
+     * @return host names of the NTP servers
+     */
+    public static String[] getNTPHosts() {
+        return NTPHosts.clone();
+    }
+
+    /**
+     * Sets the NTP servers used for nonce generation, as read from the
+     * <code>ntphosts</code> entry of the config file
+     *
+     * @param hosts comma-separated list of host names
+     */
+    public static void setNTPHosts(String hosts) {
+        String[] tmp = hosts.split(",");
+        NTPHosts = tmp.length == 0 || tmp[0].isEmpty() ? DEFAULT_NTP_HOSTS : tmp;
+    }
+
+    /**
+     * Returns the size of the buffers used for streaming files through the
+     * cipher
+     *
+     * @return buffer size in bytes, or 0 if it is chosen adaptively
+     */
+    public static int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the size of the buffers used for streaming files through the
+     * cipher, as read from the <code>buffersize</code> entry of the config
+     * file
+     * <p>
+     * Accepts <code>auto</code>, or a number of bytes optionally followed by
+     * <code>K</code> or <code>M</code>. Sizes are clamped between 64KiB and
+     * 8MiB, invalid values select the adaptive mode.
+     *
+     * @param value buffer size
+     */
+    public static void setBufferSize(String value) {
+        String v = value.trim().toUpperCase();
+        int shift = 0;
+        if (v.endsWith("K")) {
+            shift = 10;
+        } else if (v.endsWith("M")) {
+            shift = 20;
+        }
+
+        try {
+            long size = Long.parseLong(shift == 0 ? v : v.substring(0, v.length() - 1)) << shift;
+            bufferSize = (int) Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, size));
+        } catch (NumberFormatException ex) {
+            bufferSize = 0;
+        }
+    }
+
+    /**
+     * Returns the payload cipher selected in the config file
+     *
+     * @return <code>default</code>, <code>auto</code>, <code>gcm</code> or
+     * <code>chacha</code>
+     */
+    public static String getEngine() {
+        return engine;
+    }
+
+    /**
+     * Sets the payload cipher, as read from the <code>engine</code> entry of
+     * the config file
+     * <p>
+     * Unknown values select <code>default</code>, which keeps the v01
+     * encryption scheme. The other values select schemes which only servers
+     * supporting them can store.
+     *
+     * @param value <code>default</code>, <code>auto</code>, <code>gcm</code>
+     * or <code>chacha</code>
+     */
+    public static void setEngine(String value) {
+        String v = value.trim().toLowerCase();
+        engine = v.equals("auto") || v.equals("gcm") || v.equals("chacha") ? v : "default";
+    }
+
+    /**
+     * Returns whether directories are listed with the combined LIST request,
+     * as opposed to separate lsdir, lsfile and quotaused requests
+     *
+     * @return true if the LIST request is enabled
+     */
+    public static boolean isListOpcode() {
+        return listOpcode;
+    }
+
+    /**
+     * Enables the combined LIST request, as read from the <code>list</code>
+     * entry of the config file
+     * <p>
+     * Only servers supporting it may be used with this option.
+     *
+     * @param value <code>on</code> or <code>off</code>
+     */
+    public static void setListOpcode(String value) {
+        listOpcode = value.trim().equalsIgnoreCase("on");
+    }
+
+    /**
+     * Returns whether transfers are resumable, in which case their progress
+     * is journaled and an interrupted transfer is run again on a new
+     * connection, only sending or fetching the missing chunks
+     * <p>
+     * Resumable uploads always use the v02 encryption scheme, whose chunks are
+     * authenticated independently.
+     *
+     * @return true if resumable transfers are enabled
+     */
+    public static boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * Enables resumable transfers, as read from the <code>resume</code> entry
+     * of the config file
+     * <p>
+     * Only servers supporting it may be used with this option.
+     *
+     * @param value <code>on</code> or <code>off</code>
+     */
+    public static void setResume(String value) {
+        resume = value.trim().equalsIgnoreCase("on");
+    }
+
+    /**
+     * Returns whether small files are uploaded in batches, several of them
+     * being sent back-to-back on a connection without waiting for their
+     * replies
+     *
+     * @return true if batched uploads are enabled
+     */
+    public static boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * Enables batched uploads, as read from the <code>batch</code> entry of
+     * the config file
+     * <p>
+     * Only servers supporting it may be used with this option.
+     *
+     * @param value <code>on</code> or <code>off</code>
+     */
+    public static void setBatch(String value) {
+        batch = value.trim().equalsIgnoreCase("on");
+    }
+
+    /**
+     * Returns the maximum number of connections to the I/O server, hence of
+     * simultaneous transfers
+     *
+     * @return number of connections
+     */
+    public static int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Sets the maximum number of connections to the I/O server, as read from
+     * the <code>connections</code> entry of the config file
+     * <p>
+     * Values are clamped between 1 and 16, invalid values select the default
+     * of 4.
+     *
+     * @param value number of connections
+     */
+    public static void setConnections(String value) {
+        try {
+            connections = Math.max(1, Math.min(MAX_CONNECTIONS, Integer.parseInt(value.trim())));
+        } catch (NumberFormatException ex) {
+            connections = DEFAULT_CONNECTIONS;
+        }
+    }
+
+    /**
+     * Returns how long a read from a server may block before the connection
+     * is considered dead
+     *
+     * @return read timeout in milliseconds
+     */
+    public static int getTimeout() {
+        return timeout * 1000;
+    }
+
+    /**
+     * Sets the read timeout, as read from the <code>timeout</code> entry of
+     * the config file
+     * <p>
+     * Values are in seconds and at least 5, invalid values select the default
+     * of 60.
+     *
+     * @param value read timeout in seconds
+     */
+    public static void setTimeout(String value) {
+        try {
+            timeout = Math.max(MIN_TIMEOUT, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException ex) {
+            timeout = DEFAULT_TIMEOUT;
+        }
+    }
+
     /**
      * Updates the scrypt CPU/memory parameter in the config file
      *
@@ -120,6 +345,30 @@ public static void updateScryptN(int N) {
             BufferedWriter out = new BufferedWriter(new FileWriter(config));
             out.write("agreedTOS=yes\n");
             out.write("scryptfactor=" + N + "\n");
+            if (!engine.equals("default")) {
+                out.write("engine=" + engine + "\n");
+            }
+            if (bufferSize != 0) {
+                out.write("buffersize=" + bufferSize + "\n");
+            }
+            if (connections != DEFAULT_CONNECTIONS) {
+                out.write("connections=" + connections + "\n");
+            }
+            if (timeout != DEFAULT_TIMEOUT) {
+                out.write("timeout=" + timeout + "\n");
+            }
+            if (listOpcode) {
+                out.write("list=on\n");
+            }
+            if (resume) {
+                out.write("resume=on\n");
+            }
+            if (batch) {
+                out.write("batch=on\n");
+            }
+            if (NTPHosts != DEFAULT_NTP_HOSTS) {
+                out.write("ntphosts=" + String.join(",", NTPHosts) + "\n");
+            }
             out.close();
         } catch (IOException ex) {
             ErrorHandler.showError(ex);
@@ -20,16 +20,15 @@
  */
 package ch.lamacrypt.internal.crypto;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import org.bouncycastle.crypto.engines.ChaChaEngine;
-import org.bouncycastle.crypto.generators.Poly1305KeyGenerator;
+import javax.crypto.AEADBadTagException;
+import org.bouncycastle.crypto.engines.ChaCha7539Engine;
 import org.bouncycastle.crypto.macs.Poly1305;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.crypto.params.ParametersWithIV;
-import org.bouncycastle.crypto.tls.AlertDescription;
-import org.bouncycastle.crypto.tls.TlsFatalAlert;
 import org.bouncycastle.util.Arrays;
 import org.bouncycastle.util.Pack;
 
@@ -38,21 +37,27 @@
  * ChaCha20 w/ Poly1305 as MAC in encrypt-then-MAC scheme
  * <p>
  * Based on the ChaCha20Poly1305 class from Bouncy Castle but without the TLS
- * related code
+ * related code. Follows the AEAD construction of RFC 7539 with empty
+ * associated data: 96 bits nonce, Poly1305 key taken from the first keystream
+ * block, and a single tag over the whole ciphertext, its padding and its
+ * length, written after the ciphertext.
  * <p>
- * This class' code has not been verified against any test vector and so it
- * should not be used for actual encryption yet
+ * Used for the payload of the v03 encryption scheme, which is faster than
+ * AES-GCM on machines without hardware AES support.
  *
  * @author LamaGuy
  */
 public final class CPCipher {
 
-    private final ChaChaEngine cipher;
+    protected static final int TAG_BYTES = 16;
+    private static final byte[] ZEROES = new byte[TAG_BYTES - 1];
+
+    private final ChaCha7539Engine cipher;
     private final Poly1305 mac;
     private static int BUFFER_SIZE = 8192;
 
     public CPCipher() throws IOException {
-        this.cipher = new ChaChaEngine();
+        this.cipher = new ChaCha7539Engine();
         this.mac = new Poly1305();
     }
 
@@ -60,16 +65,11 @@ public static void setBufferSize(int newSize) {
         BUFFER_SIZE = newSize;
     }
 
-    private int getPlaintextLimit(int ciphertextLimit) {
-        return ciphertextLimit - 16;
-    }
-
     /**
      * Encrypts a given file with ChaCha20 w/ Poly1305 as MAC in the
      * encrypt-then-MAC scheme.
      * <p>
-     * After each chunk of 8KiB, a MAC tag is written out. This means the output
-     * file size is increased by 16B/8192B = 0.001953125%.
+     * The 16 bytes MAC tag is written out after the ciphertext.
      *
      * @param key
      * @param nonce
@@ -79,18 +79,21 @@ private int getPlaintextLimit(int ciphertextLimit) {
      */
     protected void encrypt(byte[] key, byte[] nonce, InputStream input, OutputStream output) throws IOException {
         this.cipher.init(true, new ParametersWithIV(new KeyParameter(key), nonce));
-        byte[] ciphertextMac = new byte[16], readBuf = new byte[BUFFER_SIZE],
+        byte[] ciphertextMac = new byte[TAG_BYTES], readBuf = new byte[BUFFER_SIZE],
                 chachaBuf = new byte[BUFFER_SIZE];
         initMAC(cipher);
 
+        long len = 0;
         int r = 0;
         while ((r = input.read(readBuf)) != -1) {
+            ParallelGCM.checkInterrupted();
             cipher.processBytes(readBuf, 0, r, chachaBuf, 0);
             output.write(chachaBuf, 0, r);
-            updateMAC(chachaBuf, 0, r);
+            mac.update(chachaBuf, 0, r);
+            len += r;
         }
 
-        mac.doFinal(ciphertextMac, 0);
+        finishMAC(len, ciphertextMac);
         output.write(ciphertextMac);
     }
 
@@ -98,75 +101,148 @@ protected void encrypt(byte[] key, byte[] nonce, InputStream input, OutputStream
      * Decrypts a given file with ChaCha20 w/ Poly1305 as MAC in
      * encrypt-then-MAC scheme.
      * <p>
-     * Reads data from the InputStream and writes the decrypted data to the
-     * OutputStream
+     * Reads exactly len bytes of ciphertext followed by the tag from the
+     * InputStream and writes the decrypted data to the OutputStream. The
+     * stream is left positioned right after the tag.
      *
      * @param key
      * @param nonce
      * @param input
      * @param output
+     * @param len size of the ciphertext, without the tag
      * @throws IOException
+     * @throws AEADBadTagException if the tag does not match the ciphertext
      */
     protected void decrypt(byte[] key, byte[] nonce, InputStream input,
-            OutputStream output) throws IOException {
+            OutputStream output, long len) throws IOException, AEADBadTagException {
+        if (decryptUpTo(key, nonce, input, output, len + TAG_BYTES) != len) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Decrypts a given file with ChaCha20 w/ Poly1305 as MAC in
+     * encrypt-then-MAC scheme.
+     * <p>
+     * Reads data from the InputStream until its end, the last 16 bytes being
+     * the tag, and writes the decrypted data to the OutputStream
+     *
+     * @param key
+     * @param nonce
+     * @param input
+     * @param output
+     * @throws IOException
+     * @throws AEADBadTagException if the tag does not match the ciphertext
+     */
+    protected void decrypt(byte[] key, byte[] nonce, InputStream input,
+            OutputStream output) throws IOException, AEADBadTagException {
+        decryptUpTo(key, nonce, input, output, Long.MAX_VALUE);
+    }
+
+    /**
+     * Decrypts data read from the InputStream until its end or until limit
+     * bytes have been read, whichever comes first
+     * <p>
+     * The data goes through a ring buffer which always holds back the last 16
+     * bytes read, since they may be the tag. Every read, whatever its size, is
+     * processed in place as soon as it arrives, and nothing is allocated once
+     * the buffers are set up.
+     *
+     * @param key
+     * @param nonce
+     * @param input
+     * @param output
+     * @param limit maximum number of bytes to read, including the tag
+     * @return size of the ciphertext, without the tag
+     * @throws IOException
+     * @throws AEADBadTagException if the tag does not match the ciphertext
+     */
+    private long decryptUpTo(byte[] key, byte[] nonce, InputStream input,
+            OutputStream output, long limit) throws IOException, AEADBadTagException {
         this.cipher.init(false, new ParametersWithIV(new KeyParameter(key), nonce));
-        byte[] computedMac = new byte[16], receivedMac = new byte[16], readBuf
-                = new byte[BUFFER_SIZE], chachaBuf = new byte[BUFFER_SIZE];
+        final int capacity = BUFFER_SIZE + TAG_BYTES;
+        final byte[] computedMac = new byte[TAG_BYTES], receivedMac = new byte[TAG_BYTES],
+                ring = new byte[capacity], chachaBuf = new byte[BUFFER_SIZE];
         initMAC(cipher);
 
-        int r = 0;
-        while ((r = input.read(readBuf)) != -1) {
-            if (r == BUFFER_SIZE) {
-                // use C in whole to update the MAC and decrypt
-                updateMAC(readBuf, 0, r);
-                cipher.processBytes(readBuf, 0, r, chachaBuf, 0);
-                output.write(chachaBuf, 0, r);
-            } else {
-                // use all but the last 16 bytes from C to update the MAC and decrypt
-                updateMAC(Arrays.copyOfRange(readBuf, 0, r - 16), 0, r - 16);
-                cipher.processBytes(Arrays.copyOfRange(readBuf, 0, r - 16), 0,
-                        r - 16, chachaBuf, 0);
-                output.write(chachaBuf, 0, r - 16);
-
-                // copy the last 16 bytes as the original MAC
-                receivedMac = Arrays.copyOfRange(readBuf, r - 16, r);
+        // ring[head] is the oldest byte held, count the number of bytes held
+        int head = 0, count = 0;
+        long remaining = limit, len = 0;
+
+        while (remaining > 0) {
+            // reading into the free space following the held bytes
+            int tail = (head + count) % capacity,
+                    free = Math.min(capacity - count, tail >= head ? capacity - tail : head - tail),
+                    r = input.read(ring, tail, (int) Math.min(free, remaining));
+            if (r < 0) {
+                break;
+            }
+            ParallelGCM.checkInterrupted();
+            count += r;
+            remaining -= r;
+
+            // processing everything but the last 16 bytes, in at most 2 runs
+            while (count > TAG_BYTES) {
+                int n = Math.min(count - TAG_BYTES, capacity - head);
+                mac.update(ring, head, n);
+                cipher.processBytes(ring, head, n, chachaBuf, 0);
+                output.write(chachaBuf, 0, n);
+                head = (head + n) % capacity;
+                count -= n;
+                len += n;
             }
         }
 
+        if (count < TAG_BYTES) {
+            throw new EOFException();
+        }
+
+        // copying the held bytes, which are the tag
+        int n = Math.min(TAG_BYTES, capacity - head);
+        System.arraycopy(ring, head, receivedMac, 0, n);
+        System.arraycopy(ring, 0, receivedMac, n, TAG_BYTES - n);
+
         // check if the two MACs match
-        mac.doFinal(computedMac, 0);
+        finishMAC(len, computedMac);
         if (!Arrays.constantTimeAreEqual(computedMac, receivedMac)) {
-            throw new TlsFatalAlert(AlertDescription.bad_record_mac);
+            throw new AEADBadTagException();
         }
+
+        return len;
     }
 
     /**
-     * Initializes Poly1305 with the given instance of ChaCha20Engine
+     * Initializes Poly1305 with the first block of the keystream of the given
+     * instance of ChaCha7539Engine, which then starts at block 1
      *
      * @param cipher
      */
-    private void initMAC(ChaChaEngine cipher) {
+    private void initMAC(ChaCha7539Engine cipher) {
         byte[] firstBlock = new byte[64];
         cipher.processBytes(firstBlock, 0, firstBlock.length, firstBlock, 0);
 
-        // NOTE: The BC implementation puts 'r' after 'k'
-        System.arraycopy(firstBlock, 0, firstBlock, 32, 16);
-        KeyParameter macKey = new KeyParameter(firstBlock, 16, 32);
-        Poly1305KeyGenerator.clamp(macKey.getKey());
-        mac.init(macKey);
+        // r followed by s, clamped by Poly1305
+        mac.init(new KeyParameter(firstBlock, 0, 32));
+        Arrays.fill(firstBlock, (byte) 0);
     }
 
     /**
-     * Updates the state of Poly1305
+     * Pads the ciphertext to a multiple of 16 bytes, authenticates the lengths
+     * of the (empty) associated data and of the ciphertext, and computes the
+     * tag
      *
-     * @param buf array containing the input
-     * @param off the index in the array the data begins at
-     * @param len length of the input starting at off
+     * @param len size of the ciphertext, in bytes
+     * @param tag array to write the tag into
      */
-    private void updateMAC(byte[] buf, int off, int len) {
-        mac.update(buf, off, len);
+    private void finishMAC(long len, byte[] tag) {
+        int pad = (int) (len % TAG_BYTES);
+        if (pad != 0) {
+            mac.update(ZEROES, 0, TAG_BYTES - pad);
+        }
 
-        byte[] longLen = Pack.longToLittleEndian(len & 0xFFFFFFFFL);
-        mac.update(longLen, 0, longLen.length);
+        byte[] lengths = new byte[16];
+        Pack.longToLittleEndian(len, lengths, 8);
+        mac.update(lengths, 0, lengths.length);
+        mac.doFinal(tag, 0);
     }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.crypto;
+
+/**
+ * Progress of a resumable transfer, persisted between attempts
+ * <p>
+ * Only the header, the number of completed chunks and, for uploads, a hash of
+ * the plaintext of every chunk sent are recorded: K2 is recovered from the
+ * header with the session master key, hence no key material ever reaches the
+ * disk. The hashes make sure that a chunk is only ever encrypted again under
+ * the same key and nonce if its plaintext did not change.
+ *
+ * @author LamaGuy
+ */
+public interface Checkpoint {
+
+    /**
+     * @return header of the interrupted transfer, version byte included, or
+     * null if there is none
+     */
+    byte[] getHeader();
+
+    /**
+     * @return number of chunks completed by the interrupted transfer
+     */
+    long getChunks();
+
+    /**
+     * Records the header of a transfer starting from the first chunk
+     *
+     * @param header file header, version byte included
+     */
+    void start(byte[] header);
+
+    /**
+     * Records the number of completed chunks
+     * <p>
+     * For downloads, the chunks must have reached the disk beforehand.
+     *
+     * @param chunks number of chunks completed
+     */
+    void update(long chunks);
+
+    /**
+     * Records the SHA-256 hash of the plaintext of an uploaded chunk, before
+     * the chunk is sent
+     * <p>
+     * If the hash cannot be recorded, the header must be dropped so that the
+     * next attempt starts over with a new one.
+     *
+     * @param index chunk index, chunks being recorded in order
+     * @param hash hash of the plaintext of the chunk
+     */
+    void record(long index, byte[] hash);
+
+    /**
+     * @return number of chunks whose hash has been recorded since the
+     * header was
+     */
+    long getHashCount();
+
+    /**
+     * @param index chunk index, lower than {@link #getHashCount()}
+     * @return recorded hash of the plaintext of the chunk, or null if it
+     * cannot be read
+     */
+    byte[] getHash(long index);
+}
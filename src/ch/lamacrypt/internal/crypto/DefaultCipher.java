@@ -13,6 +13,7 @@
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -45,6 +46,10 @@ public abstract class DefaultCipher {
      */
     public static void setEncryptionPassword(char[] pass) {
         encPass = pass;
+        MasterKey.clear();
+        if (Settings.getVersion() != 0x00) {
+            MasterKey.preload(getScryptFactor());
+        }
     }
 
     /**
@@ -59,16 +64,22 @@ protected static char[] getEncryptionPassword() {
     }
 
     /**
-     * Overwrites the char array containing the encryption password multiple
-     * times to prevent its extraction/recovery from memory
+     * Overwrites the char array containing the encryption password, as well as
+     * every tracked secret buffer, to prevent their extraction/recovery from
+     * memory
      */
     public static void sanitizeKey() {
         GPCrypto.sanitize(encPass);
+        MasterKey.clear();
+        Zeroizer.wipeAll();
     }
 
     public static void setScryptFactor(int N) {
         switch (Settings.getVersion()) {
             case 0x00:
+            case 0x01:
+            case 0x02:
+            case 0x03:
                 GCMCipher.setK1N(N);
                 break;
         }
@@ -79,6 +90,9 @@ public static int getScryptFactor() {
         
         switch (Settings.getVersion()) {
             case 0x00:
+            case 0x01:
+            case 0x02:
+            case 0x03:
                 N = GCMCipher.getK1N();
                 break;
             default:
@@ -89,6 +103,51 @@ public static int getScryptFactor() {
         return N;
     }
 
+    /**
+     * Selects the encryption scheme version used for uploads according to the
+     * <code>engine</code> entry of the config file
+     * <p>
+     * By default, uploads use the v01 scheme, which derives K1 from the cached
+     * session master key. Only v00 can be read by clients predating v01. The
+     * other schemes must be selected explicitly, once the server accepts their
+     * version byte: <code>gcm</code> selects v02 (chunked AES-GCM) and
+     * <code>chacha</code> selects v03 (ChaCha20-Poly1305). <code>auto</code>
+     * measures both in a background thread and selects v03 if it is faster
+     * than v02 would be on every core, so that machines without hardware AES
+     * support end up on ChaCha20, else keeps the current version. A failed
+     * measurement keeps the current version as well.
+     * <p>
+     * In every case, the AES-GCM provider is selected in the background, see
+     * {@link GCMProvider}.
+     */
+    public static void selectEngine() {
+        switch (Settings.getEngine()) {
+            case "gcm":
+                Settings.setVersion((byte) 0x02);
+                break;
+            case "chacha":
+                Settings.setVersion((byte) 0x03);
+                break;
+        }
+
+        Thread t = new Thread(() -> {
+            String provider = GCMProvider.get();
+            if (Settings.getEngine().equals("auto")) {
+                try {
+                    double gcm = EngineProbe.measureGCM(provider) * Runtime.getRuntime().availableProcessors(),
+                            chacha = EngineProbe.measureChaCha();
+                    if (chacha > gcm) {
+                        Settings.setVersion((byte) 0x03);
+                    }
+                } catch (IOException | GeneralSecurityException ex) {
+                    // keeping the current version
+                }
+            }
+        }, "EngineProbe");
+        t.setDaemon(true);
+        t.start();
+    }
+
     /**
      * Sets the DataStreams to be used by the *Cipher classes
      *
@@ -110,6 +169,8 @@ public static void init(DataOutputStream dos, DataInputStream dis) {
      * @param version encryption scheme version of the header
      * @param header file header
      * @return string representation of the second secret key (K2)
+     * @throws IOException if the thread is interrupted while the master key
+     * is derived
      * @throws NoSuchAlgorithmException
      * @throws NoSuchPaddingException
      * @throws InvalidAlgorithmParameterException
@@ -117,12 +178,15 @@ public static void init(DataOutputStream dos, DataInputStream dis) {
      * @throws IllegalBlockSizeException
      * @throws BadPaddingException
      */
-    public static String getKey(int version, byte[] header) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    public static String getKey(int version, byte[] header) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
         String key;
 
         switch (version) {
             case 0x00:
-                key = GCMCipher.getKey_V00(header);
+            case 0x01:
+            case 0x02:
+            case 0x03:
+                key = GCMCipher.getKey((byte) version, header);
                 break;
             default:
                 key = "error";
@@ -165,20 +229,94 @@ public static String getKey(int version, byte[] header) throws NoSuchAlgorithmEx
      * @throws java.security.NoSuchProviderException if Bouncy Castle cannot be
      * used
      * @throws javax.crypto.NoSuchPaddingException if the padding is invalid
+     * @throws java.security.GeneralSecurityException if a chunk could not be
+     * encrypted
+     */
+    public static int encrypt(File input) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, ClassNotFoundException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, GeneralSecurityException {
+        return encrypt(input, dos, dis, null);
+    }
+
+    /**
+     * Encrypts a given file with the encryption scheme version that is
+     * currently enforced, over the given I/O server connection
+     *
+     * @param input file to encrypt
+     * @param dos stream to the I/O server
+     * @param dis stream from the I/O server
+     * @param status receives the job status, may be null
+     * @return reply code from the I/O server
+     * @throws java.io.IOException if an I/O error occurs
+     * @throws java.security.GeneralSecurityException see
+     * {@link #encrypt(File)}
+     * @throws java.lang.ReflectiveOperationException see
+     * {@link #encrypt(File)}
      */
-    public static int encrypt(File input) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, ClassNotFoundException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException {
+    public static int encrypt(File input, DataOutputStream dos, DataInputStream dis, StatusListener status) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, ClassNotFoundException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, GeneralSecurityException {
         int reply = -1;
 
         switch (Settings.getVersion()) {
             case 0x00:
-                GCMCipher gcm = new GCMCipher(dos, dis);
+                GCMCipher gcm = new GCMCipher(dos, dis, status);
                 reply = gcm.encrypt_V00(input);
                 break;
+            case 0x01:
+                gcm = new GCMCipher(dos, dis, status);
+                reply = gcm.encrypt_V01(input);
+                break;
+            case 0x02:
+                gcm = new GCMCipher(dos, dis, status);
+                reply = gcm.encrypt_V02(input);
+                break;
+            case 0x03:
+                gcm = new GCMCipher(dos, dis, status);
+                reply = gcm.encrypt_V03(input);
+                break;
         }
 
         return reply;
     }
 
+    /**
+     * Encrypts a given file with the current encryption scheme, without
+     * reading the reply of the server, see
+     * {@link ch.lamacrypt.internal.network.IOChannel#uploadBatch}
+     * <p>
+     * The v00 scheme, which runs scrypt for every file, cannot be used.
+     *
+     * @param input file to encrypt
+     * @param dos stream to the I/O server
+     * @param status receives the job status, may be null
+     * @throws java.io.IOException if an I/O error occurs
+     * @throws java.security.GeneralSecurityException see
+     * {@link #encrypt(File)}
+     * @throws java.lang.ReflectiveOperationException see
+     * {@link #encrypt(File)}
+     */
+    public static void encryptFrame(File input, DataOutputStream dos, StatusListener status) throws IOException, GeneralSecurityException, ReflectiveOperationException {
+        new GCMCipher(dos, null, status).send(input, Settings.getVersion());
+    }
+
+    /**
+     * Encrypts a given file following the v02 encryption scheme, whose
+     * independently authenticated chunks allow an interrupted upload to be
+     * resumed
+     *
+     * @param input file to encrypt
+     * @param dos stream to the I/O server
+     * @param dis stream from the I/O server
+     * @param checkpoint progress of the upload
+     * @param status receives the job status, may be null
+     * @return reply code from the I/O server
+     * @throws java.io.IOException if an I/O error occurs
+     * @throws java.security.GeneralSecurityException see
+     * {@link #encrypt(File)}
+     * @throws java.lang.ReflectiveOperationException see
+     * {@link #encrypt(File)}
+     */
+    public static int encryptResumable(File input, DataOutputStream dos, DataInputStream dis, Checkpoint checkpoint, StatusListener status) throws IOException, GeneralSecurityException, ReflectiveOperationException {
+        return new GCMCipher(dos, dis, status).encryptResumable_V02(input, checkpoint);
+    }
+
     /**
      * Decrypts a given file
      *
@@ -214,26 +352,118 @@ public static int encrypt(File input) throws IOException, InvalidKeyException, I
      * @throws javax.crypto.NoSuchPaddingException if the padding is invalid
      */
     public static int decrypt(File output) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, ClassNotFoundException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException {
+        return decrypt(output, dos, dis, null);
+    }
+
+    /**
+     * Decrypts a given file, received over the given I/O server connection
+     *
+     * @param output output file
+     * @param dos stream to the I/O server
+     * @param dis stream from the I/O server
+     * @param status receives the job status, may be null
+     * @return reply code from the server
+     * @throws java.io.IOException if an I/O error occurs
+     * @throws java.security.GeneralSecurityException see
+     * {@link #decrypt(File)}
+     * @throws java.lang.ReflectiveOperationException see
+     * {@link #decrypt(File)}
+     */
+    public static int decrypt(File output, DataOutputStream dos, DataInputStream dis, StatusListener status) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, ClassNotFoundException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException {
         final byte VERSION = (byte) dis.read();
         int reply = -2;
 
         switch (VERSION) {
             case 0x00:
-                GCMCipher gcm = new GCMCipher(dos, dis);
+                GCMCipher gcm = new GCMCipher(dos, dis, status);
                 reply = gcm.decrypt_V00(output);
+                break;
+            case 0x01:
+                gcm = new GCMCipher(dos, dis, status);
+                reply = gcm.decrypt_V01(output);
+                break;
+            case 0x02:
+                gcm = new GCMCipher(dos, dis, status);
+                reply = gcm.decrypt_V02(output);
+                break;
+            case 0x03:
+                gcm = new GCMCipher(dos, dis, status);
+                reply = gcm.decrypt_V03(output);
+                break;
+        }
+
+        return reply;
+    }
+
+    /**
+     * Decrypts a given file, resuming the download recorded by the given
+     * checkpoint when the file follows the v02 encryption scheme
+     *
+     * @param output output file
+     * @param dos stream to the I/O server
+     * @param dis stream from the I/O server
+     * @param checkpoint progress of the download
+     * @param status receives the job status, may be null
+     * @return reply code from the server
+     * @throws java.io.IOException if an I/O error occurs
+     * @throws java.security.GeneralSecurityException see
+     * {@link #decrypt(File)}
+     * @throws java.lang.ReflectiveOperationException see
+     * {@link #decrypt(File)}
+     */
+    public static int decryptResumable(File output, DataOutputStream dos, DataInputStream dis, Checkpoint checkpoint, StatusListener status) throws IOException, GeneralSecurityException, ReflectiveOperationException {
+        final byte VERSION = (byte) dis.read();
+        int reply = -2;
+
+        switch (VERSION) {
+            case 0x00:
+            case 0x01:
+            case 0x02:
+            case 0x03:
+                GCMCipher gcm = new GCMCipher(dos, dis, status);
+                reply = gcm.decryptResumable(VERSION, output, checkpoint);
+                break;
         }
 
         return reply;
     }
 
     public static int decryptShare(String key, File output) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, ClassNotFoundException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException {
+        return decryptShare(key, output, dos, dis, null);
+    }
+
+    /**
+     * Decrypts a shared file, received over the given I/O server connection
+     *
+     * @param key share key
+     * @param output output file
+     * @param dos stream to the I/O server
+     * @param dis stream from the I/O server
+     * @param status receives the job status, may be null
+     * @return reply code from the server
+     * @throws java.io.IOException if an I/O error occurs
+     * @throws java.security.GeneralSecurityException see
+     * {@link #decrypt(File)}
+     * @throws java.lang.ReflectiveOperationException see
+     * {@link #decrypt(File)}
+     */
+    public static int decryptShare(String key, File output, DataOutputStream dos, DataInputStream dis, StatusListener status) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, ClassNotFoundException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException {
         int reply;
 
         switch (dis.read()) {
             case 0x00:
-                GCMCipher gcm = new GCMCipher(dos, dis);
+            case 0x01:
+                GCMCipher gcm = new GCMCipher(dos, dis, status);
                 reply = gcm.decryptshare_V00(key, output);
                 break;
+            case 0x02:
+                gcm = new GCMCipher(dos, dis, status);
+                reply = gcm.decryptshare_V02(key, output);
+                break;
+            case 0x03:
+                gcm = new GCMCipher(dos, dis, status);
+                reply = gcm.decryptshare_V03(key, output);
+                break;
             default:
                 reply = -2;
                 break;
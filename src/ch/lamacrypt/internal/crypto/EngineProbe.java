@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Measures the single-core throughput of the available payload ciphers, on
+ * random data held in memory
+ * <p>
+ * Each measurement is repeated a few times so that the JIT compiler has a
+ * chance to kick in, and the best run is kept.
+ *
+ * @author LamaGuy
+ */
+abstract class EngineProbe {
+
+    private static final int SAMPLE_BYTES = 2097152,
+            RUNS = 12;
+    private static final OutputStream SINK = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * Measures the throughput of AES-256-GCM, as used by the v02 scheme
+     *
+     * @param provider name of the provider to measure
+     * @return throughput, in bytes per nanosecond
+     * @throws GeneralSecurityException if the cipher is not available
+     */
+    protected static double measureGCM(String provider) throws GeneralSecurityException {
+        final byte[] data = GPCrypto.randomGen(SAMPLE_BYTES),
+                out = new byte[SAMPLE_BYTES + ParallelGCM.TAG_BYTES];
+        final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding", provider);
+        final SecretKeySpec key = new SecretKeySpec(GPCrypto.randomGen(32), "AES");
+        long best = Long.MAX_VALUE;
+
+        for (int i = 0; i < RUNS; i++) {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, GPCrypto.randomGen(12)));
+            long start = System.nanoTime();
+            cipher.doFinal(data, 0, data.length, out, 0);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return (double) SAMPLE_BYTES / Math.max(1L, best);
+    }
+
+    /**
+     * Measures the throughput of ChaCha20-Poly1305, as used by the v03 scheme
+     *
+     * @return throughput, in bytes per nanosecond
+     * @throws IOException never, the data is held in memory
+     */
+    protected static double measureChaCha() throws IOException {
+        final byte[] data = GPCrypto.randomGen(SAMPLE_BYTES),
+                key = GPCrypto.randomGen(32);
+        final CPCipher cipher = new CPCipher();
+        long best = Long.MAX_VALUE;
+
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            cipher.encrypt(key, GPCrypto.randomGen(12), new ByteArrayInputStream(data), SINK);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return (double) SAMPLE_BYTES / Math.max(1L, best);
+    }
+}
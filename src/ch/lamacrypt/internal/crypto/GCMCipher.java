@@ -12,14 +12,19 @@
 import ch.lamacrypt.internal.network.NTP;
 import ch.lamacrypt.visual.DefaultFrame;
 import ch.lamacrypt.visual.DownloadFrame;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -30,10 +35,10 @@
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import javax.xml.bind.DatatypeConverter;
-import org.bouncycastle.crypto.generators.SCrypt;
 import org.bouncycastle.util.encoders.Hex;
 
 /**
@@ -43,7 +48,22 @@
  * Contains methods for the following encryption schemes:
  * <ul>
  * <li>v00</li>
+ * <li>v01</li>
+ * <li>v02</li>
+ * <li>v03</li>
  * </ul>
+ * <p>
+ * v01 shares the header layout of v00, except that the 64 bytes of S1 are
+ * split between the salt of the session master key and a per-file salt. K1 is
+ * then derived from the cached master key with HKDF instead of running scrypt
+ * for every file, and K2 is derived from R with HKDF as well since R is a
+ * uniformly random value.
+ * <p>
+ * v02 uses the v01 header, but encrypts the file as independently
+ * authenticated chunks, see {@link ParallelGCM}.
+ * <p>
+ * v03 uses the v01 header as well, but encrypts the file with
+ * ChaCha20-Poly1305 instead of AES-GCM, see {@link CPCipher}.
  *
  * @author LamaGuy
  */
@@ -55,9 +75,13 @@ public final class GCMCipher {
             GCM_NONCE_BYTES = 12,
             GCM_TAG_BITS = 128,
             Sk_BYTES = 64,
+            Sf_BYTES = Sk_BYTES - MasterKey.SALT_BYTES,
             Sn_BYTES = 6,
             R_BYTES = 64,
-            BUFFER_SIZE = 8192,
+            MIN_BUFFER_SIZE = 65536,
+            MAX_BUFFER_SIZE = 8388608,
+            ADAPT_WINDOW = 33554432,
+            SHARE_CHECK_BYTES = 8192,
             KDF_r = 8,
             KDF_p = 1,
             VS1 = Sk_BYTES,
@@ -67,18 +91,27 @@ public final class GCMCipher {
             RS2 = K1NR + Sk_BYTES,
             S2N2 = RS2 + GCM_NONCE_BYTES,
             N2K2N = S2N2 + 1,
+            HEADER_BYTES = N2K2N,
             AEAD_EXCEPTION = 4;
+    private static final long CHECKPOINT_INTERVAL = 1000;
+    private static final byte[] K1_INFO = "LamaCrypt v01 K1".getBytes(),
+            K2_INFO = "LamaCrypt v01 K2".getBytes();
 
     private static int K1_KDF_N = 21,
             K2_KDF_N = 19,
-            intFileCnt = 0;
+            intFileCnt = 0,
+            adaptiveSize = MIN_BUFFER_SIZE;
 
-    private final byte[] buf = new byte[BUFFER_SIZE];
     private final DataOutputStream dos;
     private final DataInputStream dis;
-    private final Cipher cipher;
+    private final Cipher cipher,
+            encCipher;
+    private final boolean adaptive;
+    private final StatusListener status;
+    private final Progress progress;
 
-    private int r;
+    private byte[] buf,
+            out;
 
     /**
      * Sets the new CPU/RAM cost parameter for scrypt when deriving K1, read as
@@ -101,6 +134,25 @@ protected static int getK1N() {
         return GCMCipher.K1_KDF_N;
     }
 
+    /**
+     * Returns the buffer size the adaptive mode settled on during the previous
+     * transfers, which is where the next transfer starts from
+     *
+     * @return buffer size, in bytes
+     */
+    private static synchronized int getAdaptiveSize() {
+        return adaptiveSize;
+    }
+
+    /**
+     * Records the buffer size the adaptive mode settled on
+     *
+     * @param size buffer size, in bytes
+     */
+    private static synchronized void setAdaptiveSize(int size) {
+        adaptiveSize = size;
+    }
+
     /**
      * Sets the new CPU/RAM cost parameter for scrypt when deriving K2, read as
      * a power of two
@@ -119,6 +171,9 @@ protected static void setK2N(int N) {
      *
      * @param dis
      * @param dos
+     * @param status receives the job status, or null to report it to the
+     * first row of the file queue (if logged) or to the DownloadFrame (if
+     * unlogged)
      * @throws java.lang.ClassNotFoundException if the class
      * javax.crypto.JceSecurity does not exist
      * @throws java.lang.NoSuchFieldException if the field isRestricted does not
@@ -131,17 +186,27 @@ protected static void setK2N(int N) {
      * @throws javax.crypto.NoSuchPaddingException
      *
      */
-    protected GCMCipher(DataOutputStream dos, DataInputStream dis) throws ClassNotFoundException, NoSuchFieldException, IllegalAccessException, NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException {
-        // instantiating AES-256 w/ GCM from Bouncy Castle
+    protected GCMCipher(DataOutputStream dos, DataInputStream dis, StatusListener status) throws ClassNotFoundException, NoSuchFieldException, IllegalAccessException, NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException {
+        // instantiating AES-256 w/ GCM from Bouncy Castle, which is the only
+        // provider known to release the plaintext while streaming decryption,
+        // and from the fastest conformant provider for encryption
         this.cipher = Cipher.getInstance(CIPHER, CRYPTO_PROVIDER);
+        this.encCipher = GCMProvider.getInstance();
 
         // settings the I/O streams
         this.dos = dos;
         this.dis = dis;
+        this.status = status;
+        this.progress = progressOf(status);
+
+        // allocating the I/O buffers
+        this.adaptive = Settings.getBufferSize() == 0;
+        allocateBuffers(adaptive ? getAdaptiveSize() : Settings.getBufferSize());
     }
 
     /**
-     * Encrypts a given file with AES-256 in GCM mode of operation
+     * Encrypts a given file with AES-256 in GCM mode of operation, following
+     * the v00 encryption scheme
      * <p>
      * Reads data from the InputStream and writes the encrypted data to the
      * OutputStream
@@ -155,26 +220,21 @@ protected GCMCipher(DataOutputStream dos, DataInputStream dis) throws ClassNotFo
      * @throws javax.crypto.IllegalBlockSizeException
      */
     protected int encrypt_V00(File inputFile) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
-        DefaultFrame.setFileQueueItemStatus("Generating header");
+        updateStatus("Generating header");
 
         // getting the encryption password
         char[] pass = DefaultCipher.getEncryptionPassword();
         // generating Sx, Nx, R, Kx
+        final byte[][] nonces = generateNonces();
         final byte[] Sk1 = GPCrypto.randomGen(Sk_BYTES),
                 Sk2 = GPCrypto.randomGen(Sk_BYTES),
-                Sn1 = GPCrypto.randomGen(Sn_BYTES),
-                Sn2 = GPCrypto.randomGen(Sn_BYTES),
-                byteFileCnt = GPCrypto.intToByteArray(intFileCnt),
-                epoch = DatatypeConverter.parseHexBinary(Long.toHexString(NTP.getTime() / 1000)),
-                N1 = new byte[]{Sn1[0], Sn1[1], Sn1[2], Sn1[3], Sn1[4], Sn1[5], byteFileCnt[0],
-                    byteFileCnt[1], epoch[0], epoch[1], epoch[2], epoch[3]},
-                N2 = new byte[]{Sn2[0], Sn2[1], Sn2[2], Sn2[3], Sn1[4], Sn1[5], byteFileCnt[0],
-                    (byte) (byteFileCnt[1] + 0x01), epoch[0], epoch[1], epoch[2], (byte) (epoch[3] + 0x01)},
+                N1 = nonces[0],
+                N2 = nonces[1],
                 R = GPCrypto.randomGen(R_BYTES);
-        final SecretKey K1 = new SecretKeySpec(SCrypt.generate(GPCrypto.charToByte(pass),
+        final SecretKey K1 = new SecretKeySpec(KDFScheduler.scrypt(GPCrypto.charToByte(pass),
                 Sk1, (int) Math.pow(2, K1_KDF_N), KDF_r, KDF_p, CIPHER_KEY_BITS / 8), 0,
                 CIPHER_KEY_BITS / 8, "AES"),
-                K2 = new SecretKeySpec(SCrypt.generate(R, Sk2, (int) Math.pow(2, K2_KDF_N),
+                K2 = new SecretKeySpec(KDFScheduler.scrypt(R, Sk2, (int) Math.pow(2, K2_KDF_N),
                         KDF_r, KDF_p, CIPHER_KEY_BITS / 8), 0, CIPHER_KEY_BITS / 8, "AES");
 
         // writing header
@@ -190,66 +250,300 @@ protected int encrypt_V00(File inputFile) throws IOException, InvalidKeyExceptio
         dos.write(DatatypeConverter.parseHexBinary(Integer.toHexString(K2_KDF_N)));
 
         // encrypting file
-        DefaultFrame.setFileQueueItemStatus("Uploading (0%)");
-        this.cipher.init(Cipher.ENCRYPT_MODE, K2, new GCMParameterSpec(
-                GCM_TAG_BITS, N2, 0, GCM_NONCE_BYTES));
-        long fileSize = inputFile.length(),
-                percentage = fileSize / 100L,
-                bytesRead = 0L,
-                iterCnt;
-
-        // defining input stream and
-        InputStream input = new FileInputStream(inputFile);
-
-        if (fileSize < BUFFER_SIZE) {
-            r = input.read(buf, 0, (int) fileSize);
-            dos.write(this.cipher.doFinal(buf, 0, r));
-        } else if (fileSize % BUFFER_SIZE == 0) {
-            iterCnt = (fileSize / BUFFER_SIZE) - 1;
-
-            for (long i = 0; i < iterCnt; i++) {
-                input.read(buf);
-                dos.write(this.cipher.update(buf));
-
-                bytesRead += BUFFER_SIZE;
-                if (bytesRead % percentage > 1) {
-                    updateStatus("Uploading (" + bytesRead / percentage + "%)");
-                }
+        encryptPayload(inputFile, K2, N2);
+
+        // cleaning up
+        GPCrypto.eraseByteArrays(Sk1, Sk2, N1, N2, R);
+        GPCrypto.eraseKeys(K1, K2);
+        GPCrypto.sanitize(pass);
+
+        return dis.readInt();
+    }
+
+    /**
+     * Encrypts a given file with AES-256 in GCM mode of operation, following
+     * the v01 encryption scheme
+     * <p>
+     * K1 is derived from the session master key with HKDF, so that no scrypt
+     * invocation happens per file once the master key has been derived.
+     *
+     * @param inputFile
+     * @return
+     * @throws java.io.IOException
+     * @throws java.security.InvalidKeyException
+     * @throws java.security.InvalidAlgorithmParameterException
+     * @throws javax.crypto.BadPaddingException
+     * @throws javax.crypto.IllegalBlockSizeException
+     */
+    protected int encrypt_V01(File inputFile) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        send_V01(inputFile);
+        return dis.readInt();
+    }
+
+    private void send_V01(File inputFile) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        final byte[][] params = writeHeader((byte) 0x01);
+        final byte[] K2_bytes = params[0],
+                N2 = params[1];
+        final SecretKey K2 = new SecretKeySpec(K2_bytes, "AES");
+
+        // encrypting file
+        encryptPayload(inputFile, K2, N2);
+
+        // cleaning up
+        GPCrypto.eraseByteArrays(K2_bytes, N2);
+        GPCrypto.eraseKeys(K2);
+    }
+
+    /**
+     * Encrypts a given file with AES-256 in GCM mode of operation, following
+     * the v02 encryption scheme
+     * <p>
+     * The header is the same as in v01, but the file is split into
+     * independently authenticated chunks which are encrypted in parallel.
+     *
+     * @param inputFile
+     * @return
+     * @throws java.io.IOException
+     * @throws java.security.GeneralSecurityException
+     */
+    protected int encrypt_V02(File inputFile) throws IOException, GeneralSecurityException {
+        send_V02(inputFile);
+        return dis.readInt();
+    }
+
+    private void send_V02(File inputFile) throws IOException, GeneralSecurityException {
+        final byte[][] params = writeHeader((byte) 0x02);
+        final byte[] K2_bytes = params[0],
+                N2 = params[1];
+        final SecretKey K2 = new SecretKeySpec(K2_bytes, "AES");
+
+        // encrypting file
+        final long size = inputFile.length();
+        progress.start("Uploading", 0, size);
+        new ParallelGCM(K2, N2).encrypt(inputFile, 0, dos, (done, total) -> setChunks(done, size), null);
+        updateStatus("Finalizing");
+
+        // cleaning up
+        GPCrypto.eraseByteArrays(K2_bytes, N2);
+        GPCrypto.eraseKeys(K2);
+    }
+
+    /**
+     * Encrypts a given file following the v01, v02 or v03 encryption scheme,
+     * without reading the reply of the server, so that several files can be
+     * sent back-to-back in a batch
+     *
+     * @param inputFile
+     * @param version encryption scheme version
+     * @throws java.io.IOException
+     * @throws java.security.GeneralSecurityException
+     */
+    protected void send(File inputFile, byte version) throws IOException, GeneralSecurityException {
+        switch (version) {
+            case 0x01:
+                send_V01(inputFile);
+                break;
+            case 0x02:
+                send_V02(inputFile);
+                break;
+            case 0x03:
+                send_V03(inputFile);
+                break;
+            default:
+                throw new IllegalArgumentException("encryption scheme v0" + version + " cannot be batched");
+        }
+    }
+
+    /**
+     * Encrypts a given file following the v02 encryption scheme, resuming
+     * the upload recorded by the given checkpoint if any
+     * <p>
+     * The header is sent first, the server then replies with the number of
+     * chunks it already holds for this header, and only the following chunks
+     * are sent. If the header of the checkpoint cannot be decrypted anymore,
+     * e.g. because the encryption password changed, or if the plaintext of a
+     * chunk already sent changed, a new one is generated.
+     *
+     * @param inputFile
+     * @param checkpoint progress of the upload
+     * @return
+     * @throws java.io.IOException
+     * @throws java.security.GeneralSecurityException
+     */
+    protected int encryptResumable_V02(File inputFile, Checkpoint checkpoint) throws IOException, GeneralSecurityException {
+        byte[] header = checkpoint.getHeader(),
+                K2_bytes = null,
+                N2 = null;
+
+        if (header != null && header.length == HEADER_BYTES + 1 && header[0] == 0x02) {
+            updateStatus("Resuming");
+            try {
+                K2_bytes = recoverK2(this.cipher, header[0], Arrays.copyOfRange(header, 1, header.length));
+                N2 = Arrays.copyOfRange(header, RS2 + 1, S2N2 + 1);
+            } catch (BadPaddingException ex) {
+                K2_bytes = null;
+            }
+            // the chunks sent by the interrupted upload are encrypted again
+            // under the same key and nonces, which is only allowed if their
+            // plaintext did not change
+            if (K2_bytes != null && !ParallelGCM.verify(inputFile, checkpoint)) {
+                GPCrypto.eraseByteArrays(K2_bytes, N2);
+                K2_bytes = null;
             }
+        }
+        if (K2_bytes == null) {
+            final byte[][] params = createHeader((byte) 0x02);
+            header = params[0];
+            K2_bytes = params[1];
+            N2 = params[2];
+            checkpoint.start(header);
+        }
+        final SecretKey K2 = new SecretKeySpec(K2_bytes, "AES");
 
-            input.read(buf);
-            dos.write(this.cipher.doFinal(buf));
-        } else {
-            iterCnt = fileSize / BUFFER_SIZE;
+        try {
+            dos.write(header);
+            dos.flush();
 
-            for (long i = 0; i < iterCnt; i++) {
-                input.read(buf);
-                dos.write(this.cipher.update(buf));
+            int reply = dis.readInt();
+            if (reply != 0) {
+                return reply;
+            }
 
-                bytesRead += BUFFER_SIZE;
-                if (bytesRead % percentage > 1) {
-                    updateStatus("Uploading (" + bytesRead / percentage + "%)");
-                }
+            final long size = inputFile.length(),
+                    chunkCnt = ParallelGCM.getChunkCount(size),
+                    first = dis.readLong();
+            if (first < 0 || first > chunkCnt) {
+                throw new IOException("invalid resume offset: " + first);
             }
 
-            r = input.read(buf, 0, (int) (fileSize % BUFFER_SIZE));
-            dos.write(this.cipher.doFinal(buf, 0, r));
+            // encrypting the missing chunks
+            final long[] lastCheckpoint = {System.currentTimeMillis()};
+            progress.start("Uploading", Math.min(first * ParallelGCM.CHUNK_SIZE, size), size);
+            new ParallelGCM(K2, N2).encrypt(inputFile, first, dos, (done, total) -> {
+                setChunks(done, size);
+                if (System.currentTimeMillis() - lastCheckpoint[0] >= CHECKPOINT_INTERVAL) {
+                    checkpoint.update(done);
+                    lastCheckpoint[0] = System.currentTimeMillis();
+                }
+            }, checkpoint);
+            dos.flush();
+            checkpoint.update(chunkCnt);
+            updateStatus("Finalizing");
+
+            return dis.readInt();
+        } finally {
+            // cleaning up
+            GPCrypto.eraseByteArrays(K2_bytes, N2);
+            GPCrypto.eraseKeys(K2);
         }
+    }
+
+    /**
+     * Encrypts a given file with ChaCha20-Poly1305, following the v03
+     * encryption scheme
+     * <p>
+     * The header is the same as in v01, K2 and N2 are used as the ChaCha20 key
+     * and nonce, see {@link CPCipher}.
+     *
+     * @param inputFile
+     * @return
+     * @throws java.io.IOException
+     * @throws java.security.InvalidKeyException
+     * @throws java.security.InvalidAlgorithmParameterException
+     * @throws javax.crypto.BadPaddingException
+     * @throws javax.crypto.IllegalBlockSizeException
+     */
+    protected int encrypt_V03(File inputFile) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        send_V03(inputFile);
+        return dis.readInt();
+    }
+
+    private void send_V03(File inputFile) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        final byte[][] params = writeHeader((byte) 0x03);
+        final byte[] K2_bytes = params[0],
+                N2 = params[1];
 
+        // encrypting file
+        progress.start("Uploading", 0, inputFile.length());
+        try (InputStream input = monitor(new FileInputStream(inputFile))) {
+            new CPCipher().encrypt(K2_bytes, N2, input, dos);
+        }
         updateStatus("Finalizing");
 
         // cleaning up
-        GPCrypto.eraseByteArrays(Sk1, Sk2, epoch, N1, N2, R);
-        GPCrypto.eraseKeys(K1, K2);
-        GPCrypto.sanitize(pass);
-        input.close();
-        updateFileCnt();
+        GPCrypto.eraseByteArrays(K2_bytes, N2);
+    }
 
-        return dis.readInt();
+    /**
+     * Generates and writes a header following the v01 layout, which is shared
+     * by all the encryption schemes using the session master key
+     *
+     * @param version encryption scheme version to write in the header
+     * @return K2 and N2, in that order
+     * @throws IOException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     */
+    private byte[][] writeHeader(byte version) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        final byte[][] params = createHeader(version);
+        dos.write(params[0]);
+        return new byte[][]{params[1], params[2]};
     }
 
     /**
-     * Decrypts a given file with AES-256 in GCM mode of operation
+     * Generates a header following the v01 layout
+     *
+     * @param version encryption scheme version to write in the header
+     * @return the header, version byte included, K2 and N2, in that order
+     * @throws IOException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     */
+    private byte[][] createHeader(byte version) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        updateStatus("Generating header");
+
+        // generating Sx, Nx, R, Kx
+        final int K1_N = K1_KDF_N;
+        final byte[][] nonces = generateNonces();
+        final byte[] Smk = MasterKey.getSessionSalt(),
+                Sf = GPCrypto.randomGen(Sf_BYTES),
+                Sk2 = GPCrypto.randomGen(Sk_BYTES),
+                N1 = nonces[0],
+                N2 = nonces[1],
+                R = GPCrypto.randomGen(R_BYTES),
+                MK = MasterKey.get(Smk, K1_N),
+                K1_bytes = GPCrypto.hkdf(MK, Sf, K1_INFO, CIPHER_KEY_BITS / 8),
+                K2_bytes = GPCrypto.hkdf(R, Sk2, K2_INFO, CIPHER_KEY_BITS / 8);
+        final SecretKey K1 = new SecretKeySpec(K1_bytes, "AES");
+
+        // building header
+        this.cipher.init(Cipher.ENCRYPT_MODE, K1, new GCMParameterSpec(
+                GCM_TAG_BITS, N1, 0, GCM_NONCE_BYTES));
+        ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_BYTES + 1);
+        header.write(version);
+        header.write(Smk);
+        header.write(Sf);
+        header.write(N1);
+        header.write((byte) K1_N);
+        header.write(cipher.doFinal(R));
+        header.write(Sk2);
+        header.write(N2);
+        header.write((byte) 0x00);
+
+        // cleaning up
+        GPCrypto.eraseByteArrays(Smk, Sf, Sk2, N1, R, MK, K1_bytes);
+        GPCrypto.eraseKeys(K1);
+
+        return new byte[][]{header.toByteArray(), K2_bytes, N2};
+    }
+
+    /**
+     * Decrypts a given file with AES-256 in GCM mode of operation, following
+     * the v00 encryption scheme
      *
      * @param outputFile
      * @return
@@ -260,46 +554,113 @@ protected int encrypt_V00(File inputFile) throws IOException, InvalidKeyExceptio
      * @throws javax.crypto.IllegalBlockSizeException
      */
     protected int decrypt_V00(File outputFile) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
-        updateStatus("Reading header");
+        return decrypt((byte) 0x00, outputFile, null);
+    }
 
-        // getting file size and calculating iterCnt
-        long fileSize = dis.readLong(),
-                dlSize = fileSize + GCM_TAG_BITS / 8,
-                iterCnt = dlSize / BUFFER_SIZE,
-                percentage = dlSize / 100L,
-                bytesRead = 0L;
+    /**
+     * Decrypts a given file with AES-256 in GCM mode of operation, following
+     * the v01 encryption scheme
+     *
+     * @param outputFile
+     * @return
+     * @throws java.io.IOException
+     * @throws java.security.InvalidKeyException
+     * @throws java.security.InvalidAlgorithmParameterException
+     * @throws javax.crypto.BadPaddingException
+     * @throws javax.crypto.IllegalBlockSizeException
+     */
+    protected int decrypt_V01(File outputFile) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        return decrypt((byte) 0x01, outputFile, null);
+    }
 
-        // defining output stream
-        OutputStream output = new FileOutputStream(outputFile);
+    /**
+     * Decrypts a given file with AES-256 in GCM mode of operation, following
+     * the v02 encryption scheme
+     *
+     * @param outputFile
+     * @return
+     * @throws java.io.IOException
+     * @throws java.security.InvalidKeyException
+     * @throws java.security.InvalidAlgorithmParameterException
+     * @throws javax.crypto.BadPaddingException
+     * @throws javax.crypto.IllegalBlockSizeException
+     */
+    protected int decrypt_V02(File outputFile) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        return decrypt((byte) 0x02, outputFile, null);
+    }
 
-        // getting the encryption password
-        char[] pass = DefaultCipher.getEncryptionPassword();
+    /**
+     * Decrypts a given file with ChaCha20-Poly1305, following the v03
+     * encryption scheme
+     *
+     * @param outputFile
+     * @return
+     * @throws java.io.IOException
+     * @throws java.security.InvalidKeyException
+     * @throws java.security.InvalidAlgorithmParameterException
+     * @throws javax.crypto.BadPaddingException
+     * @throws javax.crypto.IllegalBlockSizeException
+     */
+    protected int decrypt_V03(File outputFile) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        return decrypt((byte) 0x03, outputFile, null);
+    }
+
+    /**
+     * Decrypts a given file, resuming the download recorded by the given
+     * checkpoint if any
+     * <p>
+     * Once the header has been received, the client tells the server from
+     * which chunk to send the file: the chunk following the last checkpoint
+     * if the file is a v02 one with the same header, else the first one.
+     *
+     * @param version encryption scheme version of the header
+     * @param outputFile
+     * @param checkpoint progress of the download
+     * @return
+     * @throws IOException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     */
+    protected int decryptResumable(byte version, File outputFile, Checkpoint checkpoint) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        return decrypt(version, outputFile, checkpoint);
+    }
+
+    /**
+     * Decrypts a given file with AES-256 in GCM mode of operation, recovering
+     * K2 according to the given encryption scheme version
+     *
+     * @param version encryption scheme version of the header
+     * @param outputFile
+     * @param checkpoint progress of the download, or null if the download is
+     * not resumable
+     * @return
+     * @throws IOException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     */
+    private int decrypt(byte version, File outputFile, Checkpoint checkpoint) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        updateStatus("Reading header");
+
+        // getting file size
+        long fileSize = dis.readLong(),
+                dlSize = fileSize + GCM_TAG_BITS / 8;
 
         // reading header
-        byte[] header = new byte[234];
-        dis.read(header, 0, 234);
+        byte[] header = new byte[HEADER_BYTES];
+        dis.readFully(header);
+        final byte[] N2 = Arrays.copyOfRange(header, RS2, S2N2);
 
-        // reading Sx, Nx, scrypt factors and generating K1
-        final byte[] S1 = Arrays.copyOfRange(header, 0, VS1),
-                N1 = Arrays.copyOfRange(header, VS1, S1N1),
-                K1_N = Arrays.copyOfRange(header, S1N1, N1K1N),
-                S2 = Arrays.copyOfRange(header, K1NR, RS2),
-                N2 = Arrays.copyOfRange(header, RS2, S2N2),
-                K2_N = Arrays.copyOfRange(header, S2N2, N2K2N);
-        final int K1_N_bak = (int) Math.pow(2, Integer.valueOf(Hex.toHexString(K1_N), 16)),
-                K2_N_bak = (int) Math.pow(2, Integer.valueOf(Hex.toHexString(K2_N), 16));
-        final SecretKey K1 = new SecretKeySpec(SCrypt.generate(GPCrypto.charToByte(pass),
-                S1, K1_N_bak, KDF_r, KDF_p, CIPHER_KEY_BITS / 8), 0, CIPHER_KEY_BITS / 8, "AES");
-
-        // reading E(K1, N1, R) 
-        this.cipher.init(Cipher.DECRYPT_MODE, K1, new GCMParameterSpec(
-                GCM_TAG_BITS, N1, 0, GCM_NONCE_BYTES));
+        // recovering K2 from the header
         boolean failFree = true,
                 AEADBadTag = false;
-        byte[] R = new byte[64];
+        byte[] K2_bytes = new byte[CIPHER_KEY_BITS / 8];
 
         try {
-            R = cipher.doFinal(Arrays.copyOfRange(header, N1K1N, K1NR));
+            K2_bytes = recoverK2(this.cipher, version, header);
         } catch (IllegalBlockSizeException | BadPaddingException e) {
             failFree = false;
             updateStatus("Error");
@@ -311,57 +672,58 @@ protected int decrypt_V00(File outputFile) throws IOException, InvalidKeyExcepti
         dos.writeBoolean(failFree);
         // decrypting file if no exception has been caught
         if (failFree) {
-            // generating K2
-            final SecretKey K2 = new SecretKeySpec(SCrypt.generate(R, S2, K2_N_bak,
-                    KDF_r, KDF_p, CIPHER_KEY_BITS / 8), 0, CIPHER_KEY_BITS / 8, "AES");
-
-            updateStatus("Downloading (0%)");
-            this.cipher.init(Cipher.DECRYPT_MODE, K2, new GCMParameterSpec(
-                    GCM_TAG_BITS, N2, 0, GCM_NONCE_BYTES));
-
-            if (dlSize > BUFFER_SIZE) {
-                if (dlSize % BUFFER_SIZE == 0) {
-                    iterCnt--;
+            // resuming after the last checkpoint if the file did not change
+            long first = 0;
+            byte[] fullHeader = null;
+            if (checkpoint != null) {
+                fullHeader = new byte[HEADER_BYTES + 1];
+                fullHeader[0] = version;
+                System.arraycopy(header, 0, fullHeader, 1, HEADER_BYTES);
+                if (version == 0x02 && Arrays.equals(fullHeader, checkpoint.getHeader())
+                        && outputFile.length() >= checkpoint.getChunks() * ParallelGCM.CHUNK_SIZE) {
+                    first = Math.min(checkpoint.getChunks(), ParallelGCM.getChunkCount(fileSize));
                 }
+                dos.writeLong(first);
+                dos.flush();
+            }
 
-                // reading full blocks
-                for (long i = 0; i < iterCnt; i++) {
-                    dis.readFully(buf);
-                    output.write(this.cipher.update(buf));
-
-                    bytesRead += BUFFER_SIZE;
-                    if (bytesRead % percentage > 1) {
-                        updateStatus("Downloading (" + bytesRead / percentage + "%)");
-                    }
+            // defining output stream
+            FileOutputStream output;
+            if (first > 0) {
+                try (RandomAccessFile raf = new RandomAccessFile(outputFile, "rw")) {
+                    raf.setLength(first * ParallelGCM.CHUNK_SIZE);
+                }
+                output = new FileOutputStream(outputFile, true);
+            } else {
+                output = new FileOutputStream(outputFile);
+                if (checkpoint != null) {
+                    checkpoint.start(fullHeader);
                 }
+            }
 
-                // reading last chunk
-                if (dlSize % BUFFER_SIZE != 0) {
-                    r = dis.read(buf, 0, (int) dlSize % BUFFER_SIZE);
-                    output.write(this.cipher.doFinal(buf, 0, r));
+            final SecretKey K2 = new SecretKeySpec(K2_bytes, "AES");
+            try {
+                if (version == 0x02) {
+                    progress.start("Downloading", Math.min(first * ParallelGCM.CHUNK_SIZE, fileSize), fileSize);
+                    decryptChunks(new ParallelGCM(K2, N2), fileSize, first, output, checkpoint);
+                } else if (version == 0x03) {
+                    progress.start("Downloading", 0, fileSize);
+                    new CPCipher().decrypt(K2_bytes, N2, monitor(dis), output, fileSize);
+                    updateStatus("Finalizing");
                 } else {
-                    dis.readFully(buf);
-                    output.write(this.cipher.doFinal(buf));
+                    decryptPayload(dlSize, output, K2, N2);
                 }
-            } else {
-                r = dis.read(buf, 0, (int) dlSize);
-                output.write(this.cipher.doFinal(buf, 0, r));
+            } finally {
+                // erasing cryptographic parameters and closing streams
+                GPCrypto.eraseByteArrays(header, N2, K2_bytes);
+                GPCrypto.eraseKeys(K2);
+                output.close();
             }
 
-            // erasing cryptographic parameters and closing streams
-            updateStatus("Finalizing");
-            GPCrypto.eraseByteArrays(header, S1, S2, N1, N2, R);
-            GPCrypto.eraseKeys(K1, K2);
-            GPCrypto.sanitize(pass);
-            output.close();
-
             return dis.readInt();
         } else {
-            // erasing cryptographic parameters and closing streams
-            GPCrypto.eraseByteArrays(header, S1, S2, N1, N2, R);
-            GPCrypto.eraseKeys(K1);
-            GPCrypto.sanitize(pass);
-            output.close();
+            // erasing cryptographic parameters
+            GPCrypto.eraseByteArrays(header, N2, K2_bytes);
 
             if (AEADBadTag) {
                 return AEAD_EXCEPTION;
@@ -375,38 +737,33 @@ protected int decryptshare_V00(String key, File outputFile) throws IOException,
         // defining output stream
         FileOutputStream output = new FileOutputStream(outputFile);
 
-        // getting file size and calculating iterCnt
+        // getting file size
         long fileSize = dis.readLong(),
-                dlSize = fileSize + GCM_TAG_BITS / 8,
-                iterCnt = (dlSize - BUFFER_SIZE) / BUFFER_SIZE,
-                percentage = (dlSize - BUFFER_SIZE) / 100L,
-                bytesRead = 0L;
+                dlSize = fileSize + GCM_TAG_BITS / 8;
 
         // recovering K2 and N2
         updateStatus("Reading header");
         final byte[] N2 = new byte[12];
-        dis.read(N2, 0, 12);
+        dis.readFully(N2);
         final SecretKey K2 = new SecretKeySpec(DatatypeConverter.parseHexBinary(key), 0,
                 CIPHER_KEY_BITS / 8, "AES");
 
         boolean AEADBadTag = false,
-                failFree = true,
-                done = true;
+                failFree = true;
+        // the share protocol acknowledges the key after the first 8 KB, whatever
+        // the buffer size
+        final int first = (int) Math.min(SHARE_CHECK_BYTES, dlSize);
+        final boolean done = first == dlSize;
 
         // reading first buffer
         this.cipher.init(Cipher.DECRYPT_MODE, K2, new GCMParameterSpec(
                 GCM_TAG_BITS, N2, 0, GCM_NONCE_BYTES));
-        updateStatus("Downloading (0%)");
+        progress.start("Downloading", 0, dlSize);
 
         try {
-            if (dlSize > BUFFER_SIZE) {
-                dis.readFully(buf);
-                output.write(this.cipher.update(buf));
-                done = false;
-            } else {
-                r = dis.read(buf, 0, (int) dlSize);
-                output.write(this.cipher.doFinal(buf, 0, r));
-            }
+            dis.readFully(buf, 0, first);
+            int n = done ? doFinal(this.cipher, first) : update(this.cipher, first);
+            output.write(out, 0, n);
         } catch (IOException | IllegalBlockSizeException | BadPaddingException e) {
             failFree = false;
             updateStatus("Error");
@@ -420,32 +777,9 @@ protected int decryptshare_V00(String key, File outputFile) throws IOException,
         // decrypting file if no exception has been caught
         if (failFree) {
             if (!done) {
-                if (dlSize % BUFFER_SIZE == 0) {
-                    iterCnt--;
-                }
-
-                // reading full blocks
-                for (long i = 0; i < iterCnt; i++) {
-                    dis.readFully(buf);
-                    output.write(this.cipher.update(buf));
-
-                    bytesRead += BUFFER_SIZE;
-                    if (bytesRead % percentage > 1) {
-                        updateStatus("Downloading (" + bytesRead / percentage + "%)");
-                    }
-                }
-
-                // reading last chunk
-                if (dlSize % BUFFER_SIZE != 0) {
-                    r = dis.read(buf, 0, (int) dlSize % BUFFER_SIZE);
-                    output.write(this.cipher.doFinal(buf, 0, r));
-                } else {
-                    dis.readFully(buf);
-                    output.write(this.cipher.doFinal(buf));
-                }
+                transfer(this.cipher, dis, output, dlSize, first, "Downloading");
 
                 // erasing cryptographic parameters and closing streams
-                updateStatus("Finalizing");
                 finish(N2, K2, output);
 
                 return dis.readInt();
@@ -468,69 +802,499 @@ protected int decryptshare_V00(String key, File outputFile) throws IOException,
         }
     }
 
-    protected static String getKey_V00(byte[] header) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException {
-        // getting the encryption password
-        char[] pass = DefaultCipher.getEncryptionPassword();
+    protected int decryptshare_V03(String key, File outputFile) throws IOException, BadPaddingException {
+        // defining output stream
+        FileOutputStream output = new FileOutputStream(outputFile);
+
+        // getting file size
+        long fileSize = dis.readLong(),
+                dlSize = fileSize + CPCipher.TAG_BYTES;
+
+        // recovering K2 and N2
+        updateStatus("Reading header");
+        final byte[] N2 = new byte[12],
+                K2_bytes = DatatypeConverter.parseHexBinary(key);
+        dis.readFully(N2);
+
+        // the tag can only be checked at the end of the stream
+        dos.writeBoolean(true);
 
-        // reading Sx, Nx, scrypt factors and generating K1
+        progress.start("Downloading", 0, fileSize);
+        try {
+            new CPCipher().decrypt(K2_bytes, N2, monitor(dis), output, fileSize);
+        } finally {
+            updateStatus("Finalizing");
+            GPCrypto.eraseByteArrays(N2, K2_bytes);
+            output.close();
+        }
+
+        return dlSize > SHARE_CHECK_BYTES ? dis.readInt() : 0;
+    }
+
+    protected int decryptshare_V02(String key, File outputFile) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException {
+        // defining output stream
+        FileOutputStream output = new FileOutputStream(outputFile);
+
+        // getting file size
+        long fileSize = dis.readLong(),
+                dlSize = ParallelGCM.getCiphertextSize(fileSize);
+
+        // recovering K2 and N2
+        updateStatus("Reading header");
+        final byte[] N2 = new byte[12];
+        dis.readFully(N2);
+        final SecretKey K2 = new SecretKeySpec(DatatypeConverter.parseHexBinary(key), 0,
+                CIPHER_KEY_BITS / 8, "AES");
+        final ParallelGCM gcm = new ParallelGCM(K2, N2);
+
+        // a chunk is only authenticated once read whole, which takes more than
+        // the 8 KB after which the server expects the key check, hence the
+        // download is acknowledged up front as in v03, and a bad key is
+        // reported through the reply code
+        dos.writeBoolean(true);
+
+        boolean AEADBadTag = false;
+        progress.start("Downloading", 0, fileSize);
+        try {
+            try {
+                output.write(gcm.decryptChunk(dis, fileSize, 0));
+            } catch (javax.crypto.AEADBadTagException e) {
+                AEADBadTag = true;
+                updateStatus("Error");
+                skipFully(dlSize - Math.min(ParallelGCM.CHUNK_SIZE, fileSize) - ParallelGCM.TAG_BYTES);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+
+            if (!AEADBadTag && ParallelGCM.getChunkCount(fileSize) > 1) {
+                decryptChunks(gcm, fileSize, 1, output, null);
+            } else if (!AEADBadTag) {
+                updateStatus("Finalizing");
+            }
+        } finally {
+            // erasing cryptographic parameters and closing streams
+            finish(N2, K2, output);
+        }
+
+        int reply = dlSize > SHARE_CHECK_BYTES ? dis.readInt() : 0;
+        return AEADBadTag ? AEAD_EXCEPTION : reply;
+    }
+
+    /**
+     * Returns a string representation of K2 by processing the given header,
+     * following the v00 or v01 encryption scheme
+     *
+     * @param version encryption scheme version of the header
+     * @param header file header
+     * @return string representation of K2, or "error" if it could not be
+     * recovered
+     * @throws IOException if the thread is interrupted while the master key
+     * is derived
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     */
+    protected static String getKey(byte version, byte[] header) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+        String key;
+
+        try {
+            byte[] K2_bytes = recoverK2(Cipher.getInstance(CIPHER), version, header);
+            key = Hex.toHexString(K2_bytes);
+            GPCrypto.eraseByteArrays(K2_bytes);
+        } catch (IllegalBlockSizeException | BadPaddingException ex) {
+            key = "error";
+        }
+
+        GPCrypto.eraseByteArrays(header);
+        return key;
+    }
+
+    /**
+     * Recovers K2 from the given header, by deriving K1, decrypting R with it
+     * and finally deriving K2 from R
+     *
+     * @param cipher Cipher instance used to decrypt R
+     * @param version encryption scheme version of the header
+     * @param header file header, without the version byte
+     * @return K2
+     * @throws IOException if the thread is interrupted while the master key
+     * is derived
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException if R could not be authenticated, which
+     * usually means the encryption password is wrong
+     */
+    private static byte[] recoverK2(Cipher cipher, byte version, byte[] header) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException {
+        // reading Sx, Nx and scrypt factors
         final byte[] S1 = Arrays.copyOfRange(header, 0, VS1),
                 N1 = Arrays.copyOfRange(header, VS1, S1N1),
-                K1_N = Arrays.copyOfRange(header, S1N1, N1K1N),
-                S2 = Arrays.copyOfRange(header, K1NR, RS2),
-                N2 = Arrays.copyOfRange(header, RS2, S2N2),
-                K2_N = Arrays.copyOfRange(header, S2N2, N2K2N);
-        final int K1_N_bak = (int) Math.pow(2, Integer.valueOf(Hex.toHexString(K1_N), 16)),
-                K2_N_bak = (int) Math.pow(2, Integer.valueOf(Hex.toHexString(K2_N), 16));
-        final SecretKey K1 = new SecretKeySpec(SCrypt.generate(GPCrypto.charToByte(pass),
-                S1, K1_N_bak, KDF_r, KDF_p, CIPHER_KEY_BITS / 8), 0, CIPHER_KEY_BITS / 8, "AES");
+                S2 = Arrays.copyOfRange(header, K1NR, RS2);
+        final int K1_N = header[S1N1] & 0xFF,
+                K2_N = header[S2N2] & 0xFF;
+
+        // generating K1
+        byte[] K1_bytes;
+        if (version == 0x00) {
+            char[] pass = DefaultCipher.getEncryptionPassword();
+            K1_bytes = KDFScheduler.scrypt(GPCrypto.charToByte(pass), S1, (int) Math.pow(2, K1_N),
+                    KDF_r, KDF_p, CIPHER_KEY_BITS / 8);
+            GPCrypto.sanitize(pass);
+        } else {
+            byte[] MK = MasterKey.get(Arrays.copyOfRange(S1, 0, MasterKey.SALT_BYTES), K1_N);
+            K1_bytes = GPCrypto.hkdf(MK, Arrays.copyOfRange(S1, MasterKey.SALT_BYTES, Sk_BYTES),
+                    K1_INFO, CIPHER_KEY_BITS / 8);
+            GPCrypto.eraseByteArrays(MK);
+        }
+        final SecretKey K1 = new SecretKeySpec(K1_bytes, "AES");
 
         // reading E(K1, N1, R)
-        Cipher cipher = Cipher.getInstance(CIPHER);
         cipher.init(Cipher.DECRYPT_MODE, K1, new GCMParameterSpec(
                 GCM_TAG_BITS, N1, 0, GCM_NONCE_BYTES));
-
-        byte[] R = new byte[64];
-        boolean failFree = true;
+        byte[] R = new byte[R_BYTES];
 
         try {
             R = cipher.doFinal(Arrays.copyOfRange(header, N1K1N, K1NR));
-        } catch (IllegalBlockSizeException | BadPaddingException ex) {
-            failFree = false;
+        } finally {
+            GPCrypto.eraseByteArrays(S1, N1, K1_bytes);
+            GPCrypto.eraseKeys(K1);
         }
 
-        if (failFree) {
-            // generating K2
-            final SecretKey K2 = new SecretKeySpec(SCrypt.generate(R, S2, K2_N_bak,
-                    KDF_r, KDF_p, CIPHER_KEY_BITS / 8), 0, CIPHER_KEY_BITS / 8, "AES");
+        // generating K2
+        byte[] K2_bytes;
+        if (version == 0x00) {
+            K2_bytes = KDFScheduler.scrypt(R, S2, (int) Math.pow(2, K2_N), KDF_r, KDF_p,
+                    CIPHER_KEY_BITS / 8);
+        } else {
+            K2_bytes = GPCrypto.hkdf(R, S2, K2_INFO, CIPHER_KEY_BITS / 8);
+        }
+        GPCrypto.eraseByteArrays(S2, R);
 
-            GPCrypto.eraseByteArrays(header, S1, S2, N1, N2, R);
-            GPCrypto.eraseKeys(K1);
-            GPCrypto.sanitize(pass);
+        return K2_bytes;
+    }
 
-            return Hex.toHexString(K2.getEncoded());
-        } else {
-            GPCrypto.eraseByteArrays(header, S1, S2, N1, N2, R);
-            GPCrypto.eraseKeys(K1);
-            GPCrypto.sanitize(pass);
+    /**
+     * Encrypts the content of the given file with K2 and writes it to the I/O
+     * server
+     *
+     * @param inputFile file to encrypt
+     * @param K2 AES key
+     * @param N2 nonce
+     * @throws IOException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     */
+    private void encryptPayload(File inputFile, SecretKey K2, byte[] N2) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        this.encCipher.init(Cipher.ENCRYPT_MODE, K2, new GCMParameterSpec(
+                GCM_TAG_BITS, N2, 0, GCM_NONCE_BYTES));
+
+        try (InputStream input = new FileInputStream(inputFile)) {
+            transfer(encCipher, input, dos, inputFile.length(), 0L, "Uploading");
+        }
+    }
+
+    /**
+     * Reads the encrypted content of a file from the I/O server, decrypts it
+     * with K2 and writes it to the given OutputStream
+     *
+     * @param dlSize size of the encrypted content, including the tag
+     * @param output stream to write the plaintext to
+     * @param K2 AES key
+     * @param N2 nonce
+     * @throws IOException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     * @throws BadPaddingException
+     * @throws IllegalBlockSizeException
+     */
+    private void decryptPayload(long dlSize, OutputStream output, SecretKey K2, byte[] N2) throws IOException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        this.cipher.init(Cipher.DECRYPT_MODE, K2, new GCMParameterSpec(
+                GCM_TAG_BITS, N2, 0, GCM_NONCE_BYTES));
+
+        transfer(this.cipher, dis, output, dlSize, 0L, "Downloading");
+    }
+
+    /**
+     * Passes the remaining bytes of the given input through the given
+     * initialized cipher, writes the result to the given output and finishes the cipher
+     * operation
+     * <p>
+     * Both buffers are reused from one call to the next, hence the loop does
+     * not allocate anything. The bytes read are added to the job
+     * {@link Progress}.
+     * <p>
+     * In adaptive mode, the throughput is measured over every
+     * {@link #ADAPT_WINDOW} bytes, and the buffers are doubled for as long as
+     * it keeps improving, up to {@link #MAX_BUFFER_SIZE}.
+     *
+     * @param c initialized cipher
+     * @param input stream to read from
+     * @param output stream to write to
+     * @param total number of bytes to read, including those already processed
+     * @param processed number of bytes already read from the input
+     * @param label progress label
+     * @throws IOException
+     * @throws BadPaddingException if the tag could not be verified
+     * @throws IllegalBlockSizeException
+     */
+    private void transfer(Cipher c, InputStream input, OutputStream output, long total, long processed, String label) throws IOException, BadPaddingException, IllegalBlockSizeException {
+        long remaining = total - processed,
+                windowStart = System.nanoTime(),
+                windowBytes = 0L;
+        double lastRate = 0;
+        boolean adapting = adaptive && buf.length < MAX_BUFFER_SIZE;
+        progress.start(label, processed, total);
+
+        while (remaining > 0) {
+            ParallelGCM.checkInterrupted();
+            int len = (int) Math.min(buf.length, remaining);
+            readFully(input, buf, len);
+            remaining -= len;
+            int n = remaining > 0 ? update(c, len) : doFinal(c, len);
+            output.write(out, 0, n);
+
+            if (adapting && (windowBytes += len) >= ADAPT_WINDOW) {
+                long now = System.nanoTime();
+                double rate = (double) windowBytes / Math.max(1L, now - windowStart);
+                if (rate > lastRate * 1.05) {
+                    lastRate = rate;
+                    allocateBuffers(buf.length * 2);
+                    adapting = buf.length < MAX_BUFFER_SIZE;
+                } else {
+                    allocateBuffers(buf.length / 2);
+                    adapting = false;
+                }
+                setAdaptiveSize(buf.length);
+                windowStart = now;
+                windowBytes = 0L;
+            }
 
-            return "error";
+            progress.add(len);
         }
+
+        if (total == processed) {
+            int n = doFinal(c, 0);
+            output.write(out, 0, n);
+        }
+
+        updateStatus("Finalizing");
+    }
+
+    /**
+     * Passes the first len bytes of the input buffer through the given cipher
+     *
+     * @param c initialized cipher
+     * @param len number of bytes to process
+     * @return number of bytes written to the output buffer
+     */
+    private int update(Cipher c, int len) {
+        try {
+            return c.update(buf, 0, len, outputBuffer(c, len), 0);
+        } catch (ShortBufferException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Passes the first len bytes of the input buffer through the given cipher
+     * and finishes the cipher operation
+     *
+     * @param c initialized cipher
+     * @param len number of bytes to process
+     * @return number of bytes written to the output buffer
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException if the tag could not be verified
+     */
+    private int doFinal(Cipher c, int len) throws IllegalBlockSizeException, BadPaddingException {
+        try {
+            return c.doFinal(buf, 0, len, outputBuffer(c, len), 0);
+        } catch (ShortBufferException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Returns the output buffer, grown if it cannot hold the result of
+     * processing len more bytes
+     * <p>
+     * Never grows in practice, since the buffer is sized for a full input
+     * buffer plus the tag and the data held back by the cipher.
+     *
+     * @param c initialized cipher
+     * @param len number of bytes about to be processed
+     * @return output buffer
+     */
+    private byte[] outputBuffer(Cipher c, int len) {
+        int size = c.getOutputSize(len);
+        if (size > out.length) {
+            out = new byte[size];
+        }
+        return out;
+    }
+
+    /**
+     * Wraps the given stream so that the bytes read from it are added to the
+     * job progress
+     *
+     * @param input stream to monitor
+     * @return monitored stream
+     */
+    private InputStream monitor(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int r = super.read(b, off, len);
+                if (r > 0) {
+                    progress.add(r);
+                }
+                return r;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (in != dis) {
+                    super.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Replaces the I/O buffers with buffers of the given size
+     *
+     * @param size input buffer size, in bytes
+     */
+    private void allocateBuffers(int size) {
+        buf = new byte[size];
+        out = new byte[size + 2 * GCM_TAG_BITS / 8];
     }
 
     /**
-     * Updates the status of the download/upload job on the DefaultFrame (if
-     * logged) or the DownloadFrame (if unlogged)
+     * Reads and discards the given number of bytes from the I/O server
+     *
+     * @param len number of bytes to skip
+     * @throws IOException if an I/O error occurs
+     */
+    private void skipFully(long len) throws IOException {
+        while (len > 0) {
+            int n = (int) Math.min(buf.length, len);
+            dis.readFully(buf, 0, n);
+            len -= n;
+        }
+    }
+
+    /**
+     * Reads exactly len bytes from the given stream into the given buffer
+     *
+     * @param input stream to read from
+     * @param b buffer to read into
+     * @param len number of bytes to read
+     * @throws IOException if the stream ends before len bytes have been read
+     */
+    private static void readFully(InputStream input, byte[] b, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int n = input.read(b, off, len - off);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            off += n;
+        }
+    }
+
+    /**
+     * Reads the encrypted chunks of a file from the I/O server, decrypts them
+     * in parallel and writes them to the given OutputStream
+     * <p>
+     * If a checkpoint is given, the decrypted chunks are forced to the disk
+     * and recorded about once per second, so that an interrupted download
+     * resumes from there.
+     *
+     * @param gcm chunk cipher bound to K2 and N2
+     * @param fileSize size of the plaintext
+     * @param first index of the first chunk to read
+     * @param output stream to write the plaintext to
+     * @param checkpoint progress of the download, may be null
+     * @throws IOException
+     * @throws BadPaddingException if a chunk could not be authenticated
+     */
+    private void decryptChunks(ParallelGCM gcm, long fileSize, long first, FileOutputStream output, Checkpoint checkpoint) throws IOException, BadPaddingException {
+        final long[] lastCheckpoint = {System.currentTimeMillis()};
+
+        try {
+            gcm.decrypt(dis, fileSize, first, output, (done, total) -> {
+                setChunks(done, fileSize);
+                if (checkpoint != null && System.currentTimeMillis() - lastCheckpoint[0] >= CHECKPOINT_INTERVAL) {
+                    try {
+                        output.getChannel().force(false);
+                        checkpoint.update(done);
+                    } catch (IOException ex) {
+                        // the previous checkpoint remains valid
+                    }
+                    lastCheckpoint[0] = System.currentTimeMillis();
+                }
+            });
+        } catch (BadPaddingException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+
+        updateStatus("Finalizing");
+    }
+
+    /**
+     * Updates the status of the download/upload job through the status
+     * listener if any, else on the DefaultFrame (if logged) or the
+     * DownloadFrame (if unlogged)
+     * <p>
+     * Ends the phase counted by the job progress, if any.
      *
      * @param txt new status text
      */
     private void updateStatus(String txt) {
-        if (Settings.getLogged()) {
+        progress.stop();
+        if (status != null) {
+            status.update(txt);
+        } else if (Settings.getLogged()) {
             DefaultFrame.setFileQueueItemStatus(txt);
         } else {
             DownloadFrame.updateStatus(txt);
         }
     }
 
+    /**
+     * Returns the progress the job reports its bytes to, following the same
+     * rules as {@link #updateStatus(String)}
+     *
+     * @param status status listener, may be null
+     * @return progress of the job, not displayed if the listener has none
+     */
+    private static Progress progressOf(StatusListener status) {
+        Progress p;
+        if (status != null) {
+            p = status.getProgress();
+        } else if (Settings.getLogged()) {
+            p = DefaultFrame.getFileQueueItemProgress();
+        } else {
+            p = DownloadFrame.getProgress();
+        }
+        return p != null ? p : new Progress();
+    }
+
+    /**
+     * Sets the job progress from a number of chunks processed
+     *
+     * @param chunksDone number of chunks processed
+     * @param size size of the plaintext
+     */
+    private void setChunks(long chunksDone, long size) {
+        progress.set(Math.min(chunksDone * ParallelGCM.CHUNK_SIZE, size));
+    }
+
     /**
      * Cleans up in-memory cryptographic values and closes the FileOutputStream
      *
@@ -540,20 +1304,46 @@ private void updateStatus(String txt) {
      * @throws IOException
      */
     private void finish(byte[] N2, SecretKey K2, FileOutputStream fos) throws IOException {
-        GPCrypto.sanitize(N2, GPCrypto.SANITIZATION_COUNT);
+        GPCrypto.sanitize(N2);
         GPCrypto.eraseKeys(K2);
         fos.close();
     }
 
     /**
-     * Increments the file counter by two if the new value is under 65535, else
-     * sets it back to 0.
+     * Generates the nonces N1 and N2 from random values, the file counter and
+     * the current Unix epoch
+     *
+     * @return N1 and N2, in that order
+     */
+    private static byte[][] generateNonces() {
+        final byte[] Sn1 = GPCrypto.randomGen(Sn_BYTES),
+                Sn2 = GPCrypto.randomGen(Sn_BYTES),
+                byteFileCnt = GPCrypto.intToByteArray(nextFileCnt()),
+                epoch = DatatypeConverter.parseHexBinary(Long.toHexString(NTP.getTime() / 1000)),
+                N1 = new byte[]{Sn1[0], Sn1[1], Sn1[2], Sn1[3], Sn1[4], Sn1[5], byteFileCnt[0],
+                    byteFileCnt[1], epoch[0], epoch[1], epoch[2], epoch[3]},
+                N2 = new byte[]{Sn2[0], Sn2[1], Sn2[2], Sn2[3], Sn1[4], Sn1[5], byteFileCnt[0],
+                    (byte) (byteFileCnt[1] + 0x01), epoch[0], epoch[1], epoch[2], (byte) (epoch[3] + 0x01)};
+        GPCrypto.eraseByteArrays(Sn1, Sn2, epoch);
+        return new byte[][]{N1, N2};
+    }
+
+    /**
+     * Returns the file counter, then increments it by two if the new value is
+     * under 65535, else sets it back to 0
+     * <p>
+     * Synchronized, so that files encrypted at the same time by different
+     * connections never share a counter value.
+     *
+     * @return file counter to use in the nonces
      */
-    private void updateFileCnt() {
+    private static synchronized int nextFileCnt() {
+        int cnt = intFileCnt;
         if (intFileCnt + 2 < 65535) {
             intFileCnt += 2;
         } else {
             intFileCnt = 0;
         }
+        return cnt;
     }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Selects the security provider used for AES-GCM encryption
+ * <p>
+ * Every installed provider offering AES/GCM/NoPadding is first checked
+ * against a known answer test (test case 16 of the GCM specification), then
+ * cross-checked against Bouncy Castle in both directions on random data, so
+ * that files encrypted with one provider can always be decrypted with the
+ * other. The fastest conformant provider is then kept for the rest of the
+ * session, which usually is SunJCE since it uses the AES-NI and CLMUL
+ * instructions when available.
+ * <p>
+ * Bouncy Castle is used as a fallback, as well as for streaming decryption:
+ * other providers may buffer the whole ciphertext until the tag has been
+ * checked.
+ *
+ * @author LamaGuy
+ */
+abstract class GCMProvider {
+
+    private static final String CIPHER = "AES/GCM/NoPadding",
+            FALLBACK = "BC";
+    private static final byte[] KAT_KEY = Hex.decode("feffe9928665731c6d6a8f9467308308"
+            + "feffe9928665731c6d6a8f9467308308"),
+            KAT_NONCE = Hex.decode("cafebabefacedbaddecaf888"),
+            KAT_AAD = Hex.decode("feedfacedeadbeeffeedfacedeadbeefabaddad2"),
+            KAT_PLAINTEXT = Hex.decode("d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d"
+                    + "8a318a721c3c0c95956809532fcf0e2449a6b525b16aedf5aa0de657ba637b39"),
+            KAT_CIPHERTEXT = Hex.decode("522dc1f099567d07f47f37a32a84427d643a8cdcbfe5c0c97598a2bd"
+                    + "2555d1aa8cb08e48590dbb3da7b08b1056828838c5f61e6393ba7a0abcc9f662"
+                    + "76fc6ece0f4e1768cddf8853bb2d551b");
+    private static final int CROSS_CHECK_BYTES = 65537;
+
+    private static String provider;
+
+    /**
+     * Returns the name of the selected provider, selecting it first if needed
+     *
+     * @return provider name
+     */
+    protected static synchronized String get() {
+        if (provider == null) {
+            provider = select();
+        }
+        return provider;
+    }
+
+    /**
+     * Returns a new AES/GCM/NoPadding cipher from the selected provider
+     *
+     * @return uninitialized cipher
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchProviderException
+     * @throws NoSuchPaddingException
+     */
+    protected static Cipher getInstance() throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException {
+        return Cipher.getInstance(CIPHER, get());
+    }
+
+    /**
+     * Returns the fastest conformant provider, or Bouncy Castle if no other
+     * provider is conformant
+     *
+     * @return provider name
+     */
+    private static String select() {
+        String best = FALLBACK;
+        double bestRate = 0;
+
+        for (Provider p : Security.getProviders()) {
+            try {
+                if (isConformant(p.getName())) {
+                    double rate = EngineProbe.measureGCM(p.getName());
+                    if (rate > bestRate) {
+                        best = p.getName();
+                        bestRate = rate;
+                    }
+                }
+            } catch (GeneralSecurityException | RuntimeException ex) {
+                // provider does not support AES-GCM or is broken, skipping it
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Checks the given provider against the known answer test and against
+     * Bouncy Castle
+     *
+     * @param name provider name
+     * @return true if the provider produces the expected ciphertexts
+     * @throws GeneralSecurityException if the provider does not support
+     * AES/GCM/NoPadding
+     */
+    private static boolean isConformant(String name) throws GeneralSecurityException {
+        final Cipher c = Cipher.getInstance(CIPHER, name),
+                ref = Cipher.getInstance(CIPHER, FALLBACK);
+
+        // known answer test
+        c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KAT_KEY, "AES"), new GCMParameterSpec(128, KAT_NONCE));
+        c.updateAAD(KAT_AAD);
+        if (!Arrays.equals(c.doFinal(KAT_PLAINTEXT), KAT_CIPHERTEXT)) {
+            return false;
+        }
+
+        // cross-checking both directions against Bouncy Castle
+        final byte[] plaintext = GPCrypto.randomGen(CROSS_CHECK_BYTES);
+        final SecretKeySpec key = new SecretKeySpec(GPCrypto.randomGen(32), "AES");
+        final GCMParameterSpec nonce = new GCMParameterSpec(128, GPCrypto.randomGen(12));
+
+        c.init(Cipher.ENCRYPT_MODE, key, nonce);
+        ref.init(Cipher.ENCRYPT_MODE, key, nonce);
+        byte[] ciphertext = c.doFinal(plaintext);
+        if (!Arrays.equals(ciphertext, ref.doFinal(plaintext))) {
+            return false;
+        }
+
+        c.init(Cipher.DECRYPT_MODE, key, nonce);
+        ref.init(Cipher.DECRYPT_MODE, key, nonce);
+        return Arrays.equals(c.doFinal(ciphertext), plaintext)
+                && Arrays.equals(ref.doFinal(ciphertext), plaintext);
+    }
+}
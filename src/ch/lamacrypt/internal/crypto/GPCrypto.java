@@ -21,7 +21,9 @@
 import java.util.Arrays;
 import javax.crypto.SecretKey;
 import javax.xml.bind.DatatypeConverter;
-import org.bouncycastle.crypto.generators.SCrypt;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.params.HKDFParameters;
 import org.bouncycastle.util.encoders.Hex;
 
 /**
@@ -39,7 +41,6 @@ public abstract class GPCrypto {
     private static final int KDF_N = (int) Math.pow(2, 22),
             KDF_r = 8,
             KDF_p = 1;
-    public static final int SANITIZATION_COUNT = 10000;
 
     /**
      * Generates a random array of bytes
@@ -54,27 +55,25 @@ public static byte[] randomGen(int size) {
     }
 
     /**
-     * Fills a byte array 10'000 times with random values to prevent future
-     * retrieval of its original state
+     * Overwrites a byte array with zeros to prevent future retrieval of its
+     * original state
      *
      * @param array byte array to sanitize
+     * @see Zeroizer#wipe(byte[][])
      */
-    public static void sanitize(byte[] array, int iterCnt) {
-        for (int i = 0; i < iterCnt; i++) {
-            rand.nextBytes(array);
-        }
+    public static void sanitize(byte[] array) {
+        Zeroizer.wipe(array);
     }
 
     /**
-     * Fills a char array 10'000 times with random values to prevent future
-     * retrieval of its original state
+     * Overwrites a char array with zeros to prevent future retrieval of its
+     * original state
      *
      * @param c char array to sanitize
+     * @see Zeroizer#wipe(char[][])
      */
     public static void sanitize(char[] c) {
-        for (int i = 0; i < SANITIZATION_COUNT; i++) {
-            Arrays.fill(c, (char) rand.nextInt());
-        }
+        Zeroizer.wipe(c);
     }
 
     /**
@@ -105,26 +104,24 @@ public static void sanitize(File input, int passCount) throws Exception {
     }
 
     /**
-     * Overwrites many byte arrays 10'000 times
+     * Overwrites many byte arrays with zeros
      *
      * @param arrays arrays to overwrite
      */
-    public static void eraseByteArrays(byte[]  
-        ... arrays) {
-        for (byte[] array : arrays) {
-            sanitize(array, SANITIZATION_COUNT);
-        }
+    public static void eraseByteArrays(byte[]... arrays) {
+        Zeroizer.wipe(arrays);
     }
 
     /**
-     * Overwrites many SecretKey objects 10'000 times
+     * Destroys many SecretKey objects
+     * <p>
+     * The byte arrays the keys were created from must be erased separately
+     * with {@link #eraseByteArrays(byte[][])}.
      *
-     * @param keys SecretKey objects to overwrite
+     * @param keys SecretKey objects to destroy
      */
     public static void eraseKeys(SecretKey... keys) {
-        for (SecretKey key : keys) {
-            GPCrypto.sanitize(key.getEncoded(), SANITIZATION_COUNT);
-        }
+        Zeroizer.wipe(keys);
     }
 
     /**
@@ -158,11 +155,31 @@ public static byte[] SHA384(String input) throws Exception {
      */
     public static byte[] scrypt(char[] password, byte[] salt, int dkLen) throws UnsupportedEncodingException {
         byte[] passBytes = charToByte(password),
-                digest = SCrypt.generate(passBytes, salt, KDF_N, KDF_r, KDF_p, dkLen);
-        sanitize(passBytes, SANITIZATION_COUNT);
+                digest = KDFScheduler.scrypt(passBytes, salt, KDF_N, KDF_r, KDF_p, dkLen);
+        sanitize(passBytes);
         return digest;
     }
 
+    /**
+     * Derives a key from high-entropy input keying material with HKDF, using
+     * SHA-256 as the underlying hash function
+     * <p>
+     * Must not be used on passwords, use {@link #scrypt} for those instead.
+     *
+     * @param ikm input keying material
+     * @param salt salt to use for this invocation
+     * @param info context and application specific information
+     * @param dkLen output size, in bytes
+     * @return key derived from the input keying material
+     */
+    public static byte[] hkdf(byte[] ikm, byte[] salt, byte[] info, int dkLen) {
+        HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+        hkdf.init(new HKDFParameters(ikm, salt, info));
+        byte[] okm = new byte[dkLen];
+        hkdf.generateBytes(okm, 0, dkLen);
+        return okm;
+    }
+
     /**
      * Converts a char array into a byte array, using UTF-8 as the encoding
      * charset
@@ -179,7 +196,7 @@ public static byte[] charToByte(char[] c) {
         byte[] bytes = Arrays.copyOfRange(byteBuffer.array(),
                 byteBuffer.position(), byteBuffer.limit());
         sanitize(charBuffer.array());
-        sanitize(byteBuffer.array(), SANITIZATION_COUNT);
+        sanitize(byteBuffer.array());
         return bytes;
     }
 
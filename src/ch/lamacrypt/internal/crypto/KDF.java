@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.crypto;
+
+/**
+ * Password-based key derivation function, parameterized like scrypt
+ * <p>
+ * Implementations must produce the same output as scrypt for the same
+ * parameters, they may only differ in how much memory and time they use.
+ *
+ * @author LamaGuy
+ * @see KDFScheduler
+ */
+public interface KDF {
+
+    /**
+     * Derives a key from the given password
+     *
+     * @param pass password
+     * @param salt salt
+     * @param N CPU/RAM cost parameter, a power of two
+     * @param r block size parameter
+     * @param p parallelization parameter
+     * @param dkLen output size, in bytes
+     * @return derived key
+     */
+    byte[] derive(byte[] pass, byte[] salt, int N, int r, int p, int dkLen);
+
+    /**
+     * Returns the amount of memory a derivation with the given parameters
+     * holds at its peak
+     *
+     * @param N CPU/RAM cost parameter, a power of two
+     * @param r block size parameter
+     * @param p parallelization parameter
+     * @return peak memory, in bytes
+     */
+    long getPeakMemory(int N, int r, int p);
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.crypto;
+
+/**
+ * Runs every scrypt derivation of the client within a memory budget
+ * <p>
+ * The budget is the maximum heap size of the JVM, minus some headroom for the
+ * rest of the client. A derivation only starts once the memory it needs at
+ * its peak is available, so concurrent derivations (e.g. the master key
+ * preload and a v00 download) queue up instead of holding several V arrays at
+ * once. If a derivation cannot fit in the budget at all, it is run with a
+ * smaller V array, see {@link SCryptKDF}, which is slower but needs no more
+ * memory than available.
+ *
+ * @author LamaGuy
+ */
+public abstract class KDFScheduler {
+
+    private static final long HEADROOM = 268435456L;
+    private static final long budget = Math.max(HEADROOM, Runtime.getRuntime().maxMemory() - HEADROOM);
+    private static final Object lock = new Object();
+
+    private static KDF kdf = new SCryptKDF(1);
+    private static long inUse = 0L;
+
+    /**
+     * Replaces the implementation used when a derivation fits in the budget
+     *
+     * @param kdf new implementation
+     */
+    public static synchronized void setKDF(KDF kdf) {
+        KDFScheduler.kdf = kdf;
+    }
+
+    /**
+     * Returns the implementation that will be used for the given parameters
+     *
+     * @param N CPU/RAM cost parameter, a power of two
+     * @param r block size parameter
+     * @param p parallelization parameter
+     * @return KDF implementation
+     */
+    private static synchronized KDF select(int N, int r, int p) {
+        KDF selected = kdf;
+        for (int interval = 2; selected.getPeakMemory(N, r, p) > budget && interval <= N; interval *= 2) {
+            selected = new SCryptKDF(interval);
+        }
+        return selected;
+    }
+
+    /**
+     * Returns the memory a derivation with the given parameters will hold at
+     * its peak, once its implementation has been chosen according to the
+     * budget
+     *
+     * @param N CPU/RAM cost parameter, a power of two
+     * @param r block size parameter
+     * @param p parallelization parameter
+     * @return peak memory, in bytes
+     */
+    public static long getPeakMemory(int N, int r, int p) {
+        return select(N, r, p).getPeakMemory(N, r, p);
+    }
+
+    /**
+     * Returns whether a derivation with the given parameters has to trade
+     * time for memory
+     *
+     * @param N CPU/RAM cost parameter, a power of two
+     * @param r block size parameter
+     * @param p parallelization parameter
+     * @return true if the V array does not fit in the budget
+     */
+    public static boolean isBounded(int N, int r, int p) {
+        return select(N, r, p) != kdf;
+    }
+
+    /**
+     * Returns the memory budget shared by all derivations
+     *
+     * @return budget, in bytes
+     */
+    public static long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Derives a key with scrypt, waiting until enough memory is available
+     *
+     * @param pass password
+     * @param salt salt
+     * @param N CPU/RAM cost parameter, a power of two
+     * @param r block size parameter
+     * @param p parallelization parameter
+     * @param dkLen output size, in bytes
+     * @return derived key
+     */
+    public static byte[] scrypt(byte[] pass, byte[] salt, int N, int r, int p, int dkLen) {
+        final KDF selected = select(N, r, p);
+        final long peak = selected.getPeakMemory(N, r, p);
+
+        synchronized (lock) {
+            boolean interrupted = false;
+            while (inUse > 0 && inUse + peak > budget) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            inUse += peak;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            return selected.derive(pass, salt, N, r, p, dkLen);
+        } finally {
+            synchronized (lock) {
+                inUse -= peak;
+                lock.notifyAll();
+            }
+        }
+    }
+}
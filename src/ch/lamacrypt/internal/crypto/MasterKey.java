@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.crypto;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Session-scoped cache for the master keys derived from the encryption
+ * password
+ * <p>
+ * A master key is derived once per salt and scrypt work factor, and is then
+ * used as input keying material to derive the per-file K1 keys with HKDF. This
+ * way, uploading a folder of many files only costs a single scrypt invocation.
+ * <p>
+ * scrypt runs on a background thread of its own, outside of the class lock,
+ * which only guards the cache: the callers asking for a key wait for its
+ * derivation, and may give up if their thread is interrupted while the
+ * derivation completes for the next ones. The cached keys are wiped whenever
+ * the encryption password changes or the user disconnects.
+ *
+ * @author LamaGuy
+ */
+public abstract class MasterKey {
+
+    protected static final int SALT_BYTES = 32,
+            KEY_BYTES = 32;
+    private static final int KDF_r = 8,
+            KDF_p = 1;
+
+    private static final Map<String, FutureTask<byte[]>> cache = new HashMap<>();
+    private static byte[] sessionSalt;
+
+    /**
+     * Returns the salt used for deriving the master key of the current
+     * session, generating it if needed
+     *
+     * @return session salt
+     */
+    protected static synchronized byte[] getSessionSalt() {
+        if (sessionSalt == null) {
+            sessionSalt = GPCrypto.randomGen(SALT_BYTES);
+        }
+        return sessionSalt.clone();
+    }
+
+    /**
+     * Returns the master key derived from the encryption password with the
+     * given salt and scrypt work factor
+     * <p>
+     * The key is only derived if it is not already in the cache. If the cache
+     * is cleared while the key is derived, e.g. because the password changed,
+     * it is derived again. The returned array is a copy, which the caller is
+     * responsible for erasing.
+     *
+     * @param salt salt used to derive the master key
+     * @param N CPU/RAM cost parameter for scrypt, as a power of two
+     * @return master key
+     * @throws InterruptedIOException if the current thread is interrupted
+     * while waiting for the key
+     */
+    protected static byte[] get(byte[] salt, int N) throws InterruptedIOException {
+        final String id = Hex.toHexString(salt) + "$" + N;
+
+        while (true) {
+            FutureTask<byte[]> task = start(id, salt, N);
+            byte[] key;
+            try {
+                key = task.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("master key derivation cancelled");
+            } catch (ExecutionException ex) {
+                synchronized (MasterKey.class) {
+                    // the next caller tries again
+                    cache.remove(id, task);
+                }
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+
+            synchronized (MasterKey.class) {
+                if (cache.get(id) == task) {
+                    return key.clone();
+                }
+            }
+            // cleared while being derived, the key is derived again
+        }
+    }
+
+    /**
+     * Returns the derivation of the given master key, starting it in the
+     * background if it is not in the cache
+     *
+     * @param id cache entry of the key
+     * @param salt salt used to derive the master key
+     * @param N CPU/RAM cost parameter for scrypt, as a power of two
+     * @return derivation of the master key
+     */
+    private static synchronized FutureTask<byte[]> start(String id, byte[] salt, int N) {
+        FutureTask<byte[]> task = cache.get(id);
+
+        if (task == null) {
+            final byte[] s = salt.clone();
+            final FutureTask<byte[]> t = new FutureTask<>(() -> derive(s, N));
+            Thread th = new Thread(() -> {
+                t.run();
+                synchronized (MasterKey.class) {
+                    if (cache.get(id) != t) {
+                        // cleared while being derived
+                        try {
+                            GPCrypto.sanitize(t.get());
+                        } catch (InterruptedException | ExecutionException ex) {
+                            // nothing to erase
+                        }
+                    }
+                }
+            }, "MasterKey");
+            th.setDaemon(true);
+            cache.put(id, t);
+            th.start();
+            task = t;
+        }
+
+        return task;
+    }
+
+    /**
+     * Derives a master key from the encryption password
+     *
+     * @param salt salt used to derive the master key
+     * @param N CPU/RAM cost parameter for scrypt, as a power of two
+     * @return master key
+     */
+    private static byte[] derive(byte[] salt, int N) {
+        byte[] pass = GPCrypto.charToByte(DefaultCipher.getEncryptionPassword());
+        try {
+            return Zeroizer.track(KDFScheduler.scrypt(pass, salt, (int) Math.pow(2, N), KDF_r, KDF_p, KEY_BYTES));
+        } finally {
+            GPCrypto.sanitize(pass);
+        }
+    }
+
+    /**
+     * Derives the master key of the current session in the background, so
+     * that it is ready by the time the first file is uploaded
+     *
+     * @param N CPU/RAM cost parameter for scrypt, as a power of two
+     */
+    protected static void preload(final int N) {
+        byte[] salt = getSessionSalt();
+        start(Hex.toHexString(salt) + "$" + N, salt, N);
+    }
+
+    /**
+     * Erases every cached master key as well as the session salt
+     */
+    protected static synchronized void clear() {
+        Iterator<FutureTask<byte[]>> iter = cache.values().iterator();
+        while (iter.hasNext()) {
+            FutureTask<byte[]> task = iter.next();
+            if (task.isDone()) {
+                try {
+                    GPCrypto.sanitize(task.get());
+                } catch (InterruptedException | ExecutionException ex) {
+                    // nothing to erase
+                }
+            }
+            // keys still being derived are erased by the thread deriving them
+            iter.remove();
+        }
+        sessionSalt = null;
+    }
+}
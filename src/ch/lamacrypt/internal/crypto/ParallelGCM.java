@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.crypto;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encrypts and decrypts the payload of a file as a sequence of independently
+ * authenticated AES-256-GCM chunks, processing the chunks in parallel
+ * <p>
+ * Every chunk holds up to {@link #CHUNK_SIZE} bytes of plaintext, followed by
+ * its 16 bytes tag. The nonce of chunk i is N2 with the last 8 bytes XOR'ed
+ * with i, and the AAD of each chunk is its index followed by a byte set to 1
+ * for the last chunk only, so that chunks can neither be reordered nor
+ * truncated. An empty file is encrypted as a single, empty, last chunk.
+ * <p>
+ * The chunks are handed to a fork-join pool, while the caller's thread keeps
+ * writing the results in order, with at most {@link #WINDOW} chunks in flight.
+ * Since chunks are small, they are decrypted with the provider chosen by
+ * {@link GCMProvider} as well, even if it buffers the ciphertext until the
+ * tag has been checked.
+ * <p>
+ * A resumed upload encrypts again the chunks sent after the last one the
+ * server kept, under the same key and nonces. This is only sound if their
+ * plaintext is unchanged, which is why the plaintext hash of every chunk is
+ * recorded in the {@link Checkpoint} before the chunk is sent, and checked
+ * with {@link #verify} before resuming.
+ *
+ * @author LamaGuy
+ */
+final class ParallelGCM {
+
+    protected static final int CHUNK_SIZE = 1048576,
+            TAG_BYTES = 16;
+    private static final int NONCE_BYTES = 12,
+            PARALLELISM = Runtime.getRuntime().availableProcessors(),
+            WINDOW = 2 * PARALLELISM;
+    private static final ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+    private static final ThreadLocal<Cipher> ciphers = newCiphers();
+
+    private final SecretKey key;
+    private final byte[] nonce;
+
+    /**
+     * Creates an instance bound to the given key and base nonce
+     *
+     * @param key AES key (K2)
+     * @param nonce base nonce (N2)
+     */
+    protected ParallelGCM(SecretKey key, byte[] nonce) {
+        this.key = key;
+        this.nonce = nonce;
+    }
+
+    /**
+     * Returns the number of chunks used for a file of the given size
+     *
+     * @param plainSize file size, in bytes
+     * @return number of chunks, always at least one
+     */
+    protected static long getChunkCount(long plainSize) {
+        return Math.max(1L, (plainSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * Returns the size of the encrypted payload for a file of the given size
+     *
+     * @param plainSize file size, in bytes
+     * @return payload size, in bytes
+     */
+    protected static long getCiphertextSize(long plainSize) {
+        return plainSize + getChunkCount(plainSize) * TAG_BYTES;
+    }
+
+    /**
+     * Encrypts the given file and writes the chunks in order to the given
+     * stream
+     * <p>
+     * The chunks below {@code checkpoint.getHashCount()} have already been
+     * sent under this key, the caller must have checked them with
+     * {@link #verify} beforehand. They are encrypted with cipher instances
+     * of their own: providers refuse to encrypt twice in a row with the same
+     * key and nonce, a guard which the recorded hashes take over here.
+     *
+     * @param input file to encrypt
+     * @param first index of the first chunk to write, greater than 0 when
+     * resuming an upload
+     * @param output stream to write the encrypted chunks to
+     * @param status job status, updated once per chunk
+     * @param checkpoint checkpoint recording the hash of every chunk before
+     * it is written, or null
+     * @throws IOException if an I/O error occurs
+     * @throws GeneralSecurityException if a chunk could not be encrypted
+     */
+    protected void encrypt(File input, long first, OutputStream output, Status status, Checkpoint checkpoint) throws IOException, GeneralSecurityException {
+        final long plainSize = input.length(),
+                chunkCnt = getChunkCount(plainSize);
+        final ThreadLocal<Cipher> local = checkpoint != null && first < checkpoint.getHashCount()
+                ? newCiphers() : ciphers;
+
+        try (FileInputStream fis = new FileInputStream(input)) {
+            final FileChannel channel = fis.getChannel();
+            Deque<Future<byte[][]>> window = new ArrayDeque<>();
+
+            for (long i = first; i < chunkCnt; i++) {
+                checkInterrupted();
+                final long index = i;
+                window.add(pool.submit(() -> {
+                    byte[] plain = readChunk(channel, plainSize, index);
+                    return new byte[][]{
+                        process(local.get(), Cipher.ENCRYPT_MODE, index, index == chunkCnt - 1,
+                        plain, plain.length),
+                        checkpoint == null ? null : hash(plain)};
+                }));
+
+                if (window.size() >= WINDOW) {
+                    write(window.poll(), i - window.size(), output, checkpoint);
+                    status.update(i + 1 - window.size(), chunkCnt);
+                }
+            }
+
+            while (!window.isEmpty()) {
+                write(window.poll(), chunkCnt - 1 - window.size(), output, checkpoint);
+                status.update(chunkCnt - window.size(), chunkCnt);
+            }
+        }
+    }
+
+    /**
+     * Checks that the plaintext of the chunks whose hash was recorded by an
+     * interrupted upload did not change
+     *
+     * @param input file to upload
+     * @param checkpoint checkpoint of the interrupted upload
+     * @return true if every recorded hash matches the file
+     * @throws IOException if an I/O error occurs
+     * @throws GeneralSecurityException if SHA-256 is not available
+     */
+    protected static boolean verify(File input, Checkpoint checkpoint) throws IOException, GeneralSecurityException {
+        final long plainSize = input.length(),
+                hashCnt = checkpoint.getHashCount();
+        if (hashCnt > getChunkCount(plainSize)) {
+            return false;
+        }
+
+        try (FileInputStream fis = new FileInputStream(input)) {
+            FileChannel channel = fis.getChannel();
+            for (long i = 0; i < hashCnt; i++) {
+                checkInterrupted();
+                byte[] recorded = checkpoint.getHash(i);
+                if (recorded == null || !MessageDigest.isEqual(recorded, hash(readChunk(channel, plainSize, i)))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes an encrypted chunk, once its hash has been recorded
+     *
+     * @param f pending chunk, with the hash of its plaintext
+     * @param index chunk index
+     * @param output stream to write the encrypted chunk to
+     * @param checkpoint checkpoint recording the hash, or null
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    private static void write(Future<byte[][]> f, long index, OutputStream output, Checkpoint checkpoint) throws IOException, GeneralSecurityException {
+        byte[][] chunk = join(f);
+        if (checkpoint != null) {
+            checkpoint.record(index, chunk[1]);
+        }
+        output.write(chunk[0]);
+    }
+
+    /**
+     * Reads the encrypted chunks from the given stream, decrypts them and
+     * writes the plaintext in order to the given stream
+     *
+     * @param input stream to read the encrypted chunks from
+     * @param plainSize size of the plaintext, in bytes
+     * @param first index of the first chunk to be read from the stream
+     * @param output stream to write the plaintext to
+     * @param status job status, updated once per chunk
+     * @throws IOException if an I/O error occurs
+     * @throws GeneralSecurityException if a chunk could not be authenticated
+     */
+    protected void decrypt(DataInputStream input, long plainSize, long first, OutputStream output, Status status) throws IOException, GeneralSecurityException {
+        final long chunkCnt = getChunkCount(plainSize);
+        Deque<Future<byte[]>> window = new ArrayDeque<>();
+
+        for (long i = first; i < chunkCnt; i++) {
+            checkInterrupted();
+            final long index = i;
+            final byte[] chunk = readChunk(input, plainSize, index);
+            window.add(pool.submit(() -> process(ciphers.get(), Cipher.DECRYPT_MODE, index, index == chunkCnt - 1,
+                    chunk, chunk.length)));
+
+            if (window.size() >= WINDOW) {
+                output.write(join(window.poll()));
+                status.update(i + 1 - window.size(), chunkCnt);
+            }
+        }
+
+        while (!window.isEmpty()) {
+            output.write(join(window.poll()));
+            status.update(chunkCnt - window.size(), chunkCnt);
+        }
+    }
+
+    /**
+     * Reads and decrypts a single chunk in the caller's thread
+     * <p>
+     * Used to check the key on the first chunk before committing to the
+     * download of the whole file.
+     *
+     * @param input stream to read the encrypted chunk from
+     * @param plainSize size of the plaintext, in bytes
+     * @param index chunk index
+     * @return plaintext of the chunk
+     * @throws IOException if an I/O error occurs
+     * @throws GeneralSecurityException if the chunk could not be
+     * authenticated
+     */
+    protected byte[] decryptChunk(DataInputStream input, long plainSize, long index) throws IOException, GeneralSecurityException {
+        byte[] chunk = readChunk(input, plainSize, index);
+        return process(ciphers.get(), Cipher.DECRYPT_MODE, index, index == getChunkCount(plainSize) - 1,
+                chunk, chunk.length);
+    }
+
+    /**
+     * Reads an encrypted chunk from the given stream
+     *
+     * @param input stream to read the encrypted chunk from
+     * @param plainSize size of the plaintext, in bytes
+     * @param index chunk index
+     * @return encrypted chunk, including its tag
+     * @throws IOException if an I/O error occurs
+     */
+    private static byte[] readChunk(DataInputStream input, long plainSize, long index) throws IOException {
+        byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, plainSize - index * CHUNK_SIZE) + TAG_BYTES];
+        input.readFully(chunk);
+        return chunk;
+    }
+
+    /**
+     * Reads the plaintext of a chunk from the given file
+     *
+     * @param channel file to read the chunk from
+     * @param plainSize size of the file, in bytes
+     * @param index chunk index
+     * @return plaintext of the chunk
+     * @throws IOException if an I/O error occurs
+     */
+    private static byte[] readChunk(FileChannel channel, long plainSize, long index) throws IOException {
+        long pos = index * CHUNK_SIZE;
+        ByteBuffer plain = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, plainSize - pos));
+        while (plain.hasRemaining()) {
+            if (channel.read(plain, pos + plain.position()) < 0) {
+                throw new EOFException("file shrank while being encrypted");
+            }
+        }
+        return plain.array();
+    }
+
+    /**
+     * @param plain plaintext of a chunk
+     * @return SHA-256 hash of the plaintext
+     * @throws GeneralSecurityException if SHA-256 is not available
+     */
+    private static byte[] hash(byte[] plain) throws GeneralSecurityException {
+        return MessageDigest.getInstance("SHA-256").digest(plain);
+    }
+
+    /**
+     * Encrypts or decrypts a single chunk
+     *
+     * @param cipher cipher of the current thread
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param index chunk index
+     * @param last whether this is the last chunk of the file
+     * @param in input data
+     * @param len length of the input data
+     * @return processed chunk
+     * @throws GeneralSecurityException
+     */
+    private byte[] process(Cipher cipher, int mode, long index, boolean last, byte[] in, int len) throws GeneralSecurityException {
+        cipher.init(mode, key, new GCMParameterSpec(TAG_BYTES * 8, chunkNonce(index)));
+        cipher.updateAAD(chunkAAD(index, last));
+        return cipher.doFinal(in, 0, len);
+    }
+
+    /**
+     * @return cipher instances, one per thread
+     */
+    private static ThreadLocal<Cipher> newCiphers() {
+        return new ThreadLocal<Cipher>() {
+            @Override
+            protected Cipher initialValue() {
+                try {
+                    return GCMProvider.getInstance();
+                } catch (GeneralSecurityException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        };
+    }
+
+    /**
+     * Derives the nonce of a chunk from N2 and the chunk index
+     *
+     * @param index chunk index
+     * @return nonce of the chunk
+     */
+    private byte[] chunkNonce(long index) {
+        byte[] n = nonce.clone();
+        for (int i = 0; i < 8; i++) {
+            n[NONCE_BYTES - 8 + i] ^= (byte) (index >>> (56 - 8 * i));
+        }
+        return n;
+    }
+
+    /**
+     * Returns the additional authenticated data of a chunk
+     *
+     * @param index chunk index
+     * @param last whether this is the last chunk of the file
+     * @return AAD of the chunk
+     */
+    private static byte[] chunkAAD(long index, boolean last) {
+        return ByteBuffer.allocate(9).putLong(index).put((byte) (last ? 1 : 0)).array();
+    }
+
+    /**
+     * Stops a transfer whose thread has been interrupted, the chunks already
+     * submitted being left to complete
+     *
+     * @throws InterruptedIOException if the current thread is interrupted
+     */
+    protected static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("transfer cancelled");
+        }
+    }
+
+    /**
+     * Waits for a chunk to be processed, unwrapping the exceptions thrown by
+     * the task
+     *
+     * @param f pending chunk
+     * @return processed chunk
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    private static <T> T join(Future<T> f) throws IOException, GeneralSecurityException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Receives the progress of a job, as a number of chunks processed
+     */
+    protected interface Status {
+
+        void update(long chunksDone, long chunkCnt);
+    }
+}
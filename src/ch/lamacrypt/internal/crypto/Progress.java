@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.crypto;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte counter of an upload or download job
+ * <p>
+ * The cipher loops only add to the counter, which costs a single volatile
+ * write, and never build status texts or touch Swing: the UI samples the
+ * counter on a timer and computes the percentage, throughput and remaining
+ * time on its own side.
+ * <p>
+ * Written by the thread running the job, read by any thread.
+ *
+ * @author LamaGuy
+ */
+public final class Progress {
+
+    private final AtomicLong done = new AtomicLong();
+    private volatile long total = -1;
+    private volatile String label;
+
+    /**
+     * Starts counting the bytes of a phase of the job
+     *
+     * @param label phase label, e.g. "Uploading"
+     * @param done number of bytes already processed, e.g. when resuming
+     * @param total total number of bytes of the phase, or -1 if unknown
+     */
+    public void start(String label, long done, long total) {
+        this.done.set(done);
+        this.total = total;
+        this.label = label;
+    }
+
+    /**
+     * Adds processed bytes to the counter
+     *
+     * @param bytes number of bytes
+     */
+    public void add(long bytes) {
+        // single writer, hence no compare-and-set loop is needed
+        done.lazySet(done.get() + bytes);
+    }
+
+    /**
+     * Sets the number of processed bytes
+     *
+     * @param bytes number of bytes processed since the start of the phase,
+     * including those already processed when it started
+     */
+    public void set(long bytes) {
+        done.lazySet(bytes);
+    }
+
+    /**
+     * Ends the current phase, after which the job status text is shown
+     * instead of the counter
+     */
+    public void stop() {
+        label = null;
+    }
+
+    /**
+     * @return label of the current phase, or null if no phase is counted
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return number of bytes processed
+     */
+    public long getDone() {
+        return done.get();
+    }
+
+    /**
+     * @return total number of bytes of the current phase, or -1 if unknown
+     */
+    public long getTotal() {
+        return total;
+    }
+}
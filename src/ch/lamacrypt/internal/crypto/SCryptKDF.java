@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.crypto;
+
+import org.bouncycastle.crypto.PBEParametersGenerator;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.engines.Salsa20Engine;
+import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.bouncycastle.crypto.generators.SCrypt;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.util.Arrays;
+import org.bouncycastle.util.Pack;
+
+/**
+ * scrypt, as specified in RFC 7914
+ * <p>
+ * With an interval of 1, every block of the V array is stored and the work is
+ * delegated to Bouncy Castle. With an interval of k, only one block out of k
+ * is stored, and the missing ones are recomputed from the previous stored
+ * block when the second loop of ROMix needs them. This divides the memory
+ * needed by k, at the cost of (k - 1) / 2 extra BlockMix calls per step of
+ * the second loop on average, while producing exactly the same output.
+ *
+ * @author LamaGuy
+ */
+final class SCryptKDF implements KDF {
+
+    private final int interval;
+
+    /**
+     * Creates an instance storing one block of the V array out of interval
+     *
+     * @param interval power of two, 1 to store the whole V array
+     */
+    protected SCryptKDF(int interval) {
+        this.interval = interval;
+    }
+
+    @Override
+    public byte[] derive(byte[] pass, byte[] salt, int N, int r, int p, int dkLen) {
+        if (interval == 1 || N <= interval) {
+            return SCrypt.generate(pass, salt, N, r, p, dkLen);
+        }
+
+        final int words = 32 * r;
+        final byte[] B = PBKDF2(pass, salt, p * 128 * r);
+        final int[] X = new int[words];
+
+        for (int i = 0; i < p; i++) {
+            Pack.littleEndianToInt(B, i * 128 * r, X);
+            ROMix(X, N, r);
+            Pack.intToLittleEndian(X, B, i * 128 * r);
+        }
+
+        byte[] key = PBKDF2(pass, B, dkLen);
+        Arrays.fill(B, (byte) 0);
+        Arrays.fill(X, 0);
+        return key;
+    }
+
+    @Override
+    public long getPeakMemory(int N, int r, int p) {
+        return 128L * r * (Math.max(1, N / interval) + p + 2);
+    }
+
+    /**
+     * Runs ROMix in place on X, storing one block out of interval
+     *
+     * @param X block to mix, as little-endian words
+     * @param N CPU/RAM cost parameter
+     * @param r block size parameter
+     */
+    private void ROMix(int[] X, int N, int r) {
+        final int words = X.length,
+                mask = N - 1;
+        final int[] V = new int[(N / interval) * words],
+                T = new int[words],
+                X1 = new int[16],
+                X2 = new int[16],
+                Y = new int[words];
+
+        // first loop, keeping every interval-th block only
+        for (int i = 0; i < N; i++) {
+            if (i % interval == 0) {
+                System.arraycopy(X, 0, V, (i / interval) * words, words);
+            }
+            BlockMix(X, X1, X2, Y, r);
+            System.arraycopy(Y, 0, X, 0, words);
+        }
+
+        // second loop, recomputing V[j] from the closest stored block
+        for (int i = 0; i < N; i++) {
+            int j = X[words - 16] & mask;
+            System.arraycopy(V, (j / interval) * words, T, 0, words);
+            for (int k = j % interval; k > 0; k--) {
+                BlockMix(T, X1, X2, Y, r);
+                System.arraycopy(Y, 0, T, 0, words);
+            }
+            for (int k = 0; k < words; k++) {
+                T[k] ^= X[k];
+            }
+            BlockMix(T, X1, X2, X, r);
+        }
+
+        Arrays.fill(V, 0);
+        Arrays.fill(T, 0);
+        Arrays.fill(Y, 0);
+    }
+
+    /**
+     * scrypt's BlockMix function, based on Salsa20/8
+     *
+     * @param B input block
+     * @param X1 scratch space, 16 words
+     * @param X2 scratch space, 16 words
+     * @param Y output block
+     * @param r block size parameter
+     */
+    private static void BlockMix(int[] B, int[] X1, int[] X2, int[] Y, int r) {
+        System.arraycopy(B, B.length - 16, X1, 0, 16);
+
+        int BOff = 0, YOff = 0, halfLen = B.length >>> 1;
+        for (int i = 2 * r; i > 0; --i) {
+            for (int k = 0; k < 16; k++) {
+                X2[k] = X1[k] ^ B[BOff + k];
+            }
+            Salsa20Engine.salsaCore(8, X2, X1);
+            System.arraycopy(X1, 0, Y, YOff, 16);
+
+            YOff = halfLen + BOff - YOff;
+            BOff += 16;
+        }
+    }
+
+    /**
+     * PBKDF2-HMAC-SHA256 with a single iteration
+     *
+     * @param pass password
+     * @param salt salt
+     * @param dkLen output size, in bytes
+     * @return derived bytes
+     */
+    private static byte[] PBKDF2(byte[] pass, byte[] salt, int dkLen) {
+        PBEParametersGenerator gen = new PKCS5S2ParametersGenerator(new SHA256Digest());
+        gen.init(pass, salt, 1);
+        return ((KeyParameter) gen.generateDerivedMacParameters(dkLen * 8)).getKey();
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.crypto;
+
+/**
+ * Receives the status of an upload or download job, e.g. "Finalizing"
+ * <p>
+ * Lets several jobs run at once, each one reporting to its own row of the
+ * file queue. The bytes transferred are not reported as text, but counted in
+ * the {@link Progress} of the job.
+ *
+ * @author LamaGuy
+ */
+public interface StatusListener {
+
+    /**
+     * Called whenever the status of the job changes
+     *
+     * @param status new status text
+     */
+    void update(String status);
+
+    /**
+     * @return counter of the bytes transferred by the job, or null if the
+     * listener does not display it
+     */
+    default Progress getProgress() {
+        return null;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.crypto;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.WeakHashMap;
+import javax.crypto.SecretKey;
+import javax.security.auth.DestroyFailedException;
+
+/**
+ * Erases secret values from memory
+ * <p>
+ * Arrays are overwritten with zeros in a single pass, after which their
+ * content is folded into a volatile field, so that the JIT compiler cannot
+ * treat the writes as dead stores and elide them.
+ * <p>
+ * Buffers holding long-lived secrets can be registered with
+ * {@link #track(byte[])}, so that they are all erased at once by
+ * {@link #wipeAll()} when the user disconnects. The registry only holds weak
+ * references, hence it never keeps a buffer alive on its own.
+ *
+ * @author LamaGuy
+ */
+public abstract class Zeroizer {
+
+    private static final Set<byte[]> tracked = Collections.newSetFromMap(new WeakHashMap<byte[], Boolean>());
+    private static volatile int sink;
+
+    /**
+     * Overwrites the given byte arrays with zeros
+     *
+     * @param arrays arrays to erase, null values are ignored
+     */
+    public static void wipe(byte[]... arrays) {
+        for (byte[] array : arrays) {
+            if (array != null) {
+                Arrays.fill(array, (byte) 0);
+                int acc = 0;
+                for (byte b : array) {
+                    acc |= b;
+                }
+                sink |= acc;
+            }
+        }
+    }
+
+    /**
+     * Overwrites the given char arrays with zeros
+     *
+     * @param arrays arrays to erase, null values are ignored
+     */
+    public static void wipe(char[]... arrays) {
+        for (char[] array : arrays) {
+            if (array != null) {
+                Arrays.fill(array, (char) 0);
+                int acc = 0;
+                for (char c : array) {
+                    acc |= c;
+                }
+                sink |= acc;
+            }
+        }
+    }
+
+    /**
+     * Destroys the given keys, if their implementation supports it
+     * <p>
+     * {@link SecretKey#getEncoded()} returns a copy of the key material, hence
+     * the byte array a key was created from must be erased separately with
+     * {@link #wipe(byte[][])}.
+     *
+     * @param keys keys to destroy, null values are ignored
+     */
+    public static void wipe(SecretKey... keys) {
+        for (SecretKey key : keys) {
+            if (key != null && !key.isDestroyed()) {
+                try {
+                    key.destroy();
+                } catch (DestroyFailedException ex) {
+                    // default implementation, nothing more can be done
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers a buffer holding a long-lived secret, so that it gets erased
+     * by {@link #wipeAll()}
+     *
+     * @param array buffer to register
+     * @return the same buffer
+     */
+    public static byte[] track(byte[] array) {
+        synchronized (tracked) {
+            tracked.add(array);
+        }
+        return array;
+    }
+
+    /**
+     * Erases and unregisters every buffer registered with
+     * {@link #track(byte[])} that has not been garbage collected yet
+     */
+    public static void wipeAll() {
+        synchronized (tracked) {
+            Iterator<byte[]> iter = tracked.iterator();
+            while (iter.hasNext()) {
+                wipe(iter.next());
+                iter.remove();
+            }
+        }
+    }
+}
@@ -14,7 +14,19 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.net.ssl.SSLSocket;
 
 /**
@@ -33,8 +45,11 @@ public abstract class Authentication {
     private static final byte[] token_auth = new byte[128],
             token_data = new byte[128];
     private static final byte LOGIN = 0x70;
+    private static final int LOGIN_TIMEOUT = 30000;
+    private static final Map<String, Long> timings = Collections.synchronizedMap(new LinkedHashMap<>());
 
-    private static SSLSocket authSocket,
+    private static String username;
+    private static volatile SSLSocket authSocket,
             ctrlSocket,
             ioSocket;
     private static DataOutputStream authDos,
@@ -43,28 +58,115 @@ public abstract class Authentication {
     private static DataInputStream authDis,
             ctrlDis,
             ioDis;
+    private static volatile CompletableFuture<Boolean> pending;
+    private static volatile boolean aborted;
 
     /**
      * Authenticates the user against the server using TLS
+     * <p>
+     * The control and I/O connections do not depend on the authentication,
+     * hence they are opened, TLS handshake included, while the credentials
+     * are being checked. Each one then verifies its token as soon as the
+     * tokens arrive. The whole login gives up after {@link #LOGIN_TIMEOUT}
+     * milliseconds, and can be cancelled with {@link #abort()}.
+     * <p>
+     * The time at which each phase completed is shown in the status label of
+     * the LoginForm.
      *
      * @param username username
      * @param password password
      * @return true if credentials are correct, false if they aren't
-     * @throws java.io.IOException
+     * @throws java.io.IOException if a connection failed, timed out or was
+     * aborted
      * @throws java.security.NoSuchAlgorithmException
      * @throws java.security.KeyManagementException
      */
     public static boolean login(String username, char[] password) throws IOException, Exception {
-        // initializing the authentication connection
-        LoginForm.updateLoginLabel("Connecting to authentication server");
-        authSocket = (SSLSocket) GPTLS.getContext().getSocketFactory().createSocket(
-                InetAddress.getByName(AUTH_SERVER_NAME), AUTH_SERVER_PORT);
-        GPTLS.setTLSParams(authSocket);
+        final long start = System.nanoTime();
+        final ExecutorService executor = Executors.newFixedThreadPool(3, r -> {
+            Thread t = new Thread(r, "Login");
+            t.setDaemon(true);
+            return t;
+        });
+        timings.clear();
+        aborted = false;
+
+        LoginForm.updateLoginLabel("Connecting to servers");
+        try {
+            // opening the three connections at once
+            CompletableFuture<Boolean> auth = async(() -> {
+                boolean ok = authenticate(username, password);
+                phase("auth", start);
+                return ok;
+            }, executor);
+            CompletableFuture<SSLSocket> ctrl = async(() -> ctrlSocket = connect(CTRL_SERVER_NAME, CTRL_SERVER_PORT), executor),
+                    io = async(() -> ioSocket = connect(IO_SERVER_NAME, IO_SERVER_PORT), executor);
+
+            // verifying the tokens as soon as they are known
+            CompletableFuture<Boolean> ctrlStatus = auth.thenCombineAsync(ctrl, (ok, socket) -> {
+                boolean accepted = ok && verify(socket, token_auth, username, true);
+                phase("control", start);
+                return accepted;
+            }, executor),
+                    ioStatus = auth.thenCombineAsync(io, (ok, socket) -> {
+                        boolean accepted = ok && verify(socket, token_data, username, false);
+                        phase("I/O", start);
+                        return accepted;
+                    }, executor);
+
+            pending = ctrlStatus.thenCombine(ioStatus, (c, i) -> c && i);
+            if (aborted) {
+                throw new IOException("login aborted");
+            }
+
+            if (pending.get(LOGIN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LoginForm.updateLoginLabel("Authentication successful " + formatTimings());
+                Authentication.username = username;
+                Control.init(new Pipeline(ctrlSocket, ctrlDos, ctrlDis), Authentication::openControl);
+                IO.init(ioSocket, ioDos, ioDis, Authentication::openIOChannel);
+                return true;
+            } else {
+                abort();
+                return false;
+            }
+        } catch (TimeoutException ex) {
+            abort();
+            throw new IOException("the servers did not answer within " + LOGIN_TIMEOUT / 1000 + " seconds");
+        } catch (ExecutionException | CancellationException ex) {
+            // read before abort(), which sets the flag
+            final boolean userAborted = aborted;
+            abort();
+            Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+            if (userAborted || cause instanceof CancellationException) {
+                throw new IOException("login aborted", cause);
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            pending = null;
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Sends the credentials to the authentication server and reads the
+     * tokens
+     *
+     * @param username username
+     * @param password password
+     * @return true if credentials are correct, false if they aren't
+     * @throws IOException if an I/O error occurs
+     * @throws GeneralSecurityException if TLS could not be initialized
+     */
+    private static boolean authenticate(String username, char[] password) throws IOException, GeneralSecurityException {
+        authSocket = GPTLS.createSocket(AUTH_SERVER_NAME, AUTH_SERVER_PORT);
         authDos = new DataOutputStream(authSocket.getOutputStream());
         authDis = new DataInputStream(authSocket.getInputStream());
 
         // sending credentials
-        LoginForm.updateLoginLabel("Sending credentials");
         authDos.writeUTF(username);
         authDos.writeInt(password.length);
         authDos.write(GPCrypto.charToByte(password));
@@ -74,54 +176,180 @@ public static boolean login(String username, char[] password) throws IOException
             Settings.setIsNew(authDis.readBoolean());
 
             // getting token and returning response
-            LoginForm.updateLoginLabel("Reading tokens");
             authDis.readFully(token_auth);
             authDis.readFully(token_data);
             Settings.setQuotaSize(authDis.readLong());
+            return true;
+        } else {
+            return false;
+        }
+    }
 
-            LoginForm.updateLoginLabel("Opening I/O and control sockets");
-            ctrlSocket = (SSLSocket) GPTLS.getContext().getSocketFactory().createSocket(
-                    InetAddress.getByName(CTRL_SERVER_NAME), CTRL_SERVER_PORT);
-            GPTLS.setTLSParams(ctrlSocket);
-            ctrlDos = new DataOutputStream(ctrlSocket.getOutputStream());
-            ctrlDis = new DataInputStream(ctrlSocket.getInputStream());
-
-            ioSocket = (SSLSocket) GPTLS.getContext().getSocketFactory().createSocket(
-                    InetAddress.getByName(IO_SERVER_NAME), IO_SERVER_PORT);
-            GPTLS.setTLSParams(ioSocket);
-            ioDos = new DataOutputStream(ioSocket.getOutputStream());
-            ioDis = new DataInputStream(ioSocket.getInputStream());
-
-            LoginForm.updateLoginLabel("Verifying tokens");
-            ctrlDos.writeByte(LOGIN);
-            ctrlDos.writeUTF(username);
-            ctrlDos.write(token_auth);
-            final boolean ctrlStatus = ctrlDis.readBoolean();
-
-            ioDos.writeByte(LOGIN);
-            ioDos.writeUTF(username);
-            ioDos.write(token_data);
-            final boolean ioStatus = ioDis.readBoolean();
-
-            if (ctrlStatus && ioStatus) {
-                LoginForm.updateLoginLabel("Authentication successful");
-                Control.init(ctrlDos, ctrlDis);
-                IO.init(ioDos, ioDis);
-                return true;
+    /**
+     * Opens a connection and completes its TLS handshake
+     *
+     * @param host server name
+     * @param port server port
+     * @return connected socket
+     * @throws IOException if the connection or the handshake failed
+     * @throws GeneralSecurityException if TLS could not be initialized
+     */
+    private static SSLSocket connect(String host, int port) throws IOException, GeneralSecurityException {
+        SSLSocket socket = GPTLS.createSocket(host, port);
+        try {
+            socket.setSoTimeout(LOGIN_TIMEOUT);
+            socket.startHandshake();
+            socket.setSoTimeout(Settings.getTimeout());
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        if (aborted) {
+            socket.close();
+            throw new IOException("login aborted");
+        }
+        return socket;
+    }
+
+    /**
+     * Sends a token over the given connection
+     *
+     * @param socket connection to the control or I/O server
+     * @param token token to send
+     * @param username username
+     * @param ctrl true for the control connection, false for the I/O one
+     * @return true if the server accepted the token
+     */
+    private static boolean verify(SSLSocket socket, byte[] token, String username, boolean ctrl) {
+        try {
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            if (ctrl) {
+                ctrlDos = dos;
+                ctrlDis = dis;
             } else {
-                return false;
+                ioDos = dos;
+                ioDis = dis;
             }
-        } else {
-            return false;
+
+            dos.writeByte(LOGIN);
+            dos.writeUTF(username);
+            dos.write(token);
+            return dis.readBoolean();
+        } catch (IOException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    /**
+     * Runs a task on the given executor
+     *
+     * @param <T> result type
+     * @param task task to run
+     * @param executor executor to use
+     * @return future completed with the result of the task, or with the
+     * exception it threw
+     */
+    private static <T> CompletableFuture<T> async(Callable<T> task, ExecutorService executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            } catch (Exception ex) {
+                throw new CompletionException(ex);
+            }
+        }, executor);
+    }
+
+    /**
+     * Records the time at which a login phase completed
+     *
+     * @param name phase name
+     * @param start start of the login, as returned by System.nanoTime()
+     */
+    private static void phase(String name, long start) {
+        timings.put(name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        LoginForm.updateLoginLabel("Connecting to servers " + formatTimings());
+    }
+
+    private static String formatTimings() {
+        StringBuilder sb = new StringBuilder("(");
+        synchronized (timings) {
+            for (Map.Entry<String, Long> e : timings.entrySet()) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(e.getKey()).append(' ').append(e.getValue()).append(" ms");
+            }
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Opens an additional connection to the I/O server, authenticated with
+     * the data token obtained at login
+     *
+     * @return authenticated connection
+     * @throws IOException if the connection failed or if the token was
+     * refused
+     * @throws GeneralSecurityException if TLS could not be initialized
+     */
+    protected static IOChannel openIOChannel() throws IOException, GeneralSecurityException {
+        SSLSocket socket = GPTLS.createSocket(IO_SERVER_NAME, IO_SERVER_PORT);
+        DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+        DataInputStream dis = new DataInputStream(socket.getInputStream());
+
+        dos.writeByte(LOGIN);
+        dos.writeUTF(username);
+        dos.write(token_data);
+
+        if (!dis.readBoolean()) {
+            socket.close();
+            throw new IOException("the I/O server refused the session token");
+        }
+
+        return new IOChannel(socket, dos, dis);
+    }
+
+    /**
+     * Opens a new connection to the control server, authenticated with the
+     * control token obtained at login
+     *
+     * @return pipeline over the authenticated connection
+     * @throws IOException if the connection failed or if the token was
+     * refused
+     * @throws GeneralSecurityException if TLS could not be initialized
+     */
+    protected static Pipeline openControl() throws IOException, GeneralSecurityException {
+        SSLSocket socket = GPTLS.createSocket(CTRL_SERVER_NAME, CTRL_SERVER_PORT);
+        DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+        DataInputStream dis = new DataInputStream(socket.getInputStream());
+
+        dos.writeByte(LOGIN);
+        dos.writeUTF(username);
+        dos.write(token_auth);
+
+        if (!dis.readBoolean()) {
+            socket.close();
+            throw new IOException("the control server refused the session token");
         }
+
+        return new Pipeline(socket, dos, dis);
     }
 
     /**
      * Aborts the ongoing authentication by closing the opened sockets
+     * <p>
+     * May be called from any thread, in which case the pending login fails
+     * with an IOException.
      *
      * @throws IOException
      */
-    private static void abort() throws IOException {
+    public static void abort() throws IOException {
+        aborted = true;
+        CompletableFuture<Boolean> p = pending;
+        if (p != null) {
+            p.cancel(false);
+        }
         if (authSocket != null && !authSocket.isClosed()) {
             authSocket.close();
         }
@@ -8,15 +8,28 @@
  */
 package ch.lamacrypt.internal.network;
 
+import ch.lamacrypt.internal.Settings;
 import ch.lamacrypt.internal.crypto.DefaultCipher;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
@@ -24,11 +37,40 @@
 /**
  * Contains methods which allow to probe the control server for information and
  * also to perform certain file-related tasks, such as mkdir, rm, etc.
+ * <p>
+ * Requests are pipelined: the *Async methods return as soon as the request has
+ * been sent, so that several requests can be in flight at once, and the
+ * replies are matched to them by order. The other methods send their request
+ * the same way, then wait for its reply.
+ * <p>
+ * Directory listings are cached, see {@link ListingCache}. The changes made by
+ * mkdir, rm and rename are applied to the cache once the server acknowledges
+ * them.
+ * <p>
+ * The working directory is tracked locally: it is asked to the server once
+ * per connection, then updated from the successful cd replies, hence
+ * {@link #cwd()} usually does not cost a round-trip. It is asked again after
+ * a failed cd or an I/O error.
+ * <p>
+ * Connections opened at login are supervised: a keepalive request is sent
+ * once the connection has been idle for {@link #KEEPALIVE_INTERVAL}
+ * milliseconds, and a lost connection is replaced by a new one, authenticated
+ * with the session token, on which the working directory is restored.
+ * Requests which can safely be sent twice (listings, lookups, cwd) are then
+ * sent again, the others fail with the original exception.
  * 
  * @author LamaGuy
  */
 public abstract class Control {
 
+    /**
+     * Opens a new authenticated connection to the control server
+     */
+    protected interface Connector {
+
+        Pipeline open() throws IOException, GeneralSecurityException;
+    }
+
     private static final byte DISCONNECT = 0x00,
             LSFILE = 0x10,
             LSDIR = 0x11,
@@ -40,26 +82,73 @@ public abstract class Control {
             EXISTS = 0x17,
             DIRCHK = 0x18,
             SIZE = 0x19,
+            LIST = 0x1A,
             MKSHARE = 0x30,
             RMSHARE = 0x31,
             GETSHARE = 0x32,
             QUOTAUSED = 0x40;
 
+    private static final byte LIST_END = 0x00,
+            LIST_DIR = 0x01,
+            LIST_FILE = 0x02;
+
     private static final int EXEC_OK = 0,
             ERROR = 10;
 
-    private static DataOutputStream dos;
-    private static DataInputStream dis;
+    private static final long KEEPALIVE_INTERVAL = 30000,
+            KEEPALIVE_TIMEOUT = 10000,
+            SUPERVISOR_PERIOD = 5000,
+            REQUEST_DEADLINE = 120000,
+            RECONNECT_DELAY = 1000;
+    private static final int RECONNECT_ATTEMPTS = 5;
+
+    private static final ListingCache cache = new ListingCache();
+    private static final ScheduledExecutorService supervisor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Control-supervisor");
+        t.setDaemon(true);
+        return t;
+    });
+    private static volatile Pipeline pipeline;
+    private static volatile String cwd;
+    private static String restoreDir;
+    private static Connector connector;
+    private static CompletableFuture<Pipeline> reconnecting;
+    private static ScheduledFuture<?> keepalive;
 
     /**
      * Sets the I/O streams bound to the control server
+     * <p>
+     * The connection is not supervised, since it cannot be opened again.
      *
      * @param dos
      * @param dis
      */
     public static void init(DataOutputStream dos, DataInputStream dis) {
-        Control.dos = dos;
-        Control.dis = dis;
+        init(new Pipeline(null, dos, dis), null);
+    }
+
+    /**
+     * Sets the connection opened at login
+     *
+     * @param p pipeline over the connection
+     * @param connector opens a new connection if this one is lost, or null
+     * if the connection is not supervised
+     */
+    protected static synchronized void init(Pipeline p, Connector connector) {
+        stopSupervisor();
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        pipeline = p;
+        Control.connector = connector;
+        cache.clear();
+        cwd = null;
+        restoreDir = null;
+
+        if (connector != null) {
+            keepalive = supervisor.scheduleWithFixedDelay(Control::supervise, SUPERVISOR_PERIOD,
+                    SUPERVISOR_PERIOD, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -68,7 +157,159 @@ public static void init(DataOutputStream dos, DataInputStream dis) {
      * @throws IOException if an I/O error occurs
      */
     public static void disconnect() throws IOException {
-        dos.writeByte(DISCONNECT);
+        Pipeline p;
+        synchronized (Control.class) {
+            stopSupervisor();
+            p = pipeline;
+        }
+
+        try {
+            p.send(request(DISCONNECT));
+        } finally {
+            p.close();
+        }
+    }
+
+    private static void stopSupervisor() {
+        connector = null;
+        reconnecting = null;
+        if (keepalive != null) {
+            keepalive.cancel(false);
+            keepalive = null;
+        }
+    }
+
+    /**
+     * Sends a keepalive request if the connection has been idle for long
+     * enough, and replaces the connection if it is lost or does not answer
+     * in time
+     * <p>
+     * Runs periodically on the supervisor thread.
+     */
+    private static void supervise() {
+        final Pipeline p = pipeline;
+
+        if (p.isFailed()) {
+            reconnect(p);
+        } else if (p.isIdle() && p.getIdleTime() >= KEEPALIVE_INTERVAL) {
+            try {
+                p.submit(request(CWD), dis -> dis.readUTF()).get(KEEPALIVE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                p.fail(new IOException("the control server did not answer the keepalive"));
+                p.close();
+                reconnect(p);
+            } catch (ExecutionException ex) {
+                reconnect(p);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ex) {
+                // cannot happen, the request has no argument
+            }
+        }
+    }
+
+    /**
+     * Replaces a lost connection, unless it has already been replaced
+     * <p>
+     * Concurrent calls for the same connection share the same attempt.
+     *
+     * @param failed lost connection
+     * @return future completed with the new connection, or null if the
+     * connection is not supervised
+     */
+    private static synchronized CompletableFuture<Pipeline> reconnect(Pipeline failed) {
+        if (pipeline != failed) {
+            return CompletableFuture.completedFuture(pipeline);
+        } else if (connector == null) {
+            return null;
+        }
+
+        if (reconnecting == null) {
+            final Connector c = connector;
+            final CompletableFuture<Pipeline> attempt = new CompletableFuture<>();
+            reconnecting = attempt;
+
+            supervisor.execute(() -> {
+                try {
+                    attempt.complete(open(c, failed));
+                } catch (IOException ex) {
+                    attempt.completeExceptionally(ex);
+                } finally {
+                    synchronized (Control.class) {
+                        if (reconnecting == attempt) {
+                            reconnecting = null;
+                        }
+                    }
+                }
+            });
+        }
+
+        return reconnecting;
+    }
+
+    /**
+     * Opens a new connection, retrying with an increasing delay, and restores
+     * the working directory on it
+     *
+     * @param c opens the connection
+     * @param failed lost connection
+     * @return new connection
+     * @throws IOException if no connection could be opened, or if the session
+     * ended in the meantime
+     */
+    private static Pipeline open(Connector c, Pipeline failed) throws IOException {
+        IOException last = null;
+
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(RECONNECT_DELAY << attempt);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while reconnecting to the control server");
+            }
+
+            Pipeline p;
+            try {
+                p = c.open();
+            } catch (IOException ex) {
+                last = ex;
+                continue;
+            } catch (GeneralSecurityException ex) {
+                throw new IOException("could not reconnect to the control server", ex);
+            }
+
+            String dir;
+            synchronized (Control.class) {
+                dir = restoreDir;
+            }
+            try {
+                if (dir != null && !p.submit(request(CD, dir), DataInputStream::readBoolean).get()) {
+                    dir = null;
+                }
+            } catch (ExecutionException ex) {
+                p.close();
+                last = new IOException("could not restore the working directory", ex.getCause());
+                continue;
+            } catch (InterruptedException ex) {
+                p.close();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while reconnecting to the control server");
+            }
+
+            synchronized (Control.class) {
+                if (pipeline != failed || connector != c) {
+                    // disconnected or logged out in the meantime
+                    p.close();
+                    throw new IOException("not connected to the control server");
+                }
+                pipeline = p;
+                cwd = dir;
+            }
+            failed.close();
+            return p;
+        }
+
+        throw new IOException("could not reconnect to the control server", last);
     }
 
     /**
@@ -80,19 +321,33 @@ public static void disconnect() throws IOException {
      * @throws IOException if an I/O error occurs
      */
     public static Map<String, Long[]> lsfile(String dirPath) throws IOException {
-        Map<String, Long[]> fileMap = new HashMap<>();
+        return await(lsfileAsync(dirPath));
+    }
 
-        dos.writeByte(LSFILE);
-        dos.writeUTF(dirPath);
-        int fileCount = dis.readInt();
+    /**
+     * Lists the files in the specified directory, without waiting for the
+     * reply
+     *
+     * @param dirPath path to directory
+     * @return future reply, see {@link #lsfile(String)}
+     */
+    public static CompletableFuture<Map<String, Long[]>> lsfileAsync(String dirPath) {
+        Map<String, Long[]> cached = cache.getFiles(dirPath);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return submit(dis -> {
+            Map<String, Long[]> fileMap = new HashMap<>();
+            int fileCount = dis.readInt();
 
-        if (fileCount != 0) {
             for (int i = 0; i < fileCount; i++) {
                 fileMap.put(dis.readUTF(), new Long[]{dis.readLong(), dis.readLong()});
             }
-        }
 
-        return fileMap;
+            cache.putFiles(dirPath, fileMap);
+            return fileMap;
+        }, LSFILE, dirPath);
     }
 
     /**
@@ -104,19 +359,125 @@ public static Map<String, Long[]> lsfile(String dirPath) throws IOException {
      * @throws IOException if an I/O error occurs
      */
     public static Map<String, Long> lsdir(String dirPath) throws IOException {
-        Map<String, Long> dirMap = new HashMap<>();
+        return await(lsdirAsync(dirPath));
+    }
 
-        dos.writeByte(LSDIR);
-        dos.writeUTF(dirPath);
-        int dirCount = dis.readInt();
+    /**
+     * Lists the directories in the specified directory, without waiting for
+     * the reply
+     *
+     * @param dirPath path to directory
+     * @return future reply, see {@link #lsdir(String)}
+     */
+    public static CompletableFuture<Map<String, Long>> lsdirAsync(String dirPath) {
+        Map<String, Long> cached = cache.getDirs(dirPath);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return submit(dis -> {
+            Map<String, Long> dirMap = new HashMap<>();
+            int dirCount = dis.readInt();
 
-        if (dirCount != 0) {
             for (int i = 0; i < dirCount; i++) {
                 dirMap.put(dis.readUTF(), dis.readLong());
             }
+
+            cache.putDirs(dirPath, dirMap);
+            return dirMap;
+        }, LSDIR, dirPath);
+    }
+
+    /**
+     * Lists the directories and files in the specified directory, along with
+     * the quota usage, in a single request
+     * <p>
+     * The server streams one record per entry, each made of a type byte, the
+     * name and the last modified time, followed by the size for files, and
+     * ends the listing with an end byte and the quota usage. Entries are
+     * passed to the listener as soon as they are read. If the LIST request is
+     * disabled in the settings, the listing is made with pipelined lsdir,
+     * lsfile and quotaused requests instead.
+     * <p>
+     * Exceptions thrown by the listener stop the notifications, but not the
+     * listing.
+     *
+     * @param dirPath path to directory
+     * @param listener receives the entries as they are read, may be null
+     * @return future listing
+     */
+    public static CompletableFuture<Listing> list(String dirPath, Listing.Listener listener) {
+        Listing cached = cache.getListing(dirPath);
+        if (cached != null) {
+            return quotausedAsync().thenApply(q -> notify(cached.withQuotaUsed(q), listener));
+        }
+
+        if (!Settings.isListOpcode()) {
+            CompletableFuture<Map<String, Long>> dirReply = lsdirAsync(dirPath);
+            CompletableFuture<Map<String, Long[]>> fileReply = lsfileAsync(dirPath);
+            CompletableFuture<Long> quotaReply = quotausedAsync();
+
+            return dirReply.thenCombine(fileReply, (dirs, files) -> Listing.of(dirPath, dirs, files, -1))
+                    .thenCombine(quotaReply, (l, q) -> notify(l.withQuotaUsed(q), listener));
         }
 
-        return dirMap;
+        // entries already passed to the listener must not be passed again
+        return submit(listener == null, dis -> {
+            Listing l = new Listing(dirPath);
+            Listing.Listener notified = listener;
+            byte type;
+
+            while ((type = dis.readByte()) != LIST_END) {
+                String name = dis.readUTF();
+                long time = dis.readLong();
+                long size;
+
+                switch (type) {
+                    case LIST_DIR:
+                        size = -1;
+                        break;
+                    case LIST_FILE:
+                        size = dis.readLong();
+                        break;
+                    default:
+                        throw new IOException("invalid listing entry type: " + type);
+                }
+
+                int i = l.add(name, time, size);
+                if (notified != null) {
+                    try {
+                        notified.entry(l, i);
+                    } catch (RuntimeException ex) {
+                        notified = null;
+                    }
+                }
+            }
+
+            l.setQuotaUsed(dis.readLong());
+            l.trim();
+            cache.putListing(dirPath, l);
+            return l;
+        }, LIST, dirPath);
+    }
+
+    /**
+     * Passes every entry of a complete listing to the given listener
+     *
+     * @param listing complete listing
+     * @param listener listener, may be null
+     * @return the listing
+     */
+    private static Listing notify(Listing listing, Listing.Listener listener) {
+        if (listener != null) {
+            try {
+                for (int i = 0; i < listing.size(); i++) {
+                    listener.entry(listing, i);
+                }
+            } catch (RuntimeException ex) {
+                // stopping the notifications
+            }
+        }
+        return listing;
     }
 
     /**
@@ -127,20 +488,62 @@ public static Map<String, Long> lsdir(String dirPath) throws IOException {
      * @throws IOException if an I/O error occurs
      */
     public static boolean cd(String path) throws IOException {
-        dos.writeByte(CD);
-        dos.writeUTF(path);
-        return dis.readBoolean();
+        return await(cdAsync(path));
     }
 
     /**
-     * Returns the current working directory
+     * Changes the working directory, without waiting for the reply
+     *
+     * @param path new directory path
+     * @return future reply, see {@link #cd(String)}
+     */
+    public static CompletableFuture<Boolean> cdAsync(String path) {
+        return submit(DataInputStream::readBoolean, CD, path).handle((ok, ex) -> {
+            synchronized (Control.class) {
+                String dir = cwd;
+                cwd = ex == null && ok && dir != null ? resolve(dir, path) : null;
+                if (cwd != null) {
+                    restoreDir = cwd;
+                }
+            }
+
+            if (ex != null) {
+                throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+            }
+            return ok;
+        });
+    }
+
+    /**
+     * Returns the current working directory, only asking the server if it is
+     * not known yet
      *
      * @return current working directory on the control server
      * @throws IOException if an I/O error occurs
      */
     public static String cwd() throws IOException {
-        dos.writeByte(CWD);
-        return dis.readUTF();
+        return await(cwdAsync());
+    }
+
+    /**
+     * Returns the current working directory, without waiting for the reply
+     *
+     * @return future reply, see {@link #cwd()}
+     */
+    public static CompletableFuture<String> cwdAsync() {
+        String dir = cwd;
+        if (dir != null) {
+            return CompletableFuture.completedFuture(dir);
+        }
+
+        return submit(dis -> {
+            String reply = dis.readUTF();
+            synchronized (Control.class) {
+                cwd = reply;
+                restoreDir = reply;
+            }
+            return reply;
+        }, CWD);
     }
 
     /**
@@ -152,9 +555,22 @@ public static String cwd() throws IOException {
      * @throws IOException if an I/O error occurs
      */
     public static boolean mkdir(String dirName) throws IOException {
-        dos.writeByte(MKDIR);
-        dos.writeUTF(dirName);
-        return dis.readBoolean();
+        return await(mkdirAsync(dirName));
+    }
+
+    /**
+     * Creates a new directory, without waiting for the reply
+     *
+     * @param dirName directory name
+     * @return future reply, see {@link #mkdir(String)}
+     */
+    public static CompletableFuture<Boolean> mkdirAsync(String dirName) {
+        return submit(DataInputStream::readBoolean, MKDIR, dirName).thenApply(ok -> {
+            if (ok) {
+                cache.invalidate(dirName);
+            }
+            return ok;
+        });
     }
 
     /**
@@ -166,10 +582,24 @@ public static boolean mkdir(String dirName) throws IOException {
      * @throws IOException if an I/O error occurs
      */
     public static boolean rename(String oldName, String newName) throws IOException {
-        dos.writeByte(RENAME);
-        dos.writeUTF(oldName);
-        dos.writeUTF(newName);
-        return dis.readBoolean();
+        return await(renameAsync(oldName, newName));
+    }
+
+    /**
+     * Renames a file or directory, without waiting for the reply
+     *
+     * @param oldName old name
+     * @param newName new name
+     * @return future reply, see {@link #rename(String, String)}
+     */
+    public static CompletableFuture<Boolean> renameAsync(String oldName, String newName) {
+        return submit(DataInputStream::readBoolean, RENAME, oldName, newName).thenApply(ok -> {
+            if (ok) {
+                cache.invalidate(oldName);
+                cache.invalidate(newName);
+            }
+            return ok;
+        });
     }
 
     /**
@@ -180,9 +610,22 @@ public static boolean rename(String oldName, String newName) throws IOException
      * @throws IOException if an I/O error occurs
      */
     public static boolean rm(String fileName) throws IOException {
-        dos.writeByte(RM);
-        dos.writeUTF(fileName);
-        return dis.readBoolean();
+        return await(rmAsync(fileName));
+    }
+
+    /**
+     * Deletes a file or directory, without waiting for the reply
+     *
+     * @param fileName name of item to be deleted
+     * @return future reply, see {@link #rm(String)}
+     */
+    public static CompletableFuture<Boolean> rmAsync(String fileName) {
+        return submit(DataInputStream::readBoolean, RM, fileName).thenApply(ok -> {
+            if (ok) {
+                cache.remove(fileName);
+            }
+            return ok;
+        });
     }
 
     /**
@@ -193,9 +636,17 @@ public static boolean rm(String fileName) throws IOException {
      * @throws IOException if an I/O error occurs
      */
     public static boolean exists(String fileName) throws IOException {
-        dos.writeByte(EXISTS);
-        dos.writeUTF(fileName);
-        return dis.readBoolean();
+        return await(existsAsync(fileName));
+    }
+
+    /**
+     * Checks whether a file or directory exists, without waiting for the reply
+     *
+     * @param fileName name of item to look for
+     * @return future reply, see {@link #exists(String)}
+     */
+    public static CompletableFuture<Boolean> existsAsync(String fileName) {
+        return submit(DataInputStream::readBoolean, EXISTS, fileName);
     }
 
     /**
@@ -206,9 +657,18 @@ public static boolean exists(String fileName) throws IOException {
      * @throws IOException if an I/O error occurs
      */
     public static boolean dirchk(String fileName) throws IOException {
-        dos.writeByte(DIRCHK);
-        dos.writeUTF(fileName);
-        return dis.readBoolean();
+        return await(dirchkAsync(fileName));
+    }
+
+    /**
+     * Checks whether the specified file is a directory or not, without waiting
+     * for the reply
+     *
+     * @param fileName file name
+     * @return future reply, see {@link #dirchk(String)}
+     */
+    public static CompletableFuture<Boolean> dirchkAsync(String fileName) {
+        return submit(DataInputStream::readBoolean, DIRCHK, fileName);
     }
 
     /**
@@ -219,17 +679,24 @@ public static boolean dirchk(String fileName) throws IOException {
      * @throws IOException
      */
     public static long size(String fileName) throws IOException {
-        dos.writeByte(SIZE);
-        dos.writeUTF(fileName);
-        if (dis.readBoolean()) {
-            return dis.readLong();
-        } else {
-            return -1;
-        }
+        return await(sizeAsync(fileName));
+    }
+
+    /**
+     * Returns the size of the specified file, without waiting for the reply
+     *
+     * @param fileName
+     * @return future reply, see {@link #size(String)}
+     */
+    public static CompletableFuture<Long> sizeAsync(String fileName) {
+        return submit(dis -> dis.readBoolean() ? dis.readLong() : -1L, SIZE, fileName);
     }
 
     /**
      * Creates a share link for the specified file or directory
+     * <p>
+     * The client has to answer the server during this exchange, hence it waits
+     * for every pending reply and blocks other requests until it is over.
      *
      * @param fileName item to be shared
      * @return
@@ -242,40 +709,57 @@ public static long size(String fileName) throws IOException {
      * @throws javax.crypto.IllegalBlockSizeException
      */
     public static Object[] mkshare(String fileName) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
-        dos.writeByte(MKSHARE);
-        dos.writeUTF(fileName);
+        final Pipeline p = pipeline;
+        p.acquire();
 
-        int reply = dis.readInt();
+        try {
+            final DataOutputStream dos = p.getOutputStream();
+            final DataInputStream dis = p.getInputStream();
 
-        if (reply == EXEC_OK) {
-            String key,
-                    uuid = "";
+            dos.write(request(MKSHARE, fileName));
+            dos.flush();
 
-            // reading header
-            switch (dis.readByte()) {
-                case 0x00:
-                    byte[] header = new byte[235];
-                    dis.read(header, 0, 234);
+            int reply = dis.readInt();
 
-                    // getting K2
-                    key = DefaultCipher.getKey(0x00, header);
+            if (reply == EXEC_OK) {
+                String key,
+                        uuid = "";
 
-                    break;
-                default:
-                    key = "error";
-                    break;
-            }
+                // reading header
+                byte version = dis.readByte();
+                switch (version) {
+                    case 0x00:
+                    case 0x01:
+                    case 0x02:
+                    case 0x03:
+                        byte[] header = new byte[235];
+                        dis.readFully(header, 0, 234);
+
+                        // getting K2
+                        key = DefaultCipher.getKey(version, header);
+
+                        break;
+                    default:
+                        key = "error";
+                        break;
+                }
+
+                if (!key.equals("error")) {
+                    dos.writeBoolean(true);
+                    uuid = dis.readUTF();
+                } else {
+                    dos.writeBoolean(false);
+                }
 
-            if (!key.equals("error")) {
-                dos.writeBoolean(true);
-                uuid = dis.readUTF();
+                return new Object[]{reply, uuid, key, fileName};
             } else {
-                dos.writeBoolean(false);
+                return new Object[]{reply, fileName};
             }
-
-            return new Object[]{reply, uuid, key, fileName};
-        } else {
-            return new Object[]{reply, fileName};
+        } catch (IOException ex) {
+            p.fail(ex);
+            throw ex;
+        } finally {
+            p.release();
         }
     }
 
@@ -287,10 +771,7 @@ public static Object[] mkshare(String fileName) throws IOException, NoSuchAlgori
      * @throws IOException if an I/O error occurs
      */
     public static int rmshare(String fileName) throws IOException {
-        dos.writeByte(RMSHARE);
-        dos.writeUTF(fileName);
-
-        return dis.readInt();
+        return await(submit(DataInputStream::readInt, RMSHARE, fileName));
     }
 
     /**
@@ -302,27 +783,32 @@ public static int rmshare(String fileName) throws IOException {
      * @throws IOException
      */
     public static Object[] getshare(String uuid, boolean logged) throws IOException {
-        if (logged) {
-            dos.writeByte(GETSHARE);
-        }
+        Pipeline.Reader<Object[]> reader = dis -> {
+            int reply = dis.readInt();
 
-        dos.writeUTF(uuid);
+            Object[] res;
+            switch (reply) {
+                case EXEC_OK:
+                    String fileName = dis.readUTF();
+                    long fileSize = dis.readLong();
+                    res = new Object[]{reply, fileName, fileSize};
+                    break;
+                default:
+                    res = new Object[]{reply};
+                    break;
+            }
 
-        int reply = dis.readInt();
+            return res;
+        };
 
-        Object[] res;
-        switch (reply) {
-            case EXEC_OK:
-                String fileName = dis.readUTF();
-                long fileSize = dis.readLong();
-                res = new Object[]{reply, fileName, fileSize};
-                break;
-            default:
-                res = new Object[]{reply};
-                break;
+        if (logged) {
+            return await(submit(reader, GETSHARE, uuid));
+        } else {
+            // share sessions only expect the UUID, without any opcode
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            new DataOutputStream(buf).writeUTF(uuid);
+            return await(pipeline.submit(buf.toByteArray(), reader));
         }
-
-        return res;
     }
 
     /**
@@ -332,8 +818,16 @@ public static Object[] getshare(String uuid, boolean logged) throws IOException
      * @throws IOException if an I/O error occurs
      */
     public static long quotaused() throws IOException {
-        dos.writeByte(QUOTAUSED);
-        return dis.readLong();
+        return await(quotausedAsync());
+    }
+
+    /**
+     * Gets the quota usage, without waiting for the reply
+     *
+     * @return future reply, see {@link #quotaused()}
+     */
+    public static CompletableFuture<Long> quotausedAsync() {
+        return submit(DataInputStream::readLong, QUOTAUSED);
     }
 
     /**
@@ -345,4 +839,202 @@ public static long quotaused() throws IOException {
     public static boolean isAtRoot() throws IOException {
         return cwd().equals("/");
     }
+
+    /**
+     * Drops the cached listing of the parent of the given item, so that it
+     * gets listed again
+     * <p>
+     * Used when the listing changed through another connection, e.g. after an
+     * upload.
+     *
+     * @param path path of the item that changed
+     */
+    public static void invalidate(String path) {
+        cache.invalidate(path);
+    }
+
+    /**
+     * Drops the cached listing of the given directory, so that it gets listed
+     * again
+     *
+     * @param dirPath directory path
+     */
+    public static void refresh(String dirPath) {
+        cache.invalidateDir(dirPath);
+    }
+
+    /**
+     * Returns the working directory the server moves to after a successful cd,
+     * in the format returned by the server, i.e. with a trailing slash
+     *
+     * @param dir working directory before the cd
+     * @param path cd argument: "..", an absolute path or a relative one
+     * @return new working directory
+     */
+    private static String resolve(String dir, String path) {
+        String p;
+        if (path.equals("..")) {
+            p = ListingCache.normalize(dir);
+            p = p.substring(0, p.lastIndexOf('/') + 1);
+        } else if (path.startsWith("/")) {
+            p = path;
+        } else {
+            p = dir + "/" + path;
+        }
+
+        p = ListingCache.normalize(p);
+        return p.equals("/") ? p : p + "/";
+    }
+
+    /**
+     * Waits for the reply to a pipelined request, at most
+     * {@link #REQUEST_DEADLINE} milliseconds
+     *
+     * @param <T> reply type
+     * @param future future reply
+     * @return the reply
+     * @throws IOException if the request could not be sent or its reply could
+     * not be read
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        return await(future, REQUEST_DEADLINE);
+    }
+
+    /**
+     * Waits for the reply to a pipelined request, at most the given time
+     * <p>
+     * A reply arriving after the deadline is discarded.
+     *
+     * @param <T> reply type
+     * @param future future reply
+     * @param timeout deadline in milliseconds
+     * @return the reply
+     * @throws IOException if the request could not be sent or its reply could
+     * not be read, an InterruptedIOException if the calling thread was
+     * interrupted, or a SocketTimeoutException if the deadline passed
+     */
+    public static <T> T await(CompletableFuture<T> future, long timeout) throws IOException {
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the control server");
+        } catch (TimeoutException ex) {
+            cwd = null;
+            throw new SocketTimeoutException("the control server did not answer within "
+                    + timeout / 1000 + " seconds");
+        } catch (ExecutionException ex) {
+            // the local working directory may be out of sync
+            cwd = null;
+
+            Throwable cause = ex.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * Sends a request through the pipeline, sending it again over a new
+     * connection if the connection is lost and the request can safely be sent
+     * twice
+     *
+     * @param <T> reply type
+     * @param reader reads the reply
+     * @param opcode request opcode
+     * @param args request arguments
+     * @return future reply
+     */
+    private static <T> CompletableFuture<T> submit(Pipeline.Reader<T> reader, byte opcode, String... args) {
+        return submit(isIdempotent(opcode), reader, opcode, args);
+    }
+
+    /**
+     * Sends a request through the pipeline
+     *
+     * @param <T> reply type
+     * @param replay true if the request can safely be sent again over a new
+     * connection
+     * @param reader reads the reply
+     * @param opcode request opcode
+     * @param args request arguments
+     * @return future reply
+     */
+    private static <T> CompletableFuture<T> submit(boolean replay, Pipeline.Reader<T> reader, byte opcode, String... args) {
+        final Pipeline p = pipeline;
+        final byte[] req;
+        try {
+            req = request(opcode, args);
+        } catch (IOException ex) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+
+        return p.submit(req, reader).handle((reply, ex) -> {
+            if (ex == null) {
+                return CompletableFuture.completedFuture(reply);
+            }
+
+            // the connection is replaced in any case, so that the next
+            // requests succeed
+            CompletableFuture<Pipeline> next = reconnect(p);
+            if (!replay || next == null) {
+                CompletableFuture<T> failed = new CompletableFuture<>();
+                failed.completeExceptionally(ex);
+                return failed;
+            }
+            return next.thenCompose(np -> np.submit(req, reader));
+        }).thenCompose(f -> f);
+    }
+
+    /**
+     * @param opcode request opcode
+     * @return true if the request does not change anything on the server,
+     * hence can be sent again after a reconnection
+     */
+    private static boolean isIdempotent(byte opcode) {
+        switch (opcode) {
+            case LSFILE:
+            case LSDIR:
+            case CWD:
+            case EXISTS:
+            case DIRCHK:
+            case SIZE:
+            case LIST:
+            case GETSHARE:
+            case QUOTAUSED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Serializes a request, so that it can be sent in a single write
+     *
+     * @param opcode request opcode
+     * @param args request arguments, written with
+     * {@link DataOutputStream#writeUTF(String)}
+     * @return serialized request
+     * @throws IOException if an argument is too long
+     */
+    private static byte[] request(byte opcode, String... args) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+
+        out.writeByte(opcode);
+        for (String arg : args) {
+            out.writeUTF(arg);
+        }
+
+        return buf.toByteArray();
+    }
 }
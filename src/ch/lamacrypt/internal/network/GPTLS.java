@@ -8,42 +8,143 @@
  */
 package ch.lamacrypt.internal.network;
 
+import ch.lamacrypt.internal.Settings;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 
 /**
  * Contains general purpose methods related to TLS
+ * <p>
+ * A single SSLContext is shared by every connection, so that its client
+ * session cache lets the connections following the first one to a server
+ * resume the TLS session, skipping a round-trip and the key exchange.
  *
  * @author LamaGuy
  */
 public abstract class GPTLS {
 
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"},
+            CIPHER_SUITES = {
+                "TLS_AES_256_GCM_SHA384",
+                "TLS_AES_128_GCM_SHA256",
+                "TLS_CHACHA20_POLY1305_SHA256",
+                "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+                "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384"};
+    private static final int SESSION_CACHE_SIZE = 64,
+            SESSION_TIMEOUT = 3600,
+            CONNECT_TIMEOUT = 10000;
+
+    private static SSLContext context;
+
     /**
-     * Sets the supported TLS version and cipher suite(s)
+     * Sets the supported TLS versions and cipher suites
+     * <p>
+     * TLS 1.3 is enabled along with the TLS 1.2 suites, on runtimes which
+     * support it.
      *
      * @param socket SSLSocket to act upon
      */
     public static void setTLSParams(SSLSocket socket) {
-        // sets the supported TLS protocol and cipher suites
-        socket.setEnabledProtocols(new String[]{"TLSv1.2"});
-        socket.setEnabledCipherSuites(new String[]{
-            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
-            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384"});
+        // sets the supported TLS protocols and cipher suites
+        socket.setEnabledProtocols(filter(PROTOCOLS, socket.getSupportedProtocols()));
+        socket.setEnabledCipherSuites(filter(CIPHER_SUITES, socket.getSupportedCipherSuites()));
     }
 
     /**
-     * Returns an SSLContext object which instantiates TLS
+     * Returns the SSLContext shared by every connection, creating it on the
+     * first call
      *
      * @return SSLContext for TLS
      * @throws java.security.NoSuchAlgorithmException
      * @throws java.security.KeyManagementException
      */
-    public static SSLContext getContext() throws NoSuchAlgorithmException, KeyManagementException {
-        // creates the SSLContext needed to instantiate the SSLSocket
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(null, null, null);
-        return sslContext;
+    public static synchronized SSLContext getContext() throws NoSuchAlgorithmException, KeyManagementException {
+        if (context == null) {
+            // creates the SSLContext needed to instantiate the SSLSocket
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+
+            SSLSessionContext sessions = sslContext.getClientSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT);
+
+            context = sslContext;
+        }
+        return context;
+    }
+
+    /**
+     * Opens a TLS connection to the given server, with the parameters set by
+     * {@link #setTLSParams(SSLSocket)}
+     * <p>
+     * The host name is kept, since the client session cache is keyed by host
+     * and port. The connection gives up after {@link #CONNECT_TIMEOUT}
+     * milliseconds.
+     *
+     * @param host server name
+     * @param port server port
+     * @return socket, whose handshake happens on the first read or write
+     * @throws IOException if the connection failed
+     * @throws java.security.NoSuchAlgorithmException
+     * @throws java.security.KeyManagementException
+     */
+    public static SSLSocket createSocket(String host, int port) throws IOException, NoSuchAlgorithmException, KeyManagementException {
+        return createSocket(host, port, CONNECT_TIMEOUT);
+    }
+
+    /**
+     * Opens a TLS connection to the given server, giving up after the given
+     * timeout
+     * <p>
+     * Reads on the returned socket time out after
+     * {@link Settings#getTimeout()} milliseconds without data, so that a
+     * stalled server cannot block the caller forever.
+     *
+     * @param host server name
+     * @param port server port
+     * @param timeout connection timeout in milliseconds, or 0 to wait
+     * indefinitely
+     * @return socket, whose handshake happens on the first read or write
+     * @throws IOException if the connection failed or timed out
+     * @throws java.security.NoSuchAlgorithmException
+     * @throws java.security.KeyManagementException
+     */
+    public static SSLSocket createSocket(String host, int port, int timeout) throws IOException, NoSuchAlgorithmException, KeyManagementException {
+        SSLSocket socket = (SSLSocket) getContext().getSocketFactory().createSocket();
+        setTLSParams(socket);
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            socket.setSoTimeout(Settings.getTimeout());
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        return socket;
+    }
+
+    /**
+     * Returns the wanted values supported by the socket, in the wanted order
+     *
+     * @param wanted wanted values, by order of preference
+     * @param supported values supported by the socket
+     * @return supported wanted values
+     */
+    private static String[] filter(String[] wanted, String[] supported) {
+        List<String> supportedList = Arrays.asList(supported),
+                enabled = new ArrayList<>();
+        for (String s : wanted) {
+            if (supportedList.contains(s)) {
+                enabled.add(s);
+            }
+        }
+        return enabled.toArray(new String[enabled.size()]);
     }
 }
@@ -14,36 +14,67 @@
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.Socket;
 
 /**
  * Contains file I/O methods, used for uploading/downloading binary data
+ * <p>
+ * Each transfer runs on a connection taken from the {@link TransferPool}, see
+ * {@link IOChannel} for transfers that report their own status.
  *
  * @author LamaGuy
  */
 public abstract class IO {
 
-    private static final byte DISCONNECT = 0x00,
-            UPLOAD = 0x10,
-            DOWNLOAD = 0x11,
-            DOWNLOAD_SHARE = 0x12;
-    private static final int EXEC_OK = 0;
+    /**
+     * Sets the I/O streams bound to the I/O server, which become the only
+     * connection of the transfer pool
+     *
+     * @param dos
+     * @param dis
+     * @throws IOException
+     * @throws Exception
+     */
+    public static void init(DataOutputStream dos, DataInputStream dis) throws IOException, Exception {
+        init(null, dos, dis, null);
+    }
 
-    private static DataOutputStream dos;
-    private static DataInputStream dis;
+    /**
+     * Sets the connection bound to the I/O server, which becomes the only
+     * connection of the transfer pool
+     * <p>
+     * Unlike {@link #init(DataOutputStream, DataInputStream)}, transfers on
+     * this connection can be cancelled while blocked on the network.
+     *
+     * @param socket underlying socket
+     * @param dos
+     * @param dis
+     */
+    public static void init(Socket socket, DataOutputStream dos, DataInputStream dis) {
+        init(socket, dos, dis, null);
+    }
 
-    public static void init(DataOutputStream dos, DataInputStream dis) throws IOException, Exception {
+    /**
+     * Sets the connection opened at login as the first connection of the
+     * transfer pool
+     *
+     * @param socket underlying socket
+     * @param dos
+     * @param dis
+     * @param opener opens additional connections, or null to only use this one
+     */
+    protected static void init(Socket socket, DataOutputStream dos, DataInputStream dis, TransferPool.Opener opener) {
         DefaultCipher.init(dos, dis);
-        IO.dos = dos;
-        IO.dis = dis;
+        TransferPool.init(new IOChannel(socket, dos, dis), opener);
     }
 
     /**
-     * Disconnects from the I/O server
+     * Disconnects every connection to the I/O server
      *
      * @throws IOException if an I/O error occurs
      */
     public static void disconnect() throws IOException {
-        dos.writeByte(DISCONNECT);
+        TransferPool.shutdown();
     }
 
     /**
@@ -55,21 +86,20 @@ public static void disconnect() throws IOException {
      * @throws Exception
      */
     public static int upload(File input, String remoteFilePath) throws Exception {
+        IOChannel channel = null;
+        boolean healthy = false;
         try {
-            dos.writeByte(UPLOAD);
-            dos.writeUTF(remoteFilePath);
-            dos.writeLong(input.length());
-
-            int reply = dis.readInt();
-
-            if (reply == EXEC_OK) {
-                return DefaultCipher.encrypt(input);
-            } else {
-                return reply;
-            }
+            channel = TransferPool.acquire();
+            int reply = channel.upload(input, remoteFilePath, null);
+            healthy = true;
+            return reply;
         } catch (IOException ex) {
             ErrorHandler.showError(ex);
             return -2;
+        } finally {
+            if (channel != null) {
+                TransferPool.release(channel, healthy);
+            }
         }
     }
 
@@ -82,40 +112,38 @@ public static int upload(File input, String remoteFilePath) throws Exception {
      * @throws Exception
      */
     public static int download(String fileName, File output) throws Exception {
+        IOChannel channel = null;
+        boolean healthy = false;
         try {
-            dos.writeByte(DOWNLOAD);
-            dos.writeUTF(fileName);
-
-            int reply = dis.readInt();
-
-            if (reply == EXEC_OK) {
-                return DefaultCipher.decrypt(output);
-            } else {
-                return reply;
-            }
+            channel = TransferPool.acquire();
+            int reply = channel.download(fileName, output, null);
+            healthy = true;
+            return reply;
         } catch (IOException ex) {
             ErrorHandler.showError(ex);
             return -2;
+        } finally {
+            if (channel != null) {
+                TransferPool.release(channel, healthy);
+            }
         }
     }
 
     public static int downloadshare(String uuid, String key, File output, boolean normal) throws Exception {
+        IOChannel channel = null;
+        boolean healthy = false;
         try {
-            if(normal){
-                dos.writeByte(DOWNLOAD_SHARE);
-            }
-            dos.writeUTF(uuid);
-
-            int reply = dis.readInt();
-
-            if (reply == EXEC_OK) {
-                return DefaultCipher.decryptShare(key, output);
-            } else {
-                return reply;
-            }
+            channel = TransferPool.acquire();
+            int reply = channel.downloadshare(uuid, key, output, normal, null);
+            healthy = true;
+            return reply;
         } catch (IOException ex) {
             ErrorHandler.showError(ex);
             return -1;
+        } finally {
+            if (channel != null) {
+                TransferPool.release(channel, healthy);
+            }
         }
     }
 }
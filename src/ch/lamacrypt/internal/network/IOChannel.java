@@ -0,0 +1,558 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.network;
+
+import ch.lamacrypt.internal.Settings;
+import ch.lamacrypt.internal.crypto.DefaultCipher;
+import ch.lamacrypt.internal.crypto.StatusListener;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Authenticated connection to the I/O server, carrying one upload or download
+ * at a time
+ * <p>
+ * Several channels can be open at once, see {@link TransferPool}. Each
+ * transfer creates its own cipher instance, hence channels can be used from
+ * different threads concurrently.
+ * <p>
+ * If resumable transfers are enabled, see {@link Settings#isResume()}, the
+ * progress of every transfer is recorded in a {@link TransferJournal}, and a
+ * transfer interrupted by an I/O error only sends or fetches the missing
+ * chunks when it is run again, on any channel.
+ * <p>
+ * Reads time out after {@link Settings#getTimeout()} milliseconds without
+ * data. A transfer whose thread is interrupted, or which outlives its
+ * deadline, see {@link #setDeadline(long)}, is aborted by closing the
+ * connection, since blocking socket operations ignore interrupts.
+ *
+ * @author LamaGuy
+ */
+public final class IOChannel {
+
+    private static final byte DISCONNECT = 0x00,
+            UPLOAD = 0x10,
+            DOWNLOAD = 0x11,
+            DOWNLOAD_SHARE = 0x12,
+            UPLOAD_RESUME = 0x13,
+            DOWNLOAD_RESUME = 0x14,
+            UPLOAD_BATCH = 0x15;
+    private static final int EXEC_OK = 0,
+            BATCH_WINDOW = 32;
+    private static final long WATCHDOG_PERIOD = 500;
+
+    /**
+     * Transfer run on the channel
+     */
+    private interface Operation {
+
+        int run() throws IOException, Exception;
+    }
+
+    private static final Set<IOChannel> active = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "IO-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        watchdog.scheduleWithFixedDelay(IOChannel::watch, WATCHDOG_PERIOD, WATCHDOG_PERIOD,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private final Socket socket;
+    private final DataOutputStream dos;
+    private final DataInputStream dis;
+    private volatile long lastUsed,
+            deadline;
+    private volatile Thread owner;
+    private volatile IOException abortCause;
+
+    /**
+     * Wraps an authenticated connection
+     *
+     * @param socket underlying socket, or null if the streams are closed by
+     * the caller
+     * @param dos stream to the I/O server
+     * @param dis stream from the I/O server
+     */
+    protected IOChannel(Socket socket, DataOutputStream dos, DataInputStream dis) {
+        this.socket = socket;
+        this.dos = dos;
+        this.dis = dis;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Records that the channel has just been used, called when it is released
+     */
+    protected void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * @return time in milliseconds since the channel was last used
+     */
+    protected long getIdleTime() {
+        return System.currentTimeMillis() - lastUsed;
+    }
+
+    /**
+     * Sends a file to the I/O server
+     *
+     * @param input file to upload
+     * @param remoteFilePath destination path
+     * @param status receives the job status, may be null
+     * @return reply code from the I/O server
+     * @throws IOException if an I/O error occurs, after which the channel must
+     * not be used anymore
+     * @throws Exception if the file could not be encrypted
+     */
+    public int upload(File input, String remoteFilePath, StatusListener status) throws IOException, Exception {
+        return supervise(() -> Settings.isResume()
+                ? uploadResumable(input, remoteFilePath, status)
+                : uploadOnce(input, remoteFilePath, status));
+    }
+
+    /**
+     * Sends a file to the I/O server, starting over if the previous attempt
+     * was interrupted
+     *
+     * @param input file to upload
+     * @param remoteFilePath destination path
+     * @param status receives the job status, may be null
+     * @return reply code from the I/O server
+     * @throws IOException if an I/O error occurs
+     * @throws Exception if the file could not be encrypted
+     */
+    private int uploadOnce(File input, String remoteFilePath, StatusListener status) throws IOException, Exception {
+        try {
+            dos.writeByte(UPLOAD);
+            dos.writeUTF(remoteFilePath);
+            dos.writeLong(input.length());
+
+            int reply = dis.readInt();
+
+            if (reply == EXEC_OK) {
+                return DefaultCipher.encrypt(input, dos, dis, status);
+            } else {
+                return reply;
+            }
+        } finally {
+            Control.invalidate(remoteFilePath);
+        }
+    }
+
+    /**
+     * Returns whether small files may be uploaded with
+     * {@link #uploadBatch(File[], String[], StatusListener[], int[])}, which
+     * requires a server supporting it and an encryption scheme using the
+     * session master key
+     *
+     * @return true if batched uploads are enabled
+     */
+    public static boolean canBatch() {
+        return Settings.isBatch() && Settings.getVersion() != 0x00;
+    }
+
+    /**
+     * Sends several files to the I/O server in a single stream
+     * <p>
+     * The UPLOAD_BATCH request is answered with a reply code, after which
+     * each file is sent as a frame made of a true byte, the destination path,
+     * the file size and the encrypted file, header included, as in a single
+     * upload. The stream ends with a false byte. The server replies to every
+     * frame once received, even if it refused the file. These replies are
+     * read by another thread while the next frames are sent, with up to
+     * {@link #BATCH_WINDOW} frames sent ahead of their reply, hence a batch
+     * costs a single round trip instead of two per file.
+     *
+     * @param inputs files to upload
+     * @param remoteFilePaths destination paths, in the same order
+     * @param statuses receive the status of each file, may hold nulls
+     * @param replies receives the reply code from the I/O server to each file,
+     * in the same order, the entries of the files left unacknowledged by an
+     * I/O error are not modified
+     * @return reply code from the I/O server to the batch request
+     * @throws IOException if an I/O error occurs, after which the channel must
+     * not be used anymore
+     * @throws Exception if a file could not be encrypted
+     */
+    public int uploadBatch(File[] inputs, String[] remoteFilePaths, StatusListener[] statuses, int[] replies) throws IOException, Exception {
+        return supervise(() -> {
+            try {
+                return uploadBatchOnce(inputs, remoteFilePaths, statuses, replies);
+            } finally {
+                for (String path : remoteFilePaths) {
+                    Control.invalidate(path);
+                }
+            }
+        });
+    }
+
+    private int uploadBatchOnce(File[] inputs, String[] remoteFilePaths, StatusListener[] statuses, int[] replies) throws IOException, Exception {
+        dos.writeByte(UPLOAD_BATCH);
+        dos.flush();
+
+        int reply = dis.readInt();
+        if (reply != EXEC_OK) {
+            return reply;
+        }
+
+        final Semaphore window = new Semaphore(BATCH_WINDOW);
+        final AtomicReference<IOException> readFailure = new AtomicReference<>();
+        final Thread reader = new Thread(() -> {
+            try {
+                for (int i = 0; i < inputs.length; i++) {
+                    replies[i] = dis.readInt();
+                    window.release();
+                }
+            } catch (IOException ex) {
+                readFailure.set(ex);
+                // the sender must not wait for the missing replies
+                window.release(inputs.length);
+            }
+        }, "IO-batch");
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            for (int i = 0; i < inputs.length && readFailure.get() == null; i++) {
+                if (!window.tryAcquire()) {
+                    // the pending frames must reach the server before their
+                    // replies can be awaited
+                    dos.flush();
+                    window.acquire();
+                }
+
+                dos.writeBoolean(true);
+                dos.writeUTF(remoteFilePaths[i]);
+                dos.writeLong(inputs[i].length());
+                DefaultCipher.encryptFrame(inputs[i], dos, statuses[i]);
+            }
+            dos.writeBoolean(false);
+            dos.flush();
+            reader.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            stopReader(reader);
+            throw new InterruptedIOException("transfer cancelled");
+        } catch (Exception ex) {
+            stopReader(reader);
+            throw ex;
+        }
+
+        IOException failure = readFailure.get();
+        if (failure != null) {
+            throw failure;
+        }
+        return EXEC_OK;
+    }
+
+    /**
+     * Stops the reader of a failed batch by closing the connection, and waits
+     * for it so that the replies read so far are visible
+     * <p>
+     * The interrupt status of the current thread is cleared while waiting and
+     * restored afterwards.
+     *
+     * @param reader thread reading the replies of the batch
+     */
+    private void stopReader(Thread reader) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            close();
+            reader.join(WATCHDOG_PERIOD);
+        } catch (InterruptedException ex) {
+            interrupted = true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Downloads a file from the I/O server
+     *
+     * @param fileName remote file path
+     * @param output destination file
+     * @param status receives the job status, may be null
+     * @return reply code from the I/O server
+     * @throws IOException if an I/O error occurs, after which the channel must
+     * not be used anymore
+     * @throws Exception if the file could not be decrypted
+     */
+    public int download(String fileName, File output, StatusListener status) throws IOException, Exception {
+        return supervise(() -> Settings.isResume()
+                ? downloadResumable(fileName, output, status)
+                : downloadOnce(fileName, output, status));
+    }
+
+    /**
+     * Downloads a file from the I/O server, starting over if the previous
+     * attempt was interrupted
+     *
+     * @param fileName remote file path
+     * @param output destination file
+     * @param status receives the job status, may be null
+     * @return reply code from the I/O server
+     * @throws IOException if an I/O error occurs
+     * @throws Exception if the file could not be decrypted
+     */
+    private int downloadOnce(String fileName, File output, StatusListener status) throws IOException, Exception {
+        dos.writeByte(DOWNLOAD);
+        dos.writeUTF(fileName);
+
+        int reply = dis.readInt();
+
+        if (reply == EXEC_OK) {
+            return DefaultCipher.decrypt(output, dos, dis, status);
+        } else {
+            return reply;
+        }
+    }
+
+    /**
+     * Sends a file to the I/O server, resuming the previous attempt if it was
+     * interrupted
+     * <p>
+     * The request carries the header of the file, to which the server replies
+     * with its reply code, then with the number of chunks it already holds for
+     * that header.
+     *
+     * @param input file to upload
+     * @param remoteFilePath destination path
+     * @param status receives the job status, may be null
+     * @return reply code from the I/O server
+     * @throws IOException if an I/O error occurs, in which case the journal
+     * is kept
+     * @throws Exception if the file could not be encrypted
+     */
+    private int uploadResumable(File input, String remoteFilePath, StatusListener status) throws IOException, Exception {
+        TransferJournal journal = TransferJournal.forUpload(input, remoteFilePath);
+
+        try {
+            dos.writeByte(UPLOAD_RESUME);
+            dos.writeUTF(remoteFilePath);
+            dos.writeLong(input.length());
+
+            // the header is sent along, before the reply code
+            int reply = DefaultCipher.encryptResumable(input, dos, dis, journal, status);
+
+            // the server either holds the file or refused it
+            journal.delete();
+            return reply;
+        } finally {
+            Control.invalidate(remoteFilePath);
+        }
+    }
+
+    /**
+     * Downloads a file from the I/O server, resuming the previous attempt if
+     * it was interrupted
+     * <p>
+     * The server sends the header of the file first, to which the client
+     * replies with the index of the first chunk to send.
+     *
+     * @param fileName remote file path
+     * @param output destination file
+     * @param status receives the job status, may be null
+     * @return reply code from the I/O server
+     * @throws IOException if an I/O error occurs, in which case the journal
+     * and the partial file are kept
+     * @throws Exception if the file could not be decrypted
+     */
+    private int downloadResumable(String fileName, File output, StatusListener status) throws IOException, Exception {
+        TransferJournal journal = TransferJournal.forDownload(fileName, output);
+
+        dos.writeByte(DOWNLOAD_RESUME);
+        dos.writeUTF(fileName);
+        dos.flush();
+
+        int reply = dis.readInt();
+
+        if (reply == EXEC_OK) {
+            reply = DefaultCipher.decryptResumable(output, dos, dis, journal, status);
+        }
+
+        journal.delete();
+        return reply;
+    }
+
+    /**
+     * Returns whether an interrupted download of the given file can be
+     * resumed
+     *
+     * @param fileName remote file path
+     * @param output destination file, holding the data downloaded so far
+     * @return true if resumable transfers are enabled and the download of
+     * this file has been interrupted
+     */
+    public static boolean canResume(String fileName, File output) {
+        return Settings.isResume() && output.isFile()
+                && TransferJournal.forDownload(fileName, output).getChunks() > 0;
+    }
+
+    /**
+     * Downloads a shared file from the I/O server
+     *
+     * @param uuid share UUID
+     * @param key share key
+     * @param output destination file
+     * @param normal false if the connection has been opened for this share
+     * only, in which case no opcode is sent
+     * @param status receives the job status, may be null
+     * @return reply code from the I/O server
+     * @throws IOException if an I/O error occurs, after which the channel must
+     * not be used anymore
+     * @throws Exception if the file could not be decrypted
+     */
+    public int downloadshare(String uuid, String key, File output, boolean normal, StatusListener status) throws IOException, Exception {
+        return supervise(() -> {
+            if (normal) {
+                dos.writeByte(DOWNLOAD_SHARE);
+            }
+            dos.writeUTF(uuid);
+
+            int reply = dis.readInt();
+
+            if (reply == EXEC_OK) {
+                return DefaultCipher.decryptShare(key, output, dos, dis, status);
+            } else {
+                return reply;
+            }
+        });
+    }
+
+    /**
+     * Sets the time by which the transfers run on this channel must complete,
+     * until the channel is released to the pool
+     * <p>
+     * A transfer still running at that time is aborted by closing the
+     * connection, and fails with a SocketTimeoutException. The FileWorker sets
+     * it for every attempt, from the size of the transfer, so that a server
+     * trickling data just fast enough to beat the read timeout cannot hold a
+     * transfer slot forever.
+     *
+     * @param timeout time in milliseconds from now, or 0 for no deadline
+     */
+    public void setDeadline(long timeout) {
+        deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+    }
+
+    /**
+     * Runs a transfer under the watch of the watchdog, which closes the
+     * connection if the calling thread is interrupted or if the deadline
+     * passes, so that a transfer blocked on the network gives its thread back
+     * within {@link #WATCHDOG_PERIOD} milliseconds
+     *
+     * @param op transfer to run
+     * @return reply code from the I/O server
+     * @throws IOException if an I/O error occurs, or an InterruptedIOException
+     * or a SocketTimeoutException if the transfer was aborted
+     * @throws Exception if the file could not be encrypted or decrypted
+     */
+    private int supervise(Operation op) throws IOException, Exception {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("transfer cancelled");
+        }
+
+        abortCause = null;
+        owner = Thread.currentThread();
+        active.add(this);
+        try {
+            return op.run();
+        } catch (IOException ex) {
+            IOException cause = abortCause;
+            if (cause != null && cause != ex) {
+                cause.initCause(ex);
+                throw cause;
+            }
+            throw ex;
+        } finally {
+            active.remove(this);
+            owner = null;
+        }
+    }
+
+    /**
+     * Aborts the transfers which have been cancelled or whose deadline has
+     * passed
+     * <p>
+     * Runs periodically on the watchdog thread.
+     */
+    private static void watch() {
+        long now = System.currentTimeMillis();
+
+        for (IOChannel c : active) {
+            Thread t = c.owner;
+            long d = c.deadline;
+
+            if (t != null && t.isInterrupted()) {
+                c.abort(new InterruptedIOException("transfer cancelled"));
+            } else if (d > 0 && now > d) {
+                c.abort(new SocketTimeoutException("transfer deadline exceeded"));
+            }
+        }
+    }
+
+    /**
+     * Closes the connection under a running transfer, which then fails with
+     * the given exception
+     *
+     * @param cause exception to report
+     */
+    private void abort(IOException cause) {
+        if (abortCause == null) {
+            abortCause = cause;
+            active.remove(this);
+            close();
+        }
+    }
+
+    /**
+     * Disconnects from the I/O server and closes the connection
+     */
+    public void disconnect() {
+        try {
+            dos.writeByte(DISCONNECT);
+        } catch (IOException ex) {
+            // already disconnected
+        }
+        close();
+    }
+
+    /**
+     * Closes the connection without notifying the server
+     */
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // nothing more can be done
+            }
+        }
+    }
+}
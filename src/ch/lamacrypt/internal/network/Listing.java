@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.network;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Contents of a remote directory, as returned by {@link Control#list}
+ * <p>
+ * Entries are stored column by column, with the timestamps and sizes in
+ * primitive arrays, so that a directory with hundreds of thousands of entries
+ * only costs its names plus 16 bytes per entry. Directories have a size of -1.
+ *
+ * @author LamaGuy
+ */
+public final class Listing {
+
+    /**
+     * Receives the entries of a listing as they are read from the server
+     * <p>
+     * Called from the thread reading the replies of the control server, hence
+     * implementations must not block.
+     */
+    public interface Listener {
+
+        /**
+         * Called for each entry, in the order sent by the server
+         *
+         * @param listing listing being filled
+         * @param index index of the new entry
+         */
+        void entry(Listing listing, int index);
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final String path;
+    private String[] names = new String[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY],
+            sizes = new long[INITIAL_CAPACITY];
+    private int count = 0,
+            dirCount = 0;
+    private long quotaUsed = -1;
+
+    /**
+     * Creates an empty listing
+     *
+     * @param path path of the listed directory
+     */
+    protected Listing(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Creates a listing from the replies to the lsdir, lsfile and quotaused
+     * requests
+     *
+     * @param path path of the listed directory
+     * @param dirs see {@link Control#lsdir(String)}
+     * @param files see {@link Control#lsfile(String)}
+     * @param quotaUsed see {@link Control#quotaused()}
+     * @return listing holding the directories, then the files
+     */
+    protected static Listing of(String path, Map<String, Long> dirs, Map<String, Long[]> files, long quotaUsed) {
+        Listing l = new Listing(path);
+        l.ensureCapacity(dirs.size() + files.size());
+
+        for (Map.Entry<String, Long> e : dirs.entrySet()) {
+            l.add(e.getKey(), e.getValue(), -1);
+        }
+        for (Map.Entry<String, Long[]> e : files.entrySet()) {
+            l.add(e.getKey(), e.getValue()[0], e.getValue()[1]);
+        }
+        l.quotaUsed = quotaUsed;
+
+        return l;
+    }
+
+    /**
+     * Appends an entry
+     *
+     * @param name file or directory name
+     * @param time last modified time
+     * @param size file size, or -1 for a directory
+     * @return index of the new entry
+     */
+    protected int add(String name, long time, long size) {
+        if (count == names.length) {
+            ensureCapacity(Math.max(count * 2, INITIAL_CAPACITY));
+        }
+
+        names[count] = name;
+        times[count] = time;
+        sizes[count] = size;
+        if (size < 0) {
+            dirCount++;
+        }
+
+        return count++;
+    }
+
+    /**
+     * Sets the quota usage sent at the end of the listing
+     *
+     * @param quotaUsed quota usage, in bytes
+     */
+    protected void setQuotaUsed(long quotaUsed) {
+        this.quotaUsed = quotaUsed;
+    }
+
+    /**
+     * Returns a listing sharing the entries of this one, with a more recent
+     * quota usage
+     * <p>
+     * May only be called on a complete listing.
+     *
+     * @param quotaUsed quota usage, in bytes
+     * @return new listing
+     */
+    protected Listing withQuotaUsed(long quotaUsed) {
+        Listing l = new Listing(path);
+        l.names = names;
+        l.times = times;
+        l.sizes = sizes;
+        l.count = count;
+        l.dirCount = dirCount;
+        l.quotaUsed = quotaUsed;
+        return l;
+    }
+
+    /**
+     * Releases the unused capacity once the listing is complete
+     */
+    protected void trim() {
+        if (count != names.length) {
+            names = Arrays.copyOf(names, count);
+            times = Arrays.copyOf(times, count);
+            sizes = Arrays.copyOf(sizes, count);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > names.length) {
+            names = Arrays.copyOf(names, capacity);
+            times = Arrays.copyOf(times, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+        }
+    }
+
+    /**
+     * @return path of the listed directory
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return number of directories
+     */
+    public int getDirCount() {
+        return dirCount;
+    }
+
+    /**
+     * @return number of files
+     */
+    public int getFileCount() {
+        return count - dirCount;
+    }
+
+    /**
+     * @param index entry index
+     * @return entry name
+     */
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * @param index entry index
+     * @return last modified time of the entry
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    /**
+     * @param index entry index
+     * @return size of the entry, or -1 if it is a directory
+     */
+    public long getSize(int index) {
+        return sizes[index];
+    }
+
+    /**
+     * @param index entry index
+     * @return true if the entry is a directory
+     */
+    public boolean isDirectory(int index) {
+        return sizes[index] < 0;
+    }
+
+    /**
+     * @return quota usage in bytes at the time of the listing, or -1 if
+     * unknown
+     */
+    public long getQuotaUsed() {
+        return quotaUsed;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.network;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the directory listings returned by the control server
+ * <p>
+ * Entries are keyed by directory path, expire after {@link #TTL} milliseconds
+ * so that changes made by other clients eventually show up, and the least
+ * recently used ones are evicted past {@link #MAX_ENTRIES} directories.
+ * Changes made by this client are applied to the cache directly, by
+ * {@link #remove(String)} and {@link #invalidate(String)}.
+ * <p>
+ * Map listings are copied in and out, hence callers may modify the maps they
+ * get. {@link Listing} objects are immutable once complete, hence they are
+ * shared.
+ *
+ * @author LamaGuy
+ */
+final class ListingCache {
+
+    private static final long TTL = 30000;
+    private static final int MAX_ENTRIES = 256;
+
+    private static final class Cached {
+
+        private Map<String, Long> dirs;
+        private Map<String, Long[]> files;
+        private Listing listing;
+        private long dirsTime, filesTime, listingTime;
+    }
+
+    private final Map<String, Cached> entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Returns the cached subdirectories of the given directory
+     *
+     * @param path directory path
+     * @return a copy of the cached listing, or null if missing or expired
+     */
+    protected synchronized Map<String, Long> getDirs(String path) {
+        Cached e = entries.get(normalize(path));
+        if (e == null || e.dirs == null || isExpired(e.dirsTime)) {
+            return null;
+        }
+        return new HashMap<>(e.dirs);
+    }
+
+    /**
+     * Returns the cached files of the given directory
+     *
+     * @param path directory path
+     * @return a copy of the cached listing, or null if missing or expired
+     */
+    protected synchronized Map<String, Long[]> getFiles(String path) {
+        Cached e = entries.get(normalize(path));
+        if (e == null || e.files == null || isExpired(e.filesTime)) {
+            return null;
+        }
+        return new HashMap<>(e.files);
+    }
+
+    /**
+     * Returns the cached listing of the given directory
+     *
+     * @param path directory path
+     * @return the cached listing, or null if missing or expired
+     */
+    protected synchronized Listing getListing(String path) {
+        Cached e = entries.get(normalize(path));
+        if (e == null || e.listing == null || isExpired(e.listingTime)) {
+            return null;
+        }
+        return e.listing;
+    }
+
+    /**
+     * Caches the complete listing of the given directory
+     *
+     * @param path directory path
+     * @param listing listing returned by the server
+     */
+    protected synchronized void putListing(String path, Listing listing) {
+        Cached e = getOrCreate(normalize(path));
+        e.listing = listing;
+        e.listingTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Caches the subdirectories of the given directory
+     *
+     * @param path directory path
+     * @param dirs listing returned by the server
+     */
+    protected synchronized void putDirs(String path, Map<String, Long> dirs) {
+        Cached e = getOrCreate(normalize(path));
+        e.dirs = new HashMap<>(dirs);
+        e.dirsTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Caches the files of the given directory
+     *
+     * @param path directory path
+     * @param files listing returned by the server
+     */
+    protected synchronized void putFiles(String path, Map<String, Long[]> files) {
+        Cached e = getOrCreate(normalize(path));
+        e.files = new HashMap<>(files);
+        e.filesTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Removes a deleted file or directory from its parent's listing, and drops
+     * the listings below it
+     *
+     * @param path path of the deleted item
+     */
+    protected synchronized void remove(String path) {
+        path = normalize(path);
+        Cached parent = entries.get(getParent(path));
+        if (parent != null) {
+            String name = getName(path);
+            if (parent.dirs != null) {
+                parent.dirs.remove(name);
+            }
+            if (parent.files != null) {
+                parent.files.remove(name);
+            }
+            parent.listing = null;
+        }
+        dropTree(path);
+    }
+
+    /**
+     * Drops the listing of the parent of the given item, as well as the
+     * listings below the item itself
+     *
+     * @param path path of a created, renamed or uploaded item
+     */
+    protected synchronized void invalidate(String path) {
+        path = normalize(path);
+        entries.remove(getParent(path));
+        dropTree(path);
+    }
+
+    /**
+     * Drops the listing of the given directory
+     *
+     * @param path directory path
+     */
+    protected synchronized void invalidateDir(String path) {
+        entries.remove(normalize(path));
+    }
+
+    /**
+     * Drops every listing
+     */
+    protected synchronized void clear() {
+        entries.clear();
+    }
+
+    private Cached getOrCreate(String path) {
+        Cached e = entries.get(path);
+        if (e == null) {
+            e = new Cached();
+            entries.put(path, e);
+        }
+        return e;
+    }
+
+    private void dropTree(String path) {
+        String prefix = path.equals("/") ? "/" : path + "/";
+        Iterator<String> iter = entries.keySet().iterator();
+        while (iter.hasNext()) {
+            String key = iter.next();
+            if (key.equals(path) || key.startsWith(prefix)) {
+                iter.remove();
+            }
+        }
+    }
+
+    private static boolean isExpired(long time) {
+        return System.currentTimeMillis() - time > TTL;
+    }
+
+    /**
+     * Returns the given path without duplicate or trailing slashes
+     *
+     * @param path absolute path
+     * @return normalized path
+     */
+    protected static String normalize(String path) {
+        String p = path.replaceAll("/{2,}", "/");
+        if (!p.startsWith("/")) {
+            p = "/" + p;
+        }
+        if (p.length() > 1 && p.endsWith("/")) {
+            p = p.substring(0, p.length() - 1);
+        }
+        return p;
+    }
+
+    private static String getParent(String path) {
+        int i = path.lastIndexOf('/');
+        return i <= 0 ? "/" : path.substring(0, i);
+    }
+
+    private static String getName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
@@ -1,63 +1,155 @@
-/* 
+/*
  * Copyright (c) 2016, LamaCrypt
  * All rights reserved.
  *
  * The LamaCrypt client software and its source code are available
- * under the LamaCrypt Software License: 
+ * under the LamaCrypt Software License:
  * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
  */
 package ch.lamacrypt.internal.network;
 
-import ch.lamacrypt.visual.ErrorHandler;
+import ch.lamacrypt.internal.Settings;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.net.ntp.NTPUDPClient;
+import org.apache.commons.net.ntp.TimeInfo;
 
 /**
  * Contains NTP-related code
  *
  * Primarily used by the *Cipher classes for nonce generation
+ * <p>
+ * The offset between the local clock and the NTP servers is sampled once, and
+ * timestamps are then computed from {@link System#nanoTime()}, so that getting
+ * the time does not cost a network round-trip. The offset is re-sampled in
+ * the background every {@link #RESYNC_MINUTES} minutes. If no server can be
+ * reached, the local clock is used until a later attempt succeeds.
  *
  * @author LamaGuy
  */
-public class NTP {
+public abstract class NTP {
 
-    private static final String[] hosts = new String[2];
+    private static final int TIMEOUT = 3000,
+            ATTEMPTS = 2,
+            RESYNC_MINUTES = 30,
+            RETRY_MINUTES = 2;
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "NTP-resync");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Unix epoch in milliseconds, and matching System.nanoTime() value
+    private static volatile long[] base;
+    private static volatile boolean synced = false,
+            started = false;
 
     /**
-     * Returns the current Unix epoch (in milliseconds), obtained by polling the
-     * following NTP server:
-     * <ul>
-     * <li>0.ch.pool.ntp.org</li>
-     * <li>0.is.pool.ntp.org</li>
-     *
-     * </ul>
+     * Returns the current Unix epoch (in milliseconds), based on the last
+     * offset obtained by polling the NTP servers from
+     * {@link Settings#getNTPHosts()}
      * <p>
-     * Waits up to 10 seconds to get a response
+     * If the offset has never been sampled yet, polls the servers first, which
+     * takes at most a few seconds per server. Falls back to the local clock if
+     * none of them answers.
      *
      * @return current Unix epoch, in milliseconds
      */
     public static long getTime() {
+        if (base == null) {
+            start();
+            synchronized (NTP.class) {
+                if (base == null) {
+                    sync();
+                }
+            }
+        }
+
+        long[] b = base;
+        return b[0] + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - b[1]);
+    }
+
+    /**
+     * Returns whether the current timestamps are based on an NTP server, as
+     * opposed to the local clock
+     *
+     * @return true if the last synchronization succeeded
+     */
+    public static boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Starts sampling the clock offset in the background, then periodically
+     * <p>
+     * Has no effect if already started.
+     */
+    public static synchronized void start() {
+        if (!started) {
+            started = true;
+            scheduler.execute(NTP::resync);
+        }
+    }
+
+    /**
+     * Samples the offset and schedules the next synchronization, sooner if the
+     * servers could not be reached
+     */
+    private static void resync() {
+        boolean ok;
+        synchronized (NTP.class) {
+            ok = sync();
+        }
+        scheduler.schedule(NTP::resync, ok ? RESYNC_MINUTES : RETRY_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Polls each NTP server up to {@link #ATTEMPTS} times, until one of them
+     * answers, and stores the resulting time base
+     * <p>
+     * Keeps the previous time base if it came from an NTP server, otherwise
+     * uses the local clock.
+     *
+     * @return true if a server answered
+     */
+    private static boolean sync() {
         NTPUDPClient client = new NTPUDPClient();
-        client.setDefaultTimeout(10000);
-        hosts[0] = "0.ch.pool.ntp.org";
-        hosts[1] = "0.is.pool.ntp.org";
-        boolean done = false;
-        long epoch = 0;
-        int i = 0;
-
-        while (!done) {
-            try {
-                InetAddress hostAddr = InetAddress.getByName(hosts[i]);
-                epoch = client.getTime(hostAddr).getReturnTime();
-                done = true;
-            } catch (IOException ex) {
-                ErrorHandler.showError(ex);
+        client.setDefaultTimeout(TIMEOUT);
+
+        try {
+            for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+                for (String host : Settings.getNTPHosts()) {
+                    try {
+                        TimeInfo info = client.getTime(InetAddress.getByName(host));
+                        info.computeDetails();
+                        Long offset = info.getOffset();
+                        setBase(System.currentTimeMillis() + (offset == null ? 0 : offset));
+                        synced = true;
+                        return true;
+                    } catch (IOException ex) {
+                        // trying the next server
+                    }
+                }
+            }
+
+            if (!synced) {
+                setBase(System.currentTimeMillis());
             }
-            i++;
+            return false;
+        } finally {
+            client.close();
         }
+    }
 
-        client.close();
-        return epoch;
+    /**
+     * Sets the time base used by {@link #getTime()}
+     *
+     * @param millis current Unix epoch, in milliseconds
+     */
+    private static void setBase(long millis) {
+        base = new long[]{millis, System.nanoTime()};
     }
 }
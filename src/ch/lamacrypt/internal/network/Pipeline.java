@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.network;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends requests over a single connection without waiting for the previous
+ * replies
+ * <p>
+ * The server answers requests in the order it receives them, hence replies are
+ * matched to requests by order: every request is written along with the reader
+ * of its reply, which is queued, and a dedicated thread reads the replies one
+ * after the other and completes the matching futures. A batch of N requests
+ * thus costs about one round-trip instead of N.
+ * <p>
+ * If a reply cannot be read, the stream can no longer be trusted to be in
+ * sync, hence every pending and subsequent request fails with the same
+ * exception.
+ *
+ * @author LamaGuy
+ */
+final class Pipeline {
+
+    /**
+     * Reads the reply to a request
+     *
+     * @param <T> reply type
+     */
+    interface Reader<T> {
+
+        T read(DataInputStream dis) throws IOException;
+    }
+
+    private static final class Pending<T> {
+
+        private final Reader<T> reader;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private Pending(Reader<T> reader) {
+            this.reader = reader;
+        }
+
+        private void read(DataInputStream dis) throws IOException {
+            future.complete(reader.read(dis));
+        }
+    }
+
+    private final Closeable connection;
+    private final DataOutputStream dos;
+    private final DataInputStream dis;
+    private final BlockingQueue<Pending<?>> pending = new LinkedBlockingQueue<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Object drained = new Object();
+    private final Thread readerThread;
+    private int inFlight = 0;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile IOException failure;
+
+    /**
+     * Starts reading replies from the given streams
+     *
+     * @param connection underlying connection, closed along with the
+     * pipeline, or null if it is closed by the caller
+     * @param dos stream to write requests to
+     * @param dis stream to read replies from
+     */
+    protected Pipeline(Closeable connection, DataOutputStream dos, DataInputStream dis) {
+        this.connection = connection;
+        this.dos = dos;
+        this.dis = dis;
+        this.readerThread = new Thread(this::readReplies, "Control-reader");
+        this.readerThread.setDaemon(true);
+        this.readerThread.start();
+    }
+
+    /**
+     * Sends a request, without waiting for the replies to the previous ones
+     *
+     * @param <T> reply type
+     * @param request complete request, opcode included
+     * @param reader reads the reply to this request
+     * @return future completed with the reply, or with an IOException if the
+     * request could not be sent or its reply could not be read
+     */
+    protected <T> CompletableFuture<T> submit(byte[] request, Reader<T> reader) {
+        Pending<T> p = new Pending<>(reader);
+
+        writeLock.lock();
+        try {
+            IOException ex = failure;
+            if (ex != null) {
+                p.future.completeExceptionally(ex);
+                return p.future;
+            }
+
+            synchronized (drained) {
+                inFlight++;
+            }
+            pending.add(p);
+
+            // written in a single call, so that each request is sent as a
+            // single TLS record
+            dos.write(request);
+            dos.flush();
+            lastActivity = System.currentTimeMillis();
+        } catch (IOException ex) {
+            fail(ex);
+        } finally {
+            writeLock.unlock();
+        }
+
+        // the reader may have failed before this request was queued
+        if (failure != null) {
+            failPending();
+        }
+
+        return p.future;
+    }
+
+    /**
+     * Sends a request whose reply, if any, is not read
+     *
+     * @param request complete request, opcode included
+     * @throws IOException if the request could not be sent
+     */
+    protected void send(byte[] request) throws IOException {
+        writeLock.lock();
+        try {
+            dos.write(request);
+            dos.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for every pending reply to be read, then gives the calling thread
+     * exclusive use of the streams until {@link #release()} is called
+     * <p>
+     * Used for exchanges where the client has to answer the server.
+     *
+     * @throws IOException if the connection previously failed
+     */
+    protected void acquire() throws IOException {
+        writeLock.lock();
+        try {
+            synchronized (drained) {
+                while (inFlight > 0 && failure == null) {
+                    drained.wait();
+                }
+            }
+        } catch (InterruptedException ex) {
+            writeLock.unlock();
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for pending replies", ex);
+        }
+
+        if (failure != null) {
+            writeLock.unlock();
+            throw failure;
+        }
+    }
+
+    /**
+     * Ends the exclusive use of the streams started by {@link #acquire()}
+     */
+    protected void release() {
+        writeLock.unlock();
+    }
+
+    /**
+     * Returns the output stream, which may only be used between
+     * {@link #acquire()} and {@link #release()}
+     *
+     * @return output stream
+     */
+    protected DataOutputStream getOutputStream() {
+        return dos;
+    }
+
+    /**
+     * Returns the input stream, which may only be used between
+     * {@link #acquire()} and {@link #release()}
+     *
+     * @return input stream
+     */
+    protected DataInputStream getInputStream() {
+        return dis;
+    }
+
+    /**
+     * Marks the connection as failed: every pending and subsequent request
+     * fails with the given exception
+     *
+     * @param ex cause of the failure
+     */
+    protected void fail(IOException ex) {
+        if (failure == null) {
+            failure = ex;
+        }
+        failPending();
+    }
+
+    /**
+     * Stops reading replies, fails every pending request and closes the
+     * underlying connection
+     */
+    protected void close() {
+        fail(new IOException("control connection closed"));
+        readerThread.interrupt();
+
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ex) {
+                // nothing more can be done
+            }
+        }
+    }
+
+    /**
+     * @return true if the connection failed or has been closed
+     */
+    protected boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * @return true if no reply is pending
+     */
+    protected boolean isIdle() {
+        synchronized (drained) {
+            return inFlight == 0;
+        }
+    }
+
+    /**
+     * @return time since the last request was sent or the last reply was
+     * read, in milliseconds
+     */
+    protected long getIdleTime() {
+        return System.currentTimeMillis() - lastActivity;
+    }
+
+    private void failPending() {
+        Pending<?> p;
+        while ((p = pending.poll()) != null) {
+            p.future.completeExceptionally(failure);
+        }
+
+        synchronized (drained) {
+            inFlight = 0;
+            drained.notifyAll();
+        }
+    }
+
+    private void readReplies() {
+        try {
+            while (failure == null) {
+                Pending<?> p = pending.take();
+                try {
+                    p.read(dis);
+                } catch (IOException ex) {
+                    p.future.completeExceptionally(ex);
+                    fail(ex);
+                    return;
+                } catch (RuntimeException ex) {
+                    p.future.completeExceptionally(ex);
+                    fail(new IOException("malformed reply", ex));
+                    return;
+                }
+
+                lastActivity = System.currentTimeMillis();
+                synchronized (drained) {
+                    if (inFlight > 0) {
+                        inFlight--;
+                    }
+                    drained.notifyAll();
+                }
+            }
+        } catch (InterruptedException ex) {
+            // closed
+        }
+    }
+}
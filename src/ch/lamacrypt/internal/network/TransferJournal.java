@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.network;
+
+import ch.lamacrypt.internal.crypto.Checkpoint;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Persisted progress of a resumable transfer
+ * <p>
+ * Each transfer has its own file in the {@link #DIR} directory, named after a
+ * hash of the local and remote paths (and of the size and modification time
+ * of the local file for uploads, so that a modified file starts over). The
+ * file holds the header of the transfer and the number of completed chunks,
+ * and is replaced atomically on every update so that a crash never leaves a
+ * half-written journal behind. It is deleted once the transfer completes.
+ * <p>
+ * The plaintext hashes of the chunks of an upload are appended to a second
+ * file, with the same name and the {@code .chunks} extension, one
+ * {@link #HASH_BYTES} record per chunk.
+ * <p>
+ * Journal errors are not fatal: a lost update only means that more chunks are
+ * transferred again, and a lost hash drops the journal so that the upload
+ * starts over.
+ *
+ * @author LamaGuy
+ */
+final class TransferJournal implements Checkpoint {
+
+    private static final File DIR = new File("desktop-client.journal");
+    private static final int HASH_BYTES = 32;
+
+    private final File file,
+            hashes;
+    private byte[] header;
+    private long chunks;
+
+    private TransferJournal(String key) {
+        this.file = new File(DIR, key);
+        this.hashes = new File(DIR, key + ".chunks");
+        load();
+    }
+
+    /**
+     * Returns the journal of the upload of the given file
+     *
+     * @param input file to upload
+     * @param remoteFilePath destination path
+     * @return journal, empty if no upload of this file was interrupted
+     */
+    protected static TransferJournal forUpload(File input, String remoteFilePath) {
+        return new TransferJournal(key("upload", input.getAbsolutePath(), Long.toString(input.length()),
+                Long.toString(input.lastModified()), ListingCache.normalize(remoteFilePath)));
+    }
+
+    /**
+     * Returns the journal of the download of the given file
+     *
+     * @param remoteFilePath remote file path
+     * @param output destination file
+     * @return journal, empty if no download of this file was interrupted
+     */
+    protected static TransferJournal forDownload(String remoteFilePath, File output) {
+        return new TransferJournal(key("download", ListingCache.normalize(remoteFilePath),
+                output.getAbsolutePath()));
+    }
+
+    @Override
+    public synchronized byte[] getHeader() {
+        return header == null ? null : header.clone();
+    }
+
+    @Override
+    public synchronized long getChunks() {
+        return chunks;
+    }
+
+    @Override
+    public synchronized void start(byte[] header) {
+        this.header = header.clone();
+        this.chunks = 0;
+        save();
+        // dropped after the new header has been saved, so that a crash in
+        // between leaves hashes that can only fail to match
+        hashes.delete();
+    }
+
+    @Override
+    public synchronized void update(long chunks) {
+        if (header != null && chunks > this.chunks) {
+            this.chunks = chunks;
+            save();
+        }
+    }
+
+    @Override
+    public synchronized void record(long index, byte[] hash) {
+        if (header == null) {
+            return;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(hashes, "rw")) {
+            raf.seek(index * HASH_BYTES);
+            raf.write(hash, 0, HASH_BYTES);
+        } catch (IOException ex) {
+            // the chunk could be sent without a hash, hence the upload
+            // cannot be resumed with this header anymore
+            delete();
+        }
+    }
+
+    @Override
+    public synchronized long getHashCount() {
+        return header == null ? 0 : hashes.length() / HASH_BYTES;
+    }
+
+    @Override
+    public synchronized byte[] getHash(long index) {
+        byte[] hash = new byte[HASH_BYTES];
+        try (RandomAccessFile raf = new RandomAccessFile(hashes, "r")) {
+            raf.seek(index * HASH_BYTES);
+            raf.readFully(hash);
+            return hash;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the journal, once the transfer has completed or cannot be
+     * resumed anymore
+     */
+    protected synchronized void delete() {
+        header = null;
+        chunks = 0;
+        file.delete();
+        hashes.delete();
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(in);
+            header = Hex.decode(p.getProperty("header"));
+            chunks = Long.parseLong(p.getProperty("chunks"));
+        } catch (IOException | RuntimeException ex) {
+            // corrupted journal, the transfer starts over
+            header = null;
+            chunks = 0;
+        }
+    }
+
+    private void save() {
+        Properties p = new Properties();
+        p.setProperty("header", Hex.toHexString(header));
+        p.setProperty("chunks", Long.toString(chunks));
+
+        File tmp = new File(DIR, file.getName() + ".tmp");
+        try {
+            DIR.mkdirs();
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                p.store(out, null);
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            tmp.delete();
+        }
+    }
+
+    private static String key(String... parts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                md.update(part.getBytes(StandardCharsets.UTF_8));
+                md.update((byte) 0);
+            }
+            return Hex.toHexString(md.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
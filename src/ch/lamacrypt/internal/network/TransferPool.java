@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.network;
+
+import ch.lamacrypt.internal.Settings;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Pool of authenticated connections to the I/O server
+ * <p>
+ * A single TLS stream rarely fills a fast link, and one large transfer would
+ * otherwise hold back every other one. The pool starts with the connection
+ * opened at login, and opens more on demand, up to
+ * {@link Settings#getConnections()}, using the session token. Connections on
+ * which an I/O error occurred are discarded and replaced on demand, as are
+ * connections left idle for more than {@link #IDLE_TIMEOUT} milliseconds,
+ * since the server or a NAT device along the way may have silently dropped
+ * them.
+ *
+ * @author LamaGuy
+ */
+public abstract class TransferPool {
+
+    /**
+     * Opens a new authenticated connection
+     */
+    protected interface Opener {
+
+        IOChannel open() throws IOException, GeneralSecurityException;
+    }
+
+    private static final long IDLE_TIMEOUT = 60000;
+
+    private static final Deque<IOChannel> idle = new ArrayDeque<>();
+    private static final List<IOChannel> all = new ArrayList<>();
+    private static Opener opener;
+    private static int opening = 0,
+            generation = 0;
+
+    /**
+     * Replaces the pool content with the given connection
+     *
+     * @param first connection opened at login
+     * @param opener opens additional connections, or null if the pool is
+     * limited to the given connection
+     */
+    protected static synchronized void init(IOChannel first, Opener opener) {
+        closeAll(false);
+        generation++;
+        TransferPool.opener = opener;
+        all.add(first);
+        idle.push(first);
+        TransferPool.class.notifyAll();
+    }
+
+    /**
+     * Returns an idle connection, opening a new one if all are busy and the
+     * pool is not full, else waiting for one to be released
+     *
+     * @return connection for the exclusive use of the caller, until released
+     * @throws IOException if no connection could be opened
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public static IOChannel acquire() throws IOException {
+        Opener o;
+        int gen;
+
+        synchronized (TransferPool.class) {
+            while (true) {
+                retireIdle();
+                if (!idle.isEmpty()) {
+                    return idle.pop();
+                } else if (opener != null && all.size() + opening < Math.max(1, Settings.getConnections())) {
+                    opening++;
+                    o = opener;
+                    gen = generation;
+                    break;
+                } else if (opener == null && all.isEmpty()) {
+                    throw new IOException("not connected to the I/O server");
+                }
+
+                try {
+                    TransferPool.class.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for an I/O connection");
+                }
+            }
+        }
+
+        // opening outside of the lock, since the TLS handshake and the login
+        // take a few round-trips
+        IOChannel channel = null;
+        boolean kept = false;
+        try {
+            channel = o.open();
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("could not open an I/O connection", ex);
+        } finally {
+            synchronized (TransferPool.class) {
+                opening--;
+                // the pool may have been reset while opening
+                if (channel != null && generation == gen) {
+                    all.add(channel);
+                    kept = true;
+                }
+                TransferPool.class.notifyAll();
+            }
+        }
+
+        if (!kept) {
+            channel.disconnect();
+            throw new IOException("not connected to the I/O server");
+        }
+        return channel;
+    }
+
+    /**
+     * Gives a connection back to the pool
+     *
+     * @param channel connection returned by {@link #acquire()}
+     * @param healthy false if an I/O error occurred on the connection, in
+     * which case it is closed
+     */
+    public static synchronized void release(IOChannel channel, boolean healthy) {
+        if (!all.contains(channel)) {
+            // pool was reset in the meantime
+            channel.close();
+        } else if (healthy) {
+            channel.setDeadline(0);
+            channel.touch();
+            idle.push(channel);
+        } else {
+            all.remove(channel);
+            channel.close();
+        }
+        TransferPool.class.notifyAll();
+    }
+
+    /**
+     * Disconnects every connection, including the ones in use
+     */
+    public static synchronized void shutdown() {
+        closeAll(true);
+        generation++;
+        opener = null;
+        TransferPool.class.notifyAll();
+    }
+
+    /**
+     * Closes the connections which have been idle for too long, unless they
+     * cannot be replaced
+     */
+    private static void retireIdle() {
+        if (opener == null) {
+            return;
+        }
+
+        Iterator<IOChannel> it = idle.iterator();
+        while (it.hasNext()) {
+            IOChannel c = it.next();
+            if (c.getIdleTime() > IDLE_TIMEOUT) {
+                it.remove();
+                all.remove(c);
+                c.close();
+            }
+        }
+    }
+
+    private static void closeAll(boolean disconnect) {
+        for (IOChannel c : all) {
+            if (disconnect && idle.contains(c)) {
+                c.disconnect();
+            } else {
+                c.close();
+            }
+        }
+        all.clear();
+        idle.clear();
+    }
+}
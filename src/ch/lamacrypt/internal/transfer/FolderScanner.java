@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.transfer;
+
+import ch.lamacrypt.internal.network.Control;
+import ch.lamacrypt.visual.ErrorHandler;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queues the upload of a local directory tree while scanning it
+ * <p>
+ * Each directory is scanned by its own fork/join task, on a pool of
+ * {@link #PARALLELISM} threads. Files are added to the {@link TransferQueue}
+ * by batches of {@link #BATCH_SIZE} as they are found, hence the first
+ * uploads start long before the scan of a large tree completes. The
+ * subdirectories of a directory are created on the server with pipelined
+ * mkdir requests before they are scanned, so that a file is never queued
+ * before its remote directory exists. Symbolic links to directories are not
+ * followed.
+ *
+ * @author LamaGuy
+ */
+public final class FolderScanner {
+
+    private static final int BATCH_SIZE = 1024,
+            PARALLELISM = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final AtomicInteger threadCnt = new AtomicInteger();
+
+    private final long generation;
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile Exception firstFailure;
+
+    private FolderScanner(long generation) {
+        this.generation = generation;
+    }
+
+    /**
+     * Starts queuing the upload of a local directory in the background
+     * <p>
+     * The scan stops if the queue is emptied by
+     * {@link TransferQueue#cancelAll()}. Directories which could not be read
+     * or created are reported once the scan completes.
+     *
+     * @param localDir local directory
+     * @param remoteDir existing remote directory receiving its contents
+     */
+    public static void start(File localDir, String remoteDir) {
+        final FolderScanner scanner = new FolderScanner(TransferQueue.addProducer());
+        final ForkJoinPool pool = new ForkJoinPool(PARALLELISM, p -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("Folder-scan-" + threadCnt.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, null, false);
+
+        pool.execute(() -> {
+            try {
+                scanner.new DirTask(localDir.toPath(), remoteDir).invoke();
+            } finally {
+                TransferQueue.removeProducer();
+                pool.shutdown();
+                scanner.report(localDir);
+            }
+        });
+    }
+
+    private void fail(Exception ex) {
+        if (failures.getAndIncrement() == 0) {
+            firstFailure = ex;
+        }
+    }
+
+    private void report(File localDir) {
+        int n = failures.get();
+        if (n > 0 && !TransferQueue.isCancelled(generation)) {
+            ErrorHandler.showError("could not upload " + n + " folder(s) of '" + localDir.getAbsolutePath()
+                    + "'.\n" + firstFailure.getClass().getSimpleName() + ": " + firstFailure.getMessage());
+        }
+    }
+
+    /**
+     * Scans a directory whose remote counterpart exists, then its
+     * subdirectories in parallel
+     */
+    private final class DirTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path local;
+        private final String remote;
+
+        private DirTask(Path local, String remote) {
+            this.local = local;
+            this.remote = remote;
+        }
+
+        @Override
+        protected void compute() {
+            if (TransferQueue.isCancelled(generation)) {
+                return;
+            }
+
+            List<Transfer> files = new ArrayList<>();
+            List<Path> dirs = new ArrayList<>();
+
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(local)) {
+                for (Path p : ds) {
+                    if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                        dirs.add(p);
+                    } else if (Files.isRegularFile(p)) {
+                        files.add(new Transfer(Transfer.Type.UPLOAD, p.toAbsolutePath().toString(),
+                                Manifest.join(remote, p.getFileName().toString())));
+                        if (files.size() == BATCH_SIZE) {
+                            if (TransferQueue.isCancelled(generation)) {
+                                return;
+                            }
+                            TransferQueue.addAll(files);
+                            files = new ArrayList<>();
+                        }
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException ex) {
+                fail(ex);
+            }
+
+            if (TransferQueue.isCancelled(generation)) {
+                return;
+            }
+            if (!files.isEmpty()) {
+                TransferQueue.addAll(files);
+            }
+            if (dirs.isEmpty()) {
+                return;
+            }
+
+            List<CompletableFuture<Boolean>> replies = new ArrayList<>(dirs.size());
+            for (Path d : dirs) {
+                replies.add(Control.mkdirAsync(Manifest.join(remote, d.getFileName().toString())));
+            }
+
+            List<DirTask> tasks = new ArrayList<>(dirs.size());
+            for (int i = 0; i < dirs.size(); i++) {
+                String path = Manifest.join(remote, dirs.get(i).getFileName().toString());
+                try {
+                    // false if the directory already exists
+                    Control.await(replies.get(i));
+                    tasks.add(new DirTask(dirs.get(i), path));
+                } catch (IOException ex) {
+                    fail(ex);
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+}
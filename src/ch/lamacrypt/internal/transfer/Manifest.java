@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.transfer;
+
+import ch.lamacrypt.internal.network.Control;
+import ch.lamacrypt.internal.network.Listing;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Files and directories of a remote directory tree
+ * <p>
+ * The tree is listed level by level, with up to {@link #MAX_IN_FLIGHT}
+ * listings requested before the first reply is read, hence listing a tree
+ * costs about one round trip per level instead of one per directory. Paths
+ * are relative to the root of the tree, and a directory is always listed
+ * before its subdirectories.
+ *
+ * @author LamaGuy
+ */
+public final class Manifest {
+
+    private static final int MAX_IN_FLIGHT = 64;
+
+    private final String root;
+    private final List<String> dirs = new ArrayList<>();
+    private final List<String> files = new ArrayList<>();
+    private long[] sizes = new long[64];
+    private long totalSize = 0;
+
+    private Manifest(String root) {
+        this.root = root;
+    }
+
+    /**
+     * Lists a remote directory tree
+     *
+     * @param root path of the remote directory
+     * @return manifest of the tree
+     * @throws IOException if the control server could not be reached
+     */
+    public static Manifest build(String root) throws IOException {
+        Manifest m = new Manifest(root);
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add("");
+
+        while (!queue.isEmpty()) {
+            int n = Math.min(queue.size(), MAX_IN_FLIGHT);
+            String[] batch = new String[n];
+            List<CompletableFuture<Listing>> replies = new ArrayList<>(n);
+
+            for (int i = 0; i < n; i++) {
+                batch[i] = queue.poll();
+                replies.add(Control.list(join(root, batch[i]), null));
+            }
+
+            for (int i = 0; i < n; i++) {
+                Listing l = Control.await(replies.get(i));
+                for (int j = 0; j < l.size(); j++) {
+                    String path = join(batch[i], l.getName(j));
+                    if (l.isDirectory(j)) {
+                        m.dirs.add(path);
+                        queue.add(path);
+                    } else {
+                        m.addFile(path, l.getSize(j));
+                    }
+                }
+            }
+        }
+
+        return m;
+    }
+
+    private void addFile(String path, long size) {
+        if (files.size() == sizes.length) {
+            sizes = Arrays.copyOf(sizes, sizes.length * 2);
+        }
+        sizes[files.size()] = size;
+        files.add(path);
+        totalSize += size;
+    }
+
+    /**
+     * Joins a directory path and a name with a single separator
+     *
+     * @param dir directory path, may be empty
+     * @param name file or directory name, may be empty
+     * @return joined path
+     */
+    public static String join(String dir, String name) {
+        if (dir.isEmpty()) {
+            return name;
+        } else if (name.isEmpty()) {
+            return dir;
+        }
+        return dir.endsWith("/") ? dir + name : dir + "/" + name;
+    }
+
+    /**
+     * @return path of the remote directory
+     */
+    public String getRoot() {
+        return root;
+    }
+
+    /**
+     * @return relative paths of the subdirectories, parents first
+     */
+    public List<String> getDirs() {
+        return dirs;
+    }
+
+    /**
+     * @return number of files
+     */
+    public int getFileCount() {
+        return files.size();
+    }
+
+    /**
+     * @param index file index
+     * @return relative path of the file
+     */
+    public String getFile(int index) {
+        return files.get(index);
+    }
+
+    /**
+     * @param index file index
+     * @return size of the file in bytes
+     */
+    public long getSize(int index) {
+        return sizes[index];
+    }
+
+    /**
+     * @return total size of the files in bytes
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+}
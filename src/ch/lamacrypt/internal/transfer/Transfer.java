@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.transfer;
+
+import ch.lamacrypt.internal.crypto.Progress;
+import ch.lamacrypt.internal.crypto.StatusListener;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Upload or download waiting in, or taken from, the {@link TransferQueue}
+ * <p>
+ * The type, paths and priority are fixed at creation. The state, status text
+ * and {@link Progress} are written by the thread running the transfer and
+ * read by the UI, hence they can be read at any time without locking.
+ *
+ * @author LamaGuy
+ */
+public final class Transfer implements StatusListener {
+
+    public enum Type {
+        UPLOAD("Upload"),
+        DOWNLOAD("Download");
+
+        private final String label;
+
+        private Type(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    public enum State {
+        PENDING,
+        RUNNING,
+        DONE,
+        FAILED,
+        CANCELLED
+    }
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private final long id = sequence.incrementAndGet();
+    private final Type type;
+    private final String source,
+            destination;
+    private final int priority;
+    private final Transfer parent;
+    private final AtomicReference<State> state = new AtomicReference<>(State.PENDING);
+    private final Progress progress = new Progress();
+    private volatile String status = "Pending";
+    private volatile long size = -1;
+
+    /**
+     * Creates a pending transfer with the normal priority
+     *
+     * @param type upload or download
+     * @param source local path of an upload, remote path or share UUID of a
+     * download
+     * @param destination remote path of an upload, local path of a download
+     */
+    public Transfer(Type type, String source, String destination) {
+        this(type, source, destination, 0);
+    }
+
+    /**
+     * Creates a pending transfer
+     *
+     * @param type upload or download
+     * @param source local path of an upload, remote path or share UUID of a
+     * download
+     * @param destination remote path of an upload, local path of a download
+     * @param priority transfers with a higher priority are started first
+     */
+    public Transfer(Type type, String source, String destination, int priority) {
+        this.type = type;
+        this.source = source;
+        this.destination = destination;
+        this.priority = priority;
+        this.parent = null;
+    }
+
+    /**
+     * Creates a pending download of a file found in a directory being
+     * downloaded, started before the other pending transfers with the same
+     * priority as the directory
+     *
+     * @param parent download of the directory
+     * @param source remote path of the file
+     * @param destination local path of the file
+     * @param size size of the file in bytes
+     */
+    public Transfer(Transfer parent, String source, String destination, long size) {
+        this.type = Type.DOWNLOAD;
+        this.source = source;
+        this.destination = destination;
+        this.priority = parent.priority + 1;
+        this.parent = parent;
+        this.size = size;
+    }
+
+    /**
+     * @return sequence number, increasing with the creation order
+     */
+    public long getId() {
+        return id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return download of the directory holding the file, or null if the
+     * transfer was requested on its own
+     */
+    public Transfer getParent() {
+        return parent;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * @return status text shown in the file queue
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    @Override
+    public void update(String status) {
+        progress.stop();
+        this.status = status;
+    }
+
+    @Override
+    public Progress getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return size of the transferred file in bytes, or -1 if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @param size size of the transferred file in bytes
+     */
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * Marks a running transfer as completed
+     *
+     * @param success true if the transfer succeeded
+     */
+    public void finish(boolean success) {
+        progress.stop();
+        state.compareAndSet(State.RUNNING, success ? State.DONE : State.FAILED);
+    }
+
+    /**
+     * Marks a pending transfer as running
+     *
+     * @return false if the transfer is not pending anymore
+     */
+    protected boolean start() {
+        if (state.compareAndSet(State.PENDING, State.RUNNING)) {
+            status = "In progress";
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks a pending transfer as cancelled
+     *
+     * @return false if the transfer is not pending anymore
+     */
+    protected boolean cancel() {
+        if (state.compareAndSet(State.PENDING, State.CANCELLED)) {
+            status = "Cancelled";
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.internal.transfer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of the uploads and downloads requested by the user
+ * <p>
+ * Pending transfers are taken by order of priority, then by order of
+ * creation. Every transfer stays listed, in creation order, until it is
+ * removed once completed or cancelled. Both structures are concurrent and
+ * every operation costs O(log n), hence the queue can hold hundreds of
+ * thousands of transfers. The UI renders a snapshot of it on a timer, see
+ * {@link #getModCount()}, instead of being updated by every operation.
+ *
+ * @author LamaGuy
+ */
+public abstract class TransferQueue {
+
+    private static final Comparator<Transfer> ORDER = Comparator.comparingInt(Transfer::getPriority).reversed()
+            .thenComparingLong(Transfer::getId);
+    private static final PriorityBlockingQueue<Transfer> pending = new PriorityBlockingQueue<>(64, ORDER);
+    private static final ConcurrentSkipListMap<Long, Transfer> listed = new ConcurrentSkipListMap<>();
+    private static final Set<Transfer> running = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong modCount = new AtomicLong(),
+            generation = new AtomicLong();
+    private static final AtomicInteger producers = new AtomicInteger();
+    private static final Object signal = new Object();
+
+    /**
+     * Appends a pending transfer
+     *
+     * @param t transfer to add
+     */
+    public static void add(Transfer t) {
+        listed.put(t.getId(), t);
+        pending.add(t);
+        modCount.incrementAndGet();
+        signal();
+    }
+
+    /**
+     * Appends pending transfers
+     *
+     * @param transfers transfers to add
+     */
+    public static void addAll(Collection<Transfer> transfers) {
+        for (Transfer t : transfers) {
+            listed.put(t.getId(), t);
+        }
+        pending.addAll(transfers);
+        modCount.incrementAndGet();
+        signal();
+    }
+
+    /**
+     * Registers a task which keeps adding transfers in the background, such
+     * as a folder scan, so that the transfers are not considered finished
+     * while it runs
+     *
+     * @return generation of the queue, see {@link #isCancelled(long)}
+     */
+    public static long addProducer() {
+        producers.incrementAndGet();
+        return generation.get();
+    }
+
+    /**
+     * Unregisters a task registered with {@link #addProducer()}
+     */
+    public static void removeProducer() {
+        producers.decrementAndGet();
+        signal();
+    }
+
+    /**
+     * @return true if a task registered with {@link #addProducer()} is
+     * running
+     */
+    public static boolean isProducing() {
+        return producers.get() > 0;
+    }
+
+    /**
+     * @param generation generation returned by {@link #addProducer()}
+     * @return true if the queue was emptied by {@link #cancelAll()} since the
+     * producer was registered
+     */
+    public static boolean isCancelled(long generation) {
+        return generation != TransferQueue.generation.get();
+    }
+
+    /**
+     * Waits until a transfer is pending or until no task adds transfers
+     * anymore
+     *
+     * @param timeout maximum wait in milliseconds
+     * @return true if a transfer is pending
+     * @throws InterruptedException if the thread is interrupted
+     */
+    public static boolean awaitPending(long timeout) throws InterruptedException {
+        synchronized (signal) {
+            if (!hasPending() && isProducing()) {
+                signal.wait(timeout);
+            }
+        }
+        return hasPending();
+    }
+
+    private static void signal() {
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Takes the next pending transfer and marks it as running, dropping the
+     * cancelled ones found on the way
+     *
+     * @return next transfer, or null if none is pending
+     */
+    public static Transfer poll() {
+        Transfer t;
+        while ((t = pending.poll()) != null) {
+            if (t.start()) {
+                running.add(t);
+                modCount.incrementAndGet();
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if a transfer is pending
+     */
+    public static boolean hasPending() {
+        Transfer t;
+        while ((t = pending.peek()) != null) {
+            if (t.getState() == Transfer.State.PENDING) {
+                return true;
+            }
+            pending.remove(t);
+        }
+        return false;
+    }
+
+    /**
+     * Cancels a pending transfer and removes it from the queue
+     * <p>
+     * Running transfers are not affected.
+     *
+     * @param t transfer to cancel
+     * @return true if the transfer was pending
+     */
+    public static boolean cancel(Transfer t) {
+        if (t.cancel()) {
+            // left in the pending queue until it reaches its head
+            remove(t);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Cancels every pending transfer and empties the list, when
+     * disconnecting
+     */
+    public static void cancelAll() {
+        generation.incrementAndGet();
+        for (Transfer t : listed.values()) {
+            t.cancel();
+        }
+        pending.clear();
+        listed.clear();
+        running.clear();
+        modCount.incrementAndGet();
+    }
+
+    /**
+     * Removes a transfer from the list, once completed
+     *
+     * @param t transfer to remove
+     */
+    public static void remove(Transfer t) {
+        running.remove(t);
+        if (listed.remove(t.getId()) != null) {
+            modCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return listed transfers, in creation order
+     */
+    public static List<Transfer> snapshot() {
+        return new ArrayList<>(listed.values());
+    }
+
+    /**
+     * @return first running transfer, or null if none is running
+     */
+    public static Transfer getRunning() {
+        for (Transfer t : listed.values()) {
+            if (t.getState() == Transfer.State.RUNNING) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the transfers taken from the queue and not removed yet, without
+     * going through the whole list
+     *
+     * @return running transfers, some of which may have completed already
+     */
+    public static List<Transfer> snapshotRunning() {
+        return new ArrayList<>(running);
+    }
+
+    /**
+     * Returns the disk space still needed by the listed downloads of files
+     * found in directories, whose sizes are known before they start
+     * <p>
+     * The bytes already written by the running ones are counted again, which
+     * errs on the safe side.
+     *
+     * @return size of the pending and running file downloads, in bytes
+     */
+    public static long getReservedSpace() {
+        long size = 0;
+        for (Transfer t : listed.values()) {
+            Transfer.State state = t.getState();
+            if (t.getParent() != null && (state == Transfer.State.PENDING || state == Transfer.State.RUNNING)) {
+                size += t.getSize();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns a counter incremented whenever a transfer is added, started or
+     * removed, so that the UI only takes a new snapshot when needed
+     *
+     * @return modification count
+     */
+    public static long getModCount() {
+        return modCount.get();
+    }
+}
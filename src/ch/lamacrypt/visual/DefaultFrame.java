@@ -11,19 +11,24 @@
 import ch.lamacrypt.internal.Settings;
 import ch.lamacrypt.internal.crypto.DefaultCipher;
 import ch.lamacrypt.internal.crypto.GPCrypto;
+import ch.lamacrypt.internal.crypto.Progress;
 import ch.lamacrypt.internal.file.GPFile;
 import ch.lamacrypt.internal.network.Control;
 import ch.lamacrypt.internal.network.IO;
+import ch.lamacrypt.internal.network.Listing;
+import ch.lamacrypt.internal.transfer.FolderScanner;
+import ch.lamacrypt.internal.transfer.Transfer;
+import ch.lamacrypt.internal.transfer.TransferQueue;
 import ch.lamacrypt.visual.workers.FileWorker;
 import ch.lamacrypt.visual.workers.ShareWorker;
 import java.awt.FileDialog;
 import java.awt.Frame;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.logging.Logger;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
@@ -48,13 +53,16 @@ public class DefaultFrame extends javax.swing.JFrame {
     private long time = System.currentTimeMillis();
     private static String quotaMax;
     private static boolean disconnecting = false;
-    private static DefaultTableModel dtmFileTable, dtmFileQueue;
-    private static Iterator<Map.Entry<String, Long>> dirMapIter;
-    private static Iterator<Map.Entry<String, Long[]>> fileMapIter;
+    private static DefaultTableModel dtmFileTable;
+    private static TransferTableModel queueModel;
 
     public DefaultFrame() throws IOException {
         initComponents();
         setLocationRelativeTo(null);
+        // keeping the columns set up by initComponents
+        fileQueue.setAutoCreateColumnsFromModel(false);
+        queueModel = new TransferTableModel(fileQueue);
+        fileQueue.setModel(queueModel);
         quota = Settings.getQuotaSize();
         if (quota == 500000000000L) {
             quotaMax = "500 GB";
@@ -74,47 +82,45 @@ public DefaultFrame() throws IOException {
      * @throws IOException
      */
     public static void updateFileTable() throws IOException {
-        Map<String, Long> dirMap = Control.lsdir(Control.cwd());
-        Map<String, Long[]> fileMap = Control.lsfile(Control.cwd());
-        int itemCount = dirMap.size() + fileMap.size(),
-                i = 0;
-
-        if (!Control.isAtRoot()) {
-            setFileTableSize(itemCount + 1);
+        // the whole listing costs a single round-trip, or none when cached;
+        // called from the EDT, hence bounded by the read timeout
+        String cwd = Control.cwd();
+        Listing listing = Control.await(Control.list(cwd, null), Settings.getTimeout());
+        int i = 0;
+
+        if (!cwd.equals("/")) {
+            setFileTableSize(listing.size() + 1);
             fileTable.setValueAt("..", i, 0);
             fileTable.setValueAt("", i, 1);
             fileTable.setValueAt("Directory", i, 2);
             fileTable.setValueAt("", i, 3);
             i++;
         } else {
-            setFileTableSize(itemCount);
+            setFileTableSize(listing.size());
         }
 
-        if (!dirMap.isEmpty()) {
-            dirMapIter = dirMap.entrySet().iterator();
-            while (dirMapIter.hasNext()) {
-                Map.Entry<String, Long> entry = dirMapIter.next();
-                fileTable.setValueAt(entry.getKey(), i, 0);
-                fileTable.setValueAt(new Date(entry.getValue()), i, 1);
+        // directories first, then files
+        for (int j = 0; j < listing.size(); j++) {
+            if (listing.isDirectory(j)) {
+                fileTable.setValueAt(listing.getName(j), i, 0);
+                fileTable.setValueAt(new Date(listing.getTime(j)), i, 1);
                 fileTable.setValueAt("Directory", i, 2);
                 fileTable.setValueAt("", i, 3);
                 i++;
             }
         }
 
-        if (!fileMap.isEmpty()) {
-            fileMapIter = fileMap.entrySet().iterator();
-            while (fileMapIter.hasNext()) {
-                Map.Entry<String, Long[]> entry = fileMapIter.next();
-                fileTable.setValueAt(entry.getKey(), i, 0);
-                fileTable.setValueAt(new Date(entry.getValue()[0]), i, 1);
+        for (int j = 0; j < listing.size(); j++) {
+            if (!listing.isDirectory(j)) {
+                fileTable.setValueAt(listing.getName(j), i, 0);
+                fileTable.setValueAt(new Date(listing.getTime(j)), i, 1);
                 fileTable.setValueAt("File", i, 2);
-                fileTable.setValueAt(GPFile.longToSize(entry.getValue()[1]), i, 3);
+                fileTable.setValueAt(GPFile.longToSize(listing.getSize(j)), i, 3);
                 i++;
             }
         }
 
-        long usageBytes = Control.quotaused();
+        long usageBytes = listing.getQuotaUsed();
         quotaAmount.setText(GPFile.longToSize(usageBytes) + " / " + quotaMax);
     }
 
@@ -130,23 +136,24 @@ public static void setFileTableSize(int newRowCount) {
     }
 
     /**
-     * Sets a new row count for the file queue
+     * Sets a new status for the first running item in the file queue
      *
-     * @param newRowCount new row count
+     * @param status new status
      */
-    public static void updateFileQueueSize(int newRowCount) {
-        dtmFileQueue = (DefaultTableModel) fileQueue.getModel();
-        dtmFileQueue.setRowCount(dtmFileQueue.getRowCount() + newRowCount);
-        fileQueue.setModel(dtmFileQueue);
+    public static void setFileQueueItemStatus(String status) {
+        Transfer t = TransferQueue.getRunning();
+        if (t != null) {
+            t.update(status);
+        }
     }
 
     /**
-     * Sets a new status for the first item in the file queue
-     *
-     * @param status new status
+     * @return progress of the first running item in the file queue, or null
+     * if none is running
      */
-    public static void setFileQueueItemStatus(String status) {
-        fileQueue.setValueAt(status, 0, 2);
+    public static Progress getFileQueueItemProgress() {
+        Transfer t = TransferQueue.getRunning();
+        return t != null ? t.getProgress() : null;
     }
 
     private String sanitize(String s) {
@@ -176,6 +183,7 @@ private void initComponents() {
         menuBar = new javax.swing.JMenuBar();
         fileMenu = new javax.swing.JMenu();
         uploadMenuItem = new javax.swing.JMenuItem();
+        uploadFolderMenuItem = new javax.swing.JMenuItem();
         downloadMenuItem = new javax.swing.JMenuItem();
         downloadShareMenuItem = new javax.swing.JMenuItem();
         jSeparator2 = new javax.swing.JPopupMenu.Separator();
@@ -380,6 +388,15 @@ public void actionPerformed(java.awt.event.ActionEvent evt) {
         });
         fileMenu.add(uploadMenuItem);
 
+        uploadFolderMenuItem.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_O, java.awt.event.InputEvent.SHIFT_MASK | java.awt.event.InputEvent.CTRL_MASK));
+        uploadFolderMenuItem.setText("Upload folder");
+        uploadFolderMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                uploadFolderMenuItemActionPerformed(evt);
+            }
+        });
+        fileMenu.add(uploadFolderMenuItem);
+
         downloadMenuItem.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_S, java.awt.event.InputEvent.CTRL_MASK));
         downloadMenuItem.setText("Download");
         downloadMenuItem.addActionListener(new java.awt.event.ActionListener() {
@@ -614,24 +631,52 @@ private void uploadMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GE
         fd.setMultipleMode(true);
         fd.setVisible(true);
         if (fd.getFiles().length > 0) {
-            int i = fileQueue.getRowCount();
-            updateFileQueueSize(fd.getFiles().length);
-
+            List<Transfer> transfers = new ArrayList<>();
             for (File f : fd.getFiles()) {
-                fileQueue.setValueAt(f.getAbsolutePath(), i, 0);
-                fileQueue.setValueAt(cwd + f.getName(), i, 1);
-                fileQueue.setValueAt("Pending", i, 2);
-                fileQueue.setValueAt("Upload", i, 3);
-                i++;
+                transfers.add(new Transfer(Transfer.Type.UPLOAD, f.getAbsolutePath(), cwd + f.getName()));
             }
+            TransferQueue.addAll(transfers);
 
             if (!Settings.isWorking()) {
-                fw = new FileWorker(fileQueue);
+                fw = new FileWorker();
                 fw.execute();
             }
         }
     }//GEN-LAST:event_uploadMenuItemActionPerformed
 
+    private void uploadFolderMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_uploadFolderMenuItemActionPerformed
+        JFileChooser fc = new JFileChooser();
+        fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        fc.setMultiSelectionEnabled(false);
+
+        if (fc.showDialog(this, "Upload folder") == JFileChooser.APPROVE_OPTION) {
+            File dir = fc.getSelectedFile();
+            String remoteDir;
+
+            try {
+                cwd = Control.cwd();
+                remoteDir = cwd + sanitize(dir.getName());
+                // the folder may already exist, its files are then merged
+                if (!Control.mkdir(remoteDir) && !Control.dirchk(remoteDir)) {
+                    ErrorHandler.showError("could not create the folder '" + remoteDir + "'.");
+                    return;
+                }
+                updateFileTable();
+            } catch (IOException ex) {
+                ErrorHandler.showError(ex);
+                return;
+            }
+
+            // files are queued while the folder is scanned
+            FolderScanner.start(dir, remoteDir);
+
+            if (!Settings.isWorking()) {
+                fw = new FileWorker();
+                fw.execute();
+            }
+        }
+    }//GEN-LAST:event_uploadFolderMenuItemActionPerformed
+
 
     private void benchmarkMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_benchmarkMenuItemActionPerformed
         int res = JOptionPane.showConfirmDialog(this, "This will benchmark your computer by "
@@ -684,6 +729,8 @@ private void disconnectMenuItemActionPerformed(java.awt.event.ActionEvent evt) {
                 fw.cancel(true);
                 Settings.setIsWorking(false);
             }
+            TransferQueue.cancelAll();
+            queueModel.dispose();
 
             LoginForm.main(null);
         }
@@ -706,7 +753,6 @@ private void downloadActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRS
 
             boolean isSetDLDir = false;
             String dlDir = new String();
-            int i = fileQueue.getRowCount();
 
             if (!Settings.isDLDir()) {
                 JFileChooser fc = new JFileChooser();
@@ -727,20 +773,15 @@ private void downloadActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRS
             }
 
             if (isSetDLDir && fileTable.getSelectedRows().length > 0) {
-                updateFileQueueSize(fileTable.getSelectedRows().length);
-
+                List<Transfer> transfers = new ArrayList<>();
                 for (int row : fileTable.getSelectedRows()) {
-                    fileQueue.setValueAt(cwd + (String) fileTable.getValueAt(
-                            row, 0), i, 0);
-                    fileQueue.setValueAt(dlDir + fileTable.getValueAt(row, 0),
-                            i, 1);
-                    fileQueue.setValueAt("Pending", i, 2);
-                    fileQueue.setValueAt("Download", i, 3);
-                    i++;
+                    String name = (String) fileTable.getValueAt(row, 0);
+                    transfers.add(new Transfer(Transfer.Type.DOWNLOAD, cwd + name, dlDir + name));
                 }
+                TransferQueue.addAll(transfers);
 
                 if (!Settings.isWorking()) {
-                    fw = new FileWorker(fileQueue);
+                    fw = new FileWorker();
                     fw.execute();
                 }
             }
@@ -800,6 +841,7 @@ private void refreshMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//G
         if (System.currentTimeMillis() + 1000 > time) {
             time = System.currentTimeMillis();
             try {
+                Control.refresh(Control.cwd());
                 updateFileTable();
             } catch (IOException ex) {
                 ErrorHandler.showError(ex);
@@ -886,12 +928,9 @@ private void moveActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:ev
     }//GEN-LAST:event_moveActionPerformed
 
     private void deleteQueueItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_deleteQueueItemActionPerformed
-        if (fileQueue.getSelectedRowCount() > 0) {
-            for (int row : fileQueue.getSelectedRows()) {
-                if (fileQueue.getValueAt(row, 2).equals("Pending")) {
-                    fileQueue.setValueAt("Cancelled", row, 2);
-                }
-            }
+        // running items are not affected
+        for (Transfer t : queueModel.getSelected()) {
+            TransferQueue.cancel(t);
         }
     }//GEN-LAST:event_deleteQueueItemActionPerformed
 
@@ -1045,7 +1084,6 @@ private void downloadShareMenuItemActionPerformed(java.awt.event.ActionEvent evt
                             if (res == JOptionPane.YES_OPTION) {
                                 boolean isSetDLDir = false;
                                 String dlDir = new String();
-                                int i = fileQueue.getRowCount();
 
                                 if (!Settings.isDLDir()) {
                                     JFileChooser fc = new JFileChooser();
@@ -1066,16 +1104,11 @@ private void downloadShareMenuItemActionPerformed(java.awt.event.ActionEvent evt
                                 }
 
                                 if (isSetDLDir) {
-                                    updateFileQueueSize(1);
-
-                                    fileQueue.setValueAt(uuid, i, 0);
-                                    fileQueue.setValueAt(dlDir + fileName, i, 1);
-                                    fileQueue.setValueAt("Pending", i, 2);
-                                    fileQueue.setValueAt("Download", i, 3);
-                                    i++;
+                                    TransferQueue.add(new Transfer(Transfer.Type.DOWNLOAD, uuid, dlDir + fileName));
 
                                     if (!Settings.isWorking()) {
-                                        new FileWorker(fileQueue).execute();
+                                        fw = new FileWorker();
+                                        fw.execute();
                                     }
                                 }
                             }
@@ -1169,6 +1202,7 @@ public static void main(String args[]) {
     private javax.swing.JMenuItem shareMenuItem;
     private javax.swing.JMenu toolsMenu;
     private javax.swing.JMenuItem unshareMenuItem;
+    private javax.swing.JMenuItem uploadFolderMenuItem;
     private javax.swing.JMenuItem uploadMenuItem;
     private javax.swing.JMenu viewMenu;
     // End of variables declaration//GEN-END:variables
@@ -8,11 +8,13 @@
  */
 package ch.lamacrypt.visual;
 
+import ch.lamacrypt.internal.crypto.Progress;
 import ch.lamacrypt.internal.file.GPFile;
 import ch.lamacrypt.visual.workers.ShareWorker;
 import java.io.File;
 import java.io.IOException;
 import javax.swing.JOptionPane;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 
 /**
@@ -27,6 +29,10 @@ public class DownloadFrame extends javax.swing.JFrame {
             filePath,
             fileSize;
     private static boolean done = false;
+    private static final Progress progress = new Progress();
+    private static final ProgressSampler sampler = new ProgressSampler();
+    private static volatile String status = "Pending";
+    private final Timer timer;
 
     /**
      * Creates new form DownloadForm
@@ -38,6 +44,9 @@ public DownloadFrame() {
         filenameLabelStatus.setText(fileName);
         sizeLabelStatus.setText(fileSize);
         destinationLabelStatus.setText(filePath);
+        timer = new Timer(ProgressSampler.SAMPLE_INTERVAL,
+                e -> statusLabelStatus.setText(sampler.sample(progress, status)));
+        timer.start();
     }
 
     public static void setWorker(ShareWorker sw) {
@@ -50,8 +59,29 @@ public static void setText(String fileName, long size, File destFile) throws IOE
         DownloadFrame.filePath = destFile.getCanonicalPath();
     }
 
+    /**
+     * Sets the status text, shown once the window samples it
+     * <p>
+     * May be called from any thread.
+     *
+     * @param status new status text
+     */
     public static void updateStatus(String status) {
-        statusLabelStatus.setText(status);
+        progress.stop();
+        DownloadFrame.status = status;
+    }
+
+    /**
+     * @return progress of the download, sampled by the window
+     */
+    public static Progress getProgress() {
+        return progress;
+    }
+
+    @Override
+    public void dispose() {
+        timer.stop();
+        super.dispose();
     }
 
     public static void finish() {
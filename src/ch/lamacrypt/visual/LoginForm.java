@@ -18,13 +18,13 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.net.ssl.SSLSocket;
 import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
 import javax.swing.UIManager;
 
 /**
@@ -42,6 +42,8 @@ public class LoginForm extends javax.swing.JFrame {
     private static DataOutputStream ctrlDos;
     private static DataInputStream ctrlDis;
 
+    private LoginWorker loginWorker;
+
     /**
      * Creates new form LoginForm
      */
@@ -184,19 +186,36 @@ public void actionPerformed(java.awt.event.ActionEvent evt) {
         pack();
     }// </editor-fold>//GEN-END:initComponents
 
+    /**
+     * @return true if a login is in progress
+     */
+    private boolean isLoggingIn() {
+        return loginWorker != null && !loginWorker.isDone();
+    }
+
     private void loginButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_loginButtonActionPerformed
-        if (usernameField.getText().length() < 6) {
+        if (isLoggingIn()) {
+            loginWorker.abort();
+        } else if (usernameField.getText().length() < 6) {
             JOptionPane.showMessageDialog(null, "Username too short", "Log in", JOptionPane.ERROR_MESSAGE);
         } else if (passwordField.getPassword().length < 16) {
             JOptionPane.showMessageDialog(null, "Password too short", "Log in", JOptionPane.ERROR_MESSAGE);
         } else {
-            new LoginWorker(usernameField.getText(), passwordField.getPassword(), this).
-                    execute();
+            // the button cancels the login until it completes
+            final LoginWorker worker = new LoginWorker(usernameField.getText(), passwordField.getPassword(), this);
+            worker.addPropertyChangeListener(e -> {
+                if (e.getNewValue() == SwingWorker.StateValue.DONE) {
+                    loginButton.setText("Login");
+                }
+            });
+            loginWorker = worker;
+            loginButton.setText("Cancel");
+            worker.execute();
         }
     }//GEN-LAST:event_loginButtonActionPerformed
 
     private void passwordFieldKeyPressed(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_passwordFieldKeyPressed
-        if (evt.getKeyCode() == KeyEvent.VK_ENTER) {
+        if (evt.getKeyCode() == KeyEvent.VK_ENTER && !isLoggingIn()) {
             loginButtonActionPerformed(null);
         }
     }//GEN-LAST:event_passwordFieldKeyPressed
@@ -232,9 +251,7 @@ private void openShareMenuItemActionPerformed(java.awt.event.ActionEvent evt) {/
                     ErrorHandler.showError("invalid share UUID format.");
                 } else {
                     try {
-                        ctrlSocket = (SSLSocket) GPTLS.getContext().getSocketFactory().createSocket(
-                                InetAddress.getByName(CTRL_SERVER_NAME), CTRL_SERVER_PORT);
-                        GPTLS.setTLSParams(ctrlSocket);
+                        ctrlSocket = GPTLS.createSocket(CTRL_SERVER_NAME, CTRL_SERVER_PORT);
                         ctrlDos = new DataOutputStream(ctrlSocket.getOutputStream());
                         ctrlDis = new DataInputStream(ctrlSocket.getInputStream());
                         ctrlDos.write(SHARE);
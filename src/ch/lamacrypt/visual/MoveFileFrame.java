@@ -45,11 +45,12 @@ static void setParams(String[] names) {
     }
 
     private void updateMoveDirTable() throws IOException {
-        Map<String, Long> dirMap = Control.lsdir(Control.cwd());
+        String dir = Control.cwd();
+        Map<String, Long> dirMap = Control.lsdir(dir);
         DefaultTableModel dtm = (DefaultTableModel) moveDirTable.getModel();
         int i = 0;
 
-        if (!Control.isAtRoot()) {
+        if (!dir.equals("/")) {
             dtm.setRowCount(dirMap.size() + 1);
             moveDirTable.setModel(dtm);
             moveDirTable.setValueAt("..", i, 0);
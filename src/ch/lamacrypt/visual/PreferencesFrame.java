@@ -10,6 +10,8 @@
 
 import ch.lamacrypt.internal.Settings;
 import ch.lamacrypt.internal.crypto.DefaultCipher;
+import ch.lamacrypt.internal.crypto.KDFScheduler;
+import ch.lamacrypt.internal.file.GPFile;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.UIManager;
@@ -355,29 +357,18 @@ private void workFactorComboBoxActionPerformed(java.awt.event.ActionEvent evt) {
                     JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
             if (res == JOptionPane.YES_OPTION) {
                 if (indexToN(workFactorComboBox.getSelectedIndex()) > Settings.getStartupScryptN()) {
-                    boolean enoughRAM = false;
-                    switch (workFactorComboBox.getSelectedIndex()) {
-                        case 1:
-                            enoughRAM = Settings.getMaxRAM() + 512 * (int) Math.pow(2, 20)
-                                    >= 4 * (int) Math.pow(2, 30);
-                            break;
-                        case 2:
-                            enoughRAM = Settings.getMaxRAM() + 512 * (int) Math.pow(2, 20)
-                                    >= 8 * (int) Math.pow(2, 30);
-                            break;
+                    int N = 1 << indexToN(workFactorComboBox.getSelectedIndex());
+                    String memory = "Key derivation will use up to "
+                            + GPFile.longToSize(KDFScheduler.getPeakMemory(N, 8, 1)) + " of memory";
+                    if (KDFScheduler.isBounded(N, 8, 1)) {
+                        memory += ", and will be slower since the client may only use "
+                                + GPFile.longToSize(KDFScheduler.getBudget());
                     }
 
-                    if (enoughRAM) {
-                        nextNmodified = true;
-                        nextN = indexToN(workFactorComboBox.getSelectedIndex());
-                        JOptionPane.showMessageDialog(this, "This setting will take effect the next time "
-                                + "you start the client.", "Change settings", JOptionPane.INFORMATION_MESSAGE);
-                    } else {
-                        nextNmodified = false;
-                        JOptionPane.showMessageDialog(this, "Your system needs at least "
-                                + (workFactorComboBox.getSelectedIndex() * 4 + 2) + "GiB of RAM to use this"
-                                + " setting.", "Change settings", JOptionPane.ERROR_MESSAGE);
-                    }
+                    nextNmodified = true;
+                    nextN = indexToN(workFactorComboBox.getSelectedIndex());
+                    JOptionPane.showMessageDialog(this, memory + ".\nThis setting will take effect the next "
+                            + "time you start the client.", "Change settings", JOptionPane.INFORMATION_MESSAGE);
 
                     workFactorComboBox.setSelectedIndex(workFactorIndex);
                 } else {
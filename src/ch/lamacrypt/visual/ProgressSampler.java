@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.visual;
+
+import ch.lamacrypt.internal.crypto.Progress;
+import ch.lamacrypt.internal.file.GPFile;
+
+/**
+ * Turns the samples of a job {@link Progress} into a status text, e.g.
+ * "Uploading (42%, 12.50 MB/s, 1:23 left)"
+ * <p>
+ * Meant to be called on a timer, about {@link #SAMPLE_INTERVAL} milliseconds
+ * apart: the throughput is the exponential moving average of the throughput
+ * measured between two samples, which smooths out the bursts of the cipher
+ * loops.
+ *
+ * @author LamaGuy
+ */
+public final class ProgressSampler {
+
+    /**
+     * Recommended interval between two samples, in milliseconds
+     */
+    public static final int SAMPLE_INTERVAL = 100;
+
+    private static final double SMOOTHING = 0.2;
+
+    private String label;
+    private long lastTime,
+            lastDone;
+    private double rate = -1;
+
+    /**
+     * Samples the given progress
+     *
+     * @param p progress to sample
+     * @param status status text of the job, returned if no phase is counted
+     * @return status text
+     */
+    public String sample(Progress p, String status) {
+        final String l = p.getLabel();
+        final long now = System.nanoTime(),
+                done = p.getDone(),
+                total = p.getTotal();
+
+        if (l == null) {
+            label = null;
+            return status;
+        } else if (!l.equals(label) || done < lastDone) {
+            // new phase
+            label = l;
+            rate = -1;
+        } else if (now > lastTime) {
+            double r = (done - lastDone) * 1e9 / (now - lastTime);
+            rate = rate < 0 ? r : rate + SMOOTHING * (r - rate);
+        }
+        lastTime = now;
+        lastDone = done;
+
+        StringBuilder sb = new StringBuilder(l).append(" (");
+        if (total > 0) {
+            sb.append(Math.min(100, done * 100 / total)).append('%');
+        }
+        if (rate > 0) {
+            if (total > 0) {
+                sb.append(", ");
+            }
+            sb.append(GPFile.longToSize((long) rate).trim()).append("/s");
+            if (total > done) {
+                sb.append(", ").append(formatTime((long) ((total - done) / rate))).append(" left");
+            }
+        }
+
+        return sb.append(')').toString();
+    }
+
+    /**
+     * @param seconds duration in seconds
+     * @return duration formatted as h:mm:ss or m:ss
+     */
+    private static String formatTime(long seconds) {
+        long h = seconds / 3600,
+                m = seconds / 60 % 60,
+                s = seconds % 60;
+        return h > 0 ? String.format("%d:%02d:%02d", h, m, s) : String.format("%d:%02d", m, s);
+    }
+}
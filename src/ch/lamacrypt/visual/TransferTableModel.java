@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2016, LamaCrypt
+ * All rights reserved.
+ *
+ * The LamaCrypt client software and its source code are available
+ * under the LamaCrypt Software License:
+ * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
+ */
+package ch.lamacrypt.visual;
+
+import ch.lamacrypt.internal.transfer.Transfer;
+import ch.lamacrypt.internal.transfer.TransferQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.swing.JTable;
+import javax.swing.ListSelectionModel;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Renders the {@link TransferQueue} in the file queue table
+ * <p>
+ * The queue is never modified through the table: a snapshot of it is taken
+ * every {@link ProgressSampler#SAMPLE_INTERVAL} milliseconds if transfers
+ * were added, started or removed in the meantime. Otherwise, only the running
+ * transfers are sampled, see {@link ProgressSampler}, and only the rows whose
+ * status text changed are repainted, hence a tick costs O(running transfers)
+ * rather than O(queue size). The selection follows the selected transfers
+ * across snapshots.
+ *
+ * @author LamaGuy
+ */
+public final class TransferTableModel extends AbstractTableModel {
+
+    private static final long serialVersionUID = 1L;
+    private static final String[] COLUMNS = {"Source", "Destination", "Status", "Action"};
+
+    private final JTable table;
+    private final Timer timer;
+    private final Map<Transfer, ProgressSampler> samplers = new HashMap<>();
+    private final Map<Transfer, String> sampled = new HashMap<>();
+    private final Map<Transfer, Integer> index = new HashMap<>();
+    private Transfer[] rows = new Transfer[0];
+    private long modCount = -1;
+
+    /**
+     * Creates the model of the given table and starts refreshing it
+     *
+     * @param table file queue table
+     */
+    public TransferTableModel(JTable table) {
+        this.table = table;
+        this.timer = new Timer(ProgressSampler.SAMPLE_INTERVAL, e -> refresh());
+        refresh();
+        timer.start();
+    }
+
+    /**
+     * Stops refreshing the table
+     */
+    public void dispose() {
+        timer.stop();
+    }
+
+    private void refresh() {
+        long mc = TransferQueue.getModCount();
+
+        if (mc != modCount) {
+            modCount = mc;
+            List<Transfer> selected = getSelected();
+            rows = TransferQueue.snapshot().toArray(new Transfer[0]);
+            index.clear();
+            for (int i = 0; i < rows.length; i++) {
+                index.put(rows[i], i);
+            }
+            sample();
+            fireTableDataChanged();
+            select(selected);
+        } else {
+            for (Transfer t : sample()) {
+                Integer i = index.get(t);
+                if (i != null) {
+                    fireTableRowsUpdated(i, i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Samples the progress of the running transfers, forgetting the others
+     *
+     * @return transfers whose status text changed since the last sample
+     */
+    private List<Transfer> sample() {
+        Map<Transfer, String> previous = new HashMap<>(sampled);
+        List<Transfer> changed = new ArrayList<>();
+
+        sampled.clear();
+        for (Transfer t : TransferQueue.snapshotRunning()) {
+            if (t.getState() == Transfer.State.RUNNING) {
+                ProgressSampler ps = samplers.computeIfAbsent(t, k -> new ProgressSampler());
+                String text = ps.sample(t.getProgress(), t.getStatus());
+                sampled.put(t, text);
+                if (!text.equals(previous.remove(t))) {
+                    changed.add(t);
+                }
+            }
+        }
+        samplers.keySet().retainAll(sampled.keySet());
+
+        // transfers which stopped running show their own status again
+        changed.addAll(previous.keySet());
+        return changed;
+    }
+
+    /**
+     * @return transfers of the selected rows
+     */
+    public List<Transfer> getSelected() {
+        List<Transfer> selected = new ArrayList<>();
+        for (int row : table.getSelectedRows()) {
+            if (row < rows.length) {
+                selected.add(rows[row]);
+            }
+        }
+        return selected;
+    }
+
+    private void select(List<Transfer> selected) {
+        if (selected.isEmpty()) {
+            return;
+        }
+
+        ListSelectionModel sm = table.getSelectionModel();
+        sm.setValueIsAdjusting(true);
+        for (Transfer t : selected) {
+            Integer i = index.get(t);
+            if (i != null) {
+                sm.addSelectionInterval(i, i);
+            }
+        }
+        sm.setValueIsAdjusting(false);
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.length;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return String.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Transfer t = rows[row];
+        switch (column) {
+            case 0:
+                return t.getSource();
+            case 1:
+                return t.getDestination();
+            case 2:
+                String status = sampled.get(t);
+                return status != null ? status : t.getStatus();
+            default:
+                return t.getType().toString();
+        }
+    }
+}
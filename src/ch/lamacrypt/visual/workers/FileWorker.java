@@ -1,285 +1,708 @@
-/* 
+/*
  * Copyright (c) 2016, LamaCrypt
  * All rights reserved.
  *
  * The LamaCrypt client software and its source code are available
- * under the LamaCrypt Software License: 
+ * under the LamaCrypt Software License:
  * https://github.com/LamaCrypt/desktop-client/blob/master/LICENSE.md
  */
 package ch.lamacrypt.visual.workers;
 
 import ch.lamacrypt.internal.Settings;
 import ch.lamacrypt.internal.crypto.GPCrypto;
+import ch.lamacrypt.internal.crypto.StatusListener;
 import ch.lamacrypt.internal.file.GPFile;
 import ch.lamacrypt.internal.network.Control;
-import ch.lamacrypt.internal.network.IO;
+import ch.lamacrypt.internal.network.IOChannel;
+import ch.lamacrypt.internal.network.TransferPool;
+import ch.lamacrypt.internal.transfer.Manifest;
+import ch.lamacrypt.internal.transfer.Transfer;
+import ch.lamacrypt.internal.transfer.TransferQueue;
 import ch.lamacrypt.visual.DefaultFrame;
 import ch.lamacrypt.visual.ErrorHandler;
 import java.awt.Frame;
 import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.JOptionPane;
-import javax.swing.JTable;
 import javax.swing.SwingWorker;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.Timer;
 
 /**
  * Processes GUI file I/O actions by sending them to low-level classes
+ * <p>
+ * Items are taken from the {@link TransferQueue} by order of priority, and up
+ * to {@link Settings#getConnections()} of them run at the same time, each one
+ * on its own connection from the {@link TransferPool} and reporting its
+ * status to its own {@link Transfer}. Directories are downloaded by queuing
+ * each of their files as its own item. The worker never touches the file
+ * queue table, which renders the queue on its own, and the file table is
+ * refreshed at most once per {@link #REFRESH_DELAY} milliseconds after
+ * uploads complete. Questions to the user (overwriting, share keys) are
+ * asked before an item starts, one at a time.
+ * <p>
+ * If batched uploads are enabled, consecutive uploads of small files are sent
+ * together on a single connection, see {@link IOChannel#uploadBatch}.
+ * <p>
+ * If resumable transfers are enabled, an item interrupted by an I/O error is
+ * run again on a new connection, up to {@link #MAX_ATTEMPTS} times, and only
+ * transfers the missing chunks, see {@link IOChannel}.
  *
  * @author LamaGuy
  */
 public class FileWorker extends SwingWorker<Integer, String> {
 
-    private static final String[] buttons = {"Yes", "Yes to all", "No", "Cancel"};
-
-    private static Iterator<Map.Entry<String, Long>> dirMapIter;
-    private static Iterator<Map.Entry<String, Long[]>> fileMapIter;
-    private static boolean isDownload;
-    private static String srcFilePath,
-            dstFilePath;
-    private static JTable fileQueue;
-    private static File dstFile,
-            srcFile;
-
-    private static void failIfInterrupted() throws InterruptedException {
-        if (Thread.currentThread().isInterrupted() && isDownload) {
-            dstFile.delete();
-        }
-    }
-
     /**
-     * Creates a FileWorker with the given file queue as parameter
-     *
-     * @param fileQueue file queue to work with
+     * Transfer of a single queue item, run on a pooled connection
      */
-    public FileWorker(JTable fileQueue) {
-        FileWorker.fileQueue = fileQueue;
+    private interface Job {
+
+        /**
+         * @param channel connection to use
+         * @return reply code from the I/O server
+         * @throws IOException if an I/O error occurs on the connection
+         * @throws Exception if the file could not be encrypted or decrypted
+         */
+        int run(IOChannel channel) throws IOException, Exception;
     }
 
+    private static final String[] buttons = {"Yes", "Yes to all", "No", "Cancel"};
+    private static final int MAX_ATTEMPTS = 5,
+            BATCH_FILES = 256,
+            BATCH_BYTES = 16777216,
+            BATCH_THRESHOLD = 262144,
+            NO_REPLY = Integer.MIN_VALUE,
+            REFRESH_DELAY = 500;
+    private static final long RETRY_DELAY = 2000,
+            SCAN_WAIT = 1000,
+            MIN_THROUGHPUT = 16384;
+    private static final AtomicInteger threadCnt = new AtomicInteger();
+    private static final AtomicBoolean refreshPending = new AtomicBoolean();
+
+    private boolean yesForAll = false;
+
     @Override
     protected Integer doInBackground() throws Exception {
         Settings.setIsWorking(true);
-        int returnVal = -1;
-        boolean yesForAll = false,
-                isQueueEmpty = false,
-                existsFile = false;
-
-        while (!isQueueEmpty) {
-            fileQueue.setValueAt("In progress", 0, 2);
-            srcFilePath = (String) fileQueue.getValueAt(0, 0);
-            dstFilePath = (String) fileQueue.getValueAt(0, 1);
-
-            if (fileQueue.getValueAt(0, 3).equals("Upload")) {
-                srcFile = new File(srcFilePath);
-                isDownload = false;
-
-                if (srcFile.length() > 6e10) {
-                    JOptionPane.showMessageDialog(null, "Error: could not upload the file " + srcFile.
-                            getName() + ".\nAt the present time, uploads are capped at 60GB.", "Upload file",
-                            JOptionPane.ERROR_MESSAGE);
-                } else {
-                    if (!yesForAll && Control.exists(dstFilePath)) {
-                        returnVal = JOptionPane.showOptionDialog(null, "File "
-                                + srcFile.getName() + " already exists. Overwrite ?",
-                                "Overwrite", JOptionPane.DEFAULT_OPTION,
-                                JOptionPane.QUESTION_MESSAGE, null, buttons,
-                                buttons[2]);
-                        yesForAll = returnVal == 1;
-                        existsFile = true;
+        final int slotCnt = Math.max(1, Settings.getConnections());
+        final Semaphore slots = new Semaphore(slotCnt);
+        final ExecutorService executor = Executors.newFixedThreadPool(slotCnt, r -> {
+            Thread t = new Thread(r, "Transfer-" + threadCnt.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        Transfer next = null;
+
+        try {
+            while (true) {
+                slots.acquire();
+                Transfer item = next != null ? next : TransferQueue.poll();
+                next = null;
+
+                if (item == null) {
+                    slots.release();
+                    if (TransferQueue.isProducing()) {
+                        // a folder scan is still queuing items
+                        TransferQueue.awaitPending(SCAN_WAIT);
+                        continue;
+                    }
+
+                    // waiting for the running items, which may be followed by
+                    // newly queued ones
+                    slots.acquire(slotCnt);
+                    slots.release(slotCnt);
+                    if (!TransferQueue.hasPending()) {
+                        break;
+                    }
+                    continue;
+                }
+
+                if (isBatchable(item)) {
+                    // small uploads following each other are sent together
+                    List<Transfer> batch = new ArrayList<>();
+                    long batchSize = item.getSize();
+                    batch.add(item);
+                    while (batch.size() < BATCH_FILES && batchSize < BATCH_BYTES
+                            && (next = TransferQueue.poll()) != null && isBatchable(next)) {
+                        batch.add(next);
+                        batchSize += next.getSize();
+                        next = null;
+                    }
+
+                    if (batch.size() > 1) {
+                        runBatch(batch, executor, slots);
+                        continue;
                     }
+                }
+
+                Job job;
+                try {
+                    job = prepare(item);
+                } catch (IOException ex) {
+                    ErrorHandler.showError(ex);
+                    job = null;
+                }
 
-                    if (returnVal < 2) {
-                        if (existsFile) {
-                            Control.rm(dstFilePath);
-                            existsFile = false;
+                if (job == null) {
+                    item.finish(false);
+                    TransferQueue.remove(item);
+                    slots.release();
+                } else {
+                    final Job j = job;
+                    executor.execute(() -> {
+                        try {
+                            item.finish(run(j, item));
+                        } finally {
+                            TransferQueue.remove(item);
+                            if (item.getType() == Transfer.Type.UPLOAD) {
+                                refresh();
+                            }
+                            slots.release();
                         }
+                    });
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            Settings.setIsWorking(false);
+        }
+
+        return 1;
+    }
+
+    /**
+     * Asks the user the questions needed before transferring the given item,
+     * then returns the corresponding transfer
+     *
+     * @param item queue item
+     * @return transfer to run, or null if the item is skipped or is a
+     * directory, whose files are queued instead
+     * @throws IOException if the control server could not be reached
+     */
+    private Job prepare(Transfer item) throws IOException {
+        final String srcFilePath = item.getSource(),
+                dstFilePath = item.getDestination();
+        final StatusListener status = item;
+        int returnVal = -1;
+
+        if (item.getType() == Transfer.Type.UPLOAD) {
+            final File srcFile = new File(srcFilePath);
+            item.setSize(srcFile.length());
+
+            if (srcFile.length() > 6e10) {
+                JOptionPane.showMessageDialog(null, "Error: could not upload the file " + srcFile.
+                        getName() + ".\nAt the present time, uploads are capped at 60GB.", "Upload file",
+                        JOptionPane.ERROR_MESSAGE);
+                return null;
+            }
+
+            boolean existsFile = Control.exists(dstFilePath);
+            if (!yesForAll && existsFile) {
+                returnVal = JOptionPane.showOptionDialog(null, "File "
+                        + srcFile.getName() + " already exists. Overwrite ?",
+                        "Overwrite", JOptionPane.DEFAULT_OPTION,
+                        JOptionPane.QUESTION_MESSAGE, null, buttons,
+                        buttons[2]);
+                yesForAll = returnVal == 1;
+            }
+
+            if (returnVal >= 2) {
+                return null;
+            }
+            if (existsFile) {
+                Control.rm(dstFilePath);
+            }
+
+            return channel -> {
+                int res = channel.upload(srcFile, dstFilePath, status);
+                showUploadError(srcFilePath, res);
+                return res;
+            };
+        } else if (item.getParent() != null) {
+            // file of a directory, whose tree and space were checked
+            // beforehand
+            return download(srcFilePath, new File(dstFilePath), status);
+        } else {
+            final File dstFile = new File(dstFilePath);
 
-                        String prefix = "could not upload " + (String) fileQueue.getValueAt(0, 0) + ".\n";
-                        switch (IO.upload(srcFile, dstFilePath)) {
+            if (srcFilePath.startsWith("/") && Control.dirchk(srcFilePath)) {
+                prepareTree(item);
+                return null;
+            }
+
+            final boolean resume = IOChannel.canResume(srcFilePath, dstFile);
+
+            if (!yesForAll && !resume && dstFile.isFile() && dstFile.exists()) {
+                returnVal = JOptionPane.showOptionDialog(null, "File "
+                        + dstFile.getName() + " already exists. Overwrite ?",
+                        "Overwrite", JOptionPane.DEFAULT_OPTION,
+                        JOptionPane.QUESTION_MESSAGE, null, buttons,
+                        buttons[2]);
+                yesForAll = returnVal == 1;
+            }
+
+            if (returnVal >= 2) {
+                return null;
+            }
+
+            try {
+                if (dstFile.exists() && !resume) {
+                    dstFile.delete();
+                }
+                dstFile.createNewFile();
+            } catch (IOException ex) {
+                String errorMsg = "could not write to file '" + dstFile.getAbsolutePath() + "'.\nPlease "
+                        + "check you have the right to write in the parent directory.";
+                ErrorHandler.showError(errorMsg);
+                return null;
+            }
+
+            item.setSize(Control.size(srcFilePath));
+            if (GPFile.checkDirSize(dstFile) < item.getSize() + 5e7) {
+                ErrorHandler.showError("not enough space on '" + GPFile.
+                        getNearestParentDirectory(dstFile).getCanonicalPath() + "'. "
+                        + GPFile.longToSize(GPFile.checkDirSize(dstFile)) + " left.");
+                return null;
+            }
+
+            if (srcFilePath.startsWith("/")) {
+                return download(srcFilePath, dstFile, status);
+            } else {
+                final String prefix = "could not download share file '" + dstFile.getName() + "'.\n",
+                        key = JOptionPane.showInputDialog(new Frame(), "Enter decryption key",
+                                "Download share", JOptionPane.QUESTION_MESSAGE);
+
+                if (!GPCrypto.checkUUID(srcFilePath)) {
+                    ErrorHandler.showError(prefix + "Bad UUID format.");
+                } else if (!GPCrypto.checkKey(key)) {
+                    ErrorHandler.showError(prefix + "Bad key format.");
+                } else {
+                    return channel -> {
+                        int res;
+                        try {
+                            res = channel.downloadshare(srcFilePath, key, dstFile, true, status);
+                        } catch (IOException ex) {
+                            dstFile.delete();
+                            throw ex;
+                        }
+                        switch (res) {
                             case 7:
-                                ErrorHandler.showError(prefix + "The file size is different from what the server"
-                                        + " received. Please try uploading it again.");
+                                ErrorHandler.showError(prefix + "Encryption malfunction.");
                                 break;
                             case 6:
-                                ErrorHandler.showError(prefix + "File size is too small.");
+                                ErrorHandler.showError(prefix + "Bad UUID format.");
                                 break;
                             case 5:
-                                ErrorHandler.showError(prefix + "You have reached your plan's quota.");
+                                ErrorHandler.showError(prefix + "No share exists with the UUID '"
+                                        + srcFilePath + "'.");
                                 break;
                             case 4:
-                                ErrorHandler.showError(prefix + "A file with the same name is being uploaded.");
+                                ErrorHandler.showError(prefix + "Your encryption password is probably false "
+                                        + "or you have downloaded corrupted data.");
                                 break;
                             case 3:
-                                ErrorHandler.showError(prefix + "Remote filename is too short.");
+                                ErrorHandler.showError(prefix + "UUID is too short.");
                                 break;
-                            case 1:
-                                ErrorHandler.showError(prefix + "File already exists.");
+                            case 2:
+                                ErrorHandler.showError(prefix + "Share file not found.");
                                 break;
+                            case -1:
                             case -2:
-                                ErrorHandler.showError(prefix + "An I/O problem occured.");
+                                ErrorHandler.showError(prefix + "I/O error occured.");
                                 break;
                         }
-                    }
+                        if (res != 0) {
+                            dstFile.delete();
+                        }
+                        return res;
+                    };
+                }
+
+                dstFile.delete();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Runs a transfer on a pooled connection, which is discarded if an I/O
+     * error occurs
+     * <p>
+     * If resumable transfers are enabled, the transfer is run again on a new
+     * connection after an I/O error.
+     *
+     * @param job transfer to run
+     * @param item queue item
+     * @return true if the transfer completed with a success reply
+     */
+    private boolean run(Job job, Transfer item) {
+        return run(job, item, item.getSize(), Settings.isResume());
+    }
+
+    /**
+     * Runs a transfer on a pooled connection, which is discarded if an I/O
+     * error occurs
+     * <p>
+     * Each attempt must complete within the read timeout plus the time
+     * needed to transfer the given size at {@link #MIN_THROUGHPUT} bytes per
+     * second, else it is aborted like a stalled one, see
+     * {@link IOChannel#setDeadline(long)}.
+     *
+     * @param job transfer to run
+     * @param item queue item showing the reconnection attempts
+     * @param size number of bytes transferred, or -1 if unknown, in which
+     * case only the read timeout applies
+     * @param retry whether the transfer is run again on a new connection
+     * after an I/O error
+     * @return true if the transfer completed with a success reply
+     */
+    private boolean run(Job job, Transfer item, long size, boolean retry) {
+        for (int attempt = 1;; attempt++) {
+            IOChannel channel = null;
+            boolean healthy = false;
+
+            try {
+                channel = TransferPool.acquire();
+                if (size >= 0) {
+                    channel.setDeadline(Settings.getTimeout() + size * 1000 / MIN_THROUGHPUT);
+                }
+                int res = job.run(channel);
+                healthy = true;
+                return res == 0;
+            } catch (IOException ex) {
+                if (isCancelled() || Thread.currentThread().isInterrupted()) {
+                    // failures caused by a disconnection or a cancellation
+                    // are not reported
+                    return false;
+                } else if (!retry || attempt >= MAX_ATTEMPTS) {
+                    ErrorHandler.showError(ex);
+                    return false;
                 }
-            } else if (fileQueue.getValueAt(0, 3).equals("Download")) {
-                dstFile = new File(dstFilePath);
-                boolean error = false;
-                isDownload = true;
+            } catch (Exception ex) {
+                if (!isCancelled()) {
+                    ErrorHandler.showError(ex);
+                }
+                return false;
+            } finally {
+                if (channel != null) {
+                    TransferPool.release(channel, healthy);
+                }
+            }
+
+            item.update("Reconnecting (" + attempt + "/" + (MAX_ATTEMPTS - 1) + ")");
+            try {
+                Thread.sleep(RETRY_DELAY * attempt);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Reports the reply code from the I/O server to an upload, if it is an
+     * error
+     *
+     * @param srcFilePath local file path
+     * @param res reply code
+     */
+    private static void showUploadError(String srcFilePath, int res) {
+        String prefix = "could not upload " + srcFilePath + ".\n";
+        switch (res) {
+            case 7:
+                ErrorHandler.showError(prefix + "The file size is different from what the server"
+                        + " received. Please try uploading it again.");
+                break;
+            case 6:
+                ErrorHandler.showError(prefix + "File size is too small.");
+                break;
+            case 5:
+                ErrorHandler.showError(prefix + "You have reached your plan's quota.");
+                break;
+            case 4:
+                ErrorHandler.showError(prefix + "A file with the same name is being uploaded.");
+                break;
+            case 3:
+                ErrorHandler.showError(prefix + "Remote filename is too short.");
+                break;
+            case 1:
+                ErrorHandler.showError(prefix + "File already exists.");
+                break;
+        }
+    }
+
+    /**
+     * @param item queue item
+     * @return true if the item is an upload small enough to be batched, see
+     * {@link IOChannel#uploadBatch}
+     */
+    private static boolean isBatchable(Transfer item) {
+        if (item.getType() != Transfer.Type.UPLOAD || !IOChannel.canBatch()) {
+            return false;
+        }
+        item.setSize(new File(item.getSource()).length());
+        return item.getSize() <= BATCH_THRESHOLD;
+    }
+
+    /**
+     * Asks the user the questions needed before uploading the given small
+     * files, then uploads them in a single batch on one transfer slot
+     * <p>
+     * The existence checks and removals of the remote files are pipelined,
+     * so that preparing the batch costs two round trips instead of two per
+     * file. Skipped files are completed right away.
+     *
+     * @param batch queue items, all running
+     * @param executor runs the batch
+     * @param slots transfer slots, one of which is held for the batch
+     */
+    private void runBatch(List<Transfer> batch, ExecutorService executor, Semaphore slots) {
+        final List<Transfer> ready = new ArrayList<>(batch.size());
+
+        try {
+            List<CompletableFuture<Boolean>> exists = new ArrayList<>(batch.size()),
+                    removals = new ArrayList<>();
+            for (Transfer t : batch) {
+                exists.add(Control.existsAsync(t.getDestination()));
+            }
 
-                if (!yesForAll && dstFile.isFile() && dstFile.exists()) {
+            for (int i = 0; i < batch.size(); i++) {
+                Transfer t = batch.get(i);
+                boolean existsFile = Control.await(exists.get(i));
+                int returnVal = -1;
+
+                if (!yesForAll && existsFile) {
                     returnVal = JOptionPane.showOptionDialog(null, "File "
-                            + dstFile.getName() + " already exists. Overwrite ?",
+                            + new File(t.getSource()).getName() + " already exists. Overwrite ?",
                             "Overwrite", JOptionPane.DEFAULT_OPTION,
                             JOptionPane.QUESTION_MESSAGE, null, buttons,
                             buttons[2]);
                     yesForAll = returnVal == 1;
                 }
 
-                if (returnVal < 2) {
-                    try {
-                        if (dstFile.exists()) {
-                            dstFile.delete();
-                        }
-                        dstFile.createNewFile();
-                    } catch (IOException ex) {
-                        error = true;
-                        String errorMsg = "could not write to file '" + dstFile.getAbsolutePath() + "'.\nPlease "
-                                + "check you have the right to write in the parent directory.";
-                        ErrorHandler.showError(errorMsg);
-                    }
+                if (returnVal >= 2) {
+                    continue;
+                }
+                if (existsFile) {
+                    removals.add(Control.rmAsync(t.getDestination()));
+                }
+                ready.add(t);
+            }
 
-                    if (GPFile.checkDirSize(dstFile) < Control.size(srcFilePath) + 5e7) {
-                        ErrorHandler.showError("not enough space on '" + GPFile.
-                                getNearestParentDirectory(dstFile).getCanonicalPath() + "'. "
-                                + GPFile.longToSize(GPFile.checkDirSize(dstFile)) + " left.");
-                        error = true;
-                    }
+            for (CompletableFuture<Boolean> r : removals) {
+                Control.await(r);
+            }
+        } catch (IOException ex) {
+            ErrorHandler.showError(ex);
+            ready.clear();
+        }
 
-                    if (!error) {
-                        int res = -4;
-                        if (Control.dirchk(srcFilePath)) {
-                            recursiveDownload(srcFilePath, dstFilePath);
-                        } else if (srcFilePath.startsWith("/")) {
-                            String prefix = "could not download '" + (String) fileQueue.getValueAt(0, 0) + "'.\n";
-
-                            res = IO.download(srcFilePath, dstFile);
-                            switch (res) {
-                                case 4:
-                                    ErrorHandler.showError(prefix + "Your encryption password is probably false "
-                                            + "or you have downloaded corrupted data.");
-                                    break;
-                                case 3:
-                                    ErrorHandler.showError(prefix + "Remote filename is too short.");
-                                    break;
-                                case 2:
-                                    ErrorHandler.showError(prefix + "File does not exist.");
-                                    break;
-                                case -1:
-                                    ErrorHandler.showError(prefix + "I/O error occured.");
-                                    break;
-                                case -2:
-                                    ErrorHandler.showError(prefix + "Bad file format.");
-                                    break;
-                            }
-                        } else {
-                            String prefix = "could not download share file '" + dstFile.getName() + "'.\n",
-                                    key = JOptionPane.showInputDialog(new Frame(), "Enter decryption key",
-                                            "Download share", JOptionPane.QUESTION_MESSAGE);
+        for (Transfer t : batch) {
+            if (!ready.contains(t)) {
+                t.finish(false);
+                TransferQueue.remove(t);
+            }
+        }
+        if (ready.isEmpty()) {
+            slots.release();
+            return;
+        }
 
-                            if (!GPCrypto.checkUUID(srcFilePath)) {
-                                ErrorHandler.showError(prefix + "Bad UUID format.");
-                            } else if (!GPCrypto.checkKey(key)) {
-                                ErrorHandler.showError(prefix + "Bad key format.");
-                            } else {
-                                res = IO.downloadshare(srcFilePath, key, dstFile, true);
-                                switch (res) {
-                                    case 7:
-                                        ErrorHandler.showError(prefix + "Encryption malfunction.");
-                                        break;
-                                    case 6:
-                                        ErrorHandler.showError(prefix + "Bad UUID format.");
-                                        break;
-                                    case 5:
-                                        ErrorHandler.showError(prefix + "No share exists with the UUID '"
-                                                + srcFilePath + "'.");
-                                        break;
-                                    case 4:
-                                        ErrorHandler.showError(prefix + "Your encryption password is probably false "
-                                                + "or you have downloaded corrupted data.");
-                                        break;
-                                    case 3:
-                                        ErrorHandler.showError(prefix + "UUID is too short.");
-                                        break;
-                                    case 2:
-                                        ErrorHandler.showError(prefix + "Share file not found.");
-                                        break;
-                                    case -1:
-                                        ErrorHandler.showError(prefix + "I/O error occured.");
-                                        break;
-                                    case -2:
-                                        ErrorHandler.showError(prefix + "I/O error occured.");
-                                        break;
-                                }
-                            }
-                        }
-                        if (res != 0) {
-                            dstFile.delete();
-                        }
-                    }
+        final int n = ready.size();
+        final File[] files = new File[n];
+        final String[] paths = new String[n];
+        final int[] replies = new int[n];
+        for (int i = 0; i < n; i++) {
+            files[i] = new File(ready.get(i).getSource());
+            paths[i] = ready.get(i).getDestination();
+            replies[i] = NO_REPLY;
+        }
+
+        final Job job = channel -> {
+            // only the files left unacknowledged by a previous attempt are
+            // sent again
+            List<Integer> left = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                if (replies[i] == NO_REPLY) {
+                    left.add(i);
                 }
             }
 
-            DefaultTableModel dtm = (DefaultTableModel) fileQueue.getModel();
-            dtm.removeRow(0);
-            fileQueue.setModel(dtm);
-            isQueueEmpty = fileQueue.getRowCount() == 0;
-            DefaultFrame.updateFileTable();
-        }
+            final int m = left.size();
+            final File[] f = new File[m];
+            final String[] p = new String[m];
+            final StatusListener[] st = new StatusListener[m];
+            final int[] r = new int[m];
+            for (int j = 0; j < m; j++) {
+                int i = left.get(j);
+                f[j] = files[i];
+                p[j] = paths[i];
+                st[j] = ready.get(i);
+                r[j] = NO_REPLY;
+            }
 
-        Settings.setIsWorking(false);
-        return 1;
-    }
+            int res;
+            try {
+                res = channel.uploadBatch(f, p, st, r);
+            } finally {
+                for (int j = 0; j < m; j++) {
+                    replies[left.get(j)] = r[j];
+                }
+            }
 
-    private void recursiveDownload(String remoteDirName, String dlFilePath) throws IOException, Exception {
-        Map<String, Long[]> fileMap = Control.lsfile(remoteDirName);
-        Map<String, Long> dirMap = Control.lsdir(remoteDirName);
-        boolean spaceFreed = false;
-        int res = JOptionPane.OK_OPTION;
-        new File(dlFilePath).delete();
-        new File(dlFilePath).mkdirs();
-
-        if (!dirMap.isEmpty()) {
-            dirMapIter = dirMap.entrySet().iterator();
-            while (dirMapIter.hasNext()) {
-                Map.Entry<String, Long> entry = dirMapIter.next();
-                recursiveDownload(remoteDirName + "/" + entry.getKey(), dlFilePath + "/" + entry.getKey());
+            if (res != 0) {
+                ErrorHandler.showError("could not upload " + m + " files: the server refused the batch (" + res
+                        + ").\nPlease check that it supports batched uploads.");
+                return res;
             }
-        }
+            for (int i : left) {
+                showUploadError(files[i].getPath(), replies[i]);
+            }
+            return 0;
+        };
 
-        if (!fileMap.isEmpty()) {
-            fileMapIter = fileMap.entrySet().iterator();
-            while (fileMapIter.hasNext()) {
-                Map.Entry<String, Long[]> entry = fileMapIter.next();
-
-                while (!spaceFreed) {
-                    if (res == JOptionPane.OK_OPTION && (dstFile.getUsableSpace() + 1e8) > entry.
-                            getValue()[1]) {
-                        spaceFreed = true;
-                        dstFile = new File(dlFilePath + "/" + entry.getKey());
-                        fileQueue.setValueAt(dstFile.getCanonicalPath(), 0, 1);
-                        IO.download(remoteDirName + "/" + entry.getKey(), dstFile);
-                    } else {
-                        res = JOptionPane.showConfirmDialog(new Frame(), "Not enough space to "
-                                + "write \"" + entry.getKey() + "\".\nPlease free up some space and try again.",
-                                "Download file", JOptionPane.OK_CANCEL_OPTION, JOptionPane.ERROR_MESSAGE);
-                    }
+        executor.execute(() -> {
+            try {
+                // a batch only sends the unacknowledged files again, hence
+                // it is retried even if resumable transfers are disabled
+                long total = 0;
+                for (File f : files) {
+                    total += f.length();
                 }
+                run(job, ready.get(0), total, true);
+            } finally {
+                for (int i = 0; i < n; i++) {
+                    ready.get(i).finish(replies[i] == 0);
+                    TransferQueue.remove(ready.get(i));
+                }
+                refresh();
+                slots.release();
+            }
+        });
+    }
 
-                spaceFreed = false;
-                res = JOptionPane.OK_OPTION;
+    /**
+     * Returns the download of a single remote file
+     *
+     * @param srcFilePath remote file path
+     * @param dstFile destination file
+     * @param status status listener
+     * @return transfer to run
+     */
+    private static Job download(String srcFilePath, File dstFile, StatusListener status) {
+        return channel -> {
+            String prefix = "could not download '" + srcFilePath + "'.\n";
+            int res;
+            try {
+                res = channel.download(srcFilePath, dstFile, status);
+            } catch (IOException ex) {
+                // the partial file is kept for the next attempt
+                if (!Settings.isResume()) {
+                    dstFile.delete();
+                }
+                throw ex;
             }
+            switch (res) {
+                case 4:
+                    ErrorHandler.showError(prefix + "Your encryption password is probably false "
+                            + "or you have downloaded corrupted data.");
+                    break;
+                case 3:
+                    ErrorHandler.showError(prefix + "Remote filename is too short.");
+                    break;
+                case 2:
+                    ErrorHandler.showError(prefix + "File does not exist.");
+                    break;
+                case -1:
+                    ErrorHandler.showError(prefix + "I/O error occured.");
+                    break;
+                case -2:
+                    ErrorHandler.showError(prefix + "Bad file format.");
+                    break;
+            }
+            if (res != 0) {
+                dstFile.delete();
+            }
+            return res;
+        };
+    }
+
+    /**
+     * Prepares the download of a remote directory, which completes the given
+     * item
+     * <p>
+     * The whole tree is listed first, see {@link Manifest}, and checked
+     * against the free space once, minus the space reserved by the other
+     * directories being downloaded. The local tree is then created and each
+     * file is queued as its own transfer, so that the files are spread over
+     * the transfer slots.
+     *
+     * @param item download of the directory
+     * @throws IOException if the control server could not be reached
+     */
+    private static void prepareTree(Transfer item) throws IOException {
+        final File dstDir = new File(item.getDestination());
+
+        item.update("Listing");
+        Manifest m = Manifest.build(item.getSource());
+        item.setSize(m.getTotalSize());
+
+        long left = GPFile.checkDirSize(dstDir) - TransferQueue.getReservedSpace();
+        if (left < m.getTotalSize() + 5e7) {
+            ErrorHandler.showError("not enough space on '" + GPFile.getNearestParentDirectory(dstDir)
+                    .getCanonicalPath() + "' to download '" + item.getSource() + "'. "
+                    + GPFile.longToSize(m.getTotalSize()) + " needed, " + GPFile.longToSize(Math.max(0, left))
+                    + " left.");
+            return;
+        }
+
+        if (dstDir.isFile()) {
+            dstDir.delete();
+        }
+        dstDir.mkdirs();
+        for (String dir : m.getDirs()) {
+            new File(dstDir, dir).mkdirs();
+        }
+        if (!dstDir.isDirectory()) {
+            ErrorHandler.showError("could not create the directory '" + dstDir.getAbsolutePath() + "'.\nPlease "
+                    + "check you have the right to write in the parent directory.");
+            return;
+        }
+
+        List<Transfer> files = new ArrayList<>(m.getFileCount());
+        for (int i = 0; i < m.getFileCount(); i++) {
+            String path = m.getFile(i);
+            files.add(new Transfer(item, Manifest.join(item.getSource(), path),
+                    new File(dstDir, path).getPath(), m.getSize(i)));
+        }
+        TransferQueue.addAll(files);
+        item.finish(true);
+    }
+
+    /**
+     * Schedules a refresh of the file table on the EDT, shared by every
+     * upload completing within the next {@link #REFRESH_DELAY} milliseconds
+     */
+    private static void refresh() {
+        if (refreshPending.compareAndSet(false, true)) {
+            Timer timer = new Timer(REFRESH_DELAY, e -> {
+                refreshPending.set(false);
+                try {
+                    DefaultFrame.updateFileTable();
+                } catch (IOException ex) {
+                    ErrorHandler.showError(ex);
+                }
+            });
+            timer.setRepeats(false);
+            timer.start();
         }
     }
 }
@@ -35,6 +35,7 @@ public class LoginWorker extends SwingWorker<Boolean, Boolean> {
     private final String username;
     private final char[] loginPass;
     private final JFrame frame;
+    private volatile boolean aborted = false;
 
     public LoginWorker(String username, char[] password, JFrame frame) {
         this.username = username;
@@ -42,6 +43,24 @@ public LoginWorker(String username, char[] password, JFrame frame) {
         this.frame = frame;
     }
 
+    /**
+     * Cancels the login, closing the connections being opened in the
+     * background
+     */
+    public void abort() {
+        aborted = true;
+        LoginForm.updateLoginLabel("Cancelling");
+        Thread t = new Thread(() -> {
+            try {
+                Authentication.abort();
+            } catch (IOException ex) {
+                // the login fails anyway
+            }
+        }, "Login-abort");
+        t.setDaemon(true);
+        t.start();
+    }
+
     @Override
     protected Boolean doInBackground() throws IOException, Exception {
         return Authentication.login(username, loginPass);
@@ -159,6 +178,11 @@ protected void done() {
                 LoginForm.updateLoginLabel("Login failed, please check your credentials.");
             }
         } catch (InterruptedException | ExecutionException | IOException ex) {
+            if (aborted) {
+                GPCrypto.sanitize(loginPass);
+                LoginForm.updateLoginLabel("Login cancelled");
+                return;
+            }
             if (ex.getCause().toString().contains("unable to find valid certification path to requested target")) {
                 ErrorHandler.showError("the server certificate could not be verified.\n\nSomebody might"
                         + " be trying to perform a MITM attack !");
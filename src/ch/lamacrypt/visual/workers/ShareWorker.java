@@ -13,7 +13,6 @@
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -165,13 +164,11 @@ protected Integer doInBackground() throws IOException, NoSuchAlgorithmException,
                                         }
 
                                         if (!error) {
-                                            ioSocket = (SSLSocket) GPTLS.getContext().getSocketFactory().createSocket(
-                                                    InetAddress.getByName(IO_SERVER_NAME), IO_SERVER_PORT);
-                                            GPTLS.setTLSParams(ioSocket);
+                                            ioSocket = GPTLS.createSocket(IO_SERVER_NAME, IO_SERVER_PORT);
                                             ioDos = new DataOutputStream(ioSocket.getOutputStream());
                                             ioDis = new DataInputStream(ioSocket.getInputStream());
                                             ioDos.write(SHARE);
-                                            IO.init(ioDos, ioDis);
+                                            IO.init(ioSocket, ioDos, ioDis);
 
                                             DownloadFrame.setText(fileName, (long) shareInfo[2], dstFile);
                                             DownloadFrame.main(null);